@@ -1,8 +1,16 @@
 package com.danielflower.apprunner.router.lib;
 
 import com.danielflower.apprunner.router.lib.mgmt.*;
+import com.danielflower.apprunner.router.lib.monitoring.AppTraffic;
 import com.danielflower.apprunner.router.lib.web.*;
+import com.danielflower.apprunner.router.lib.web.v1.AppJobResource;
+import com.danielflower.apprunner.router.lib.web.v1.CutoverResource;
+import com.danielflower.apprunner.router.lib.web.v1.HibernationResource;
+import com.danielflower.apprunner.router.lib.web.v1.MigrationResource;
+import com.danielflower.apprunner.router.lib.web.v1.PlacementResource;
 import com.danielflower.apprunner.router.lib.web.v1.RunnerResource;
+import com.danielflower.apprunner.router.lib.web.v1.ShadowResource;
+import com.danielflower.apprunner.router.lib.web.v1.SplitResource;
 import com.danielflower.apprunner.router.lib.web.v1.SystemResource;
 import io.muserver.HeaderNames;
 import io.muserver.Method;
@@ -16,6 +24,7 @@ import jakarta.ws.rs.NotFoundException;
 import java.io.File;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.time.Duration;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,6 +39,12 @@ public class App {
     private final AppRunnerRouterSettings settings;
     private MuServer muServer;
     private HttpClient standardHttpClient;
+    private RunnerSystemCache runnerSystemCache;
+    private AppReconciler appReconciler;
+    private AppEventSubscriber appEventSubscriber;
+    private RunnerLeaseMonitor runnerLeaseMonitor;
+    private CreationJobs creationJobs;
+    private AppHibernator appHibernator;
 
     public App(AppRunnerRouterSettings settings) {
         this.settings = settings;
@@ -42,14 +57,58 @@ public class App {
 
         ProxyMap proxyMap = new ProxyMap();
 
-        this.standardHttpClient = ReverseProxyBuilder.createHttpClientBuilder(settings.allowUntrustedInstances()).build();
+        HttpClient.Builder standardHttpClientBuilder = ReverseProxyBuilder.createHttpClientBuilder(settings.allowUntrustedInstances());
+        if (settings.blockingExecutor() != null) {
+            standardHttpClientBuilder.executor(settings.blockingExecutor());
+        }
+        this.standardHttpClient = standardHttpClientBuilder.build();
 
         MapManager mapManager = new ClusterQueryingMapManager(proxyMap, standardHttpClient);
         Cluster cluster = Cluster.load(new File(settings.dataDir(), "cluster.json"), mapManager);
-        mapManager.loadAllApps(null, cluster.getRunners());
+        mapManager.loadAllAppNamesAsync(null, cluster.getAvailableRunners(), MapManager.DEFAULT_DEADLINE).get();
         cluster.refreshRunnerCountCache(mapManager.getCurrentMapping());
 
-        ReverseProxyManager reverseProxyManager = new ReverseProxyManager(cluster, proxyMap, settings.appRequestListener());
+        runnerLeaseMonitor = new RunnerLeaseMonitor(cluster, mapManager);
+        runnerLeaseMonitor.start(1000);
+
+        appReconciler = new AppReconciler(cluster, mapManager, AppReconciler.DEFAULT_MIN_INTERVAL, AppReconciler.DEFAULT_MAX_INTERVAL);
+        appReconciler.start();
+        appEventSubscriber = new AppEventSubscriber(cluster, mapManager, proxyMap, standardHttpClient, appReconciler, Duration.ofSeconds(90));
+        appEventSubscriber.start();
+
+        runnerSystemCache = new RunnerSystemCache(cluster, mapManager, RunnerSystemCache.DEFAULT_TTL, Duration.ofSeconds(10));
+        runnerSystemCache.start();
+        if (AppRunnerRouterSettings.PLACEMENT_RESOURCES.equals(settings.placement())) {
+            cluster.setPlacementStrategy(new ResourceAwarePlacement(runnerSystemCache::latest));
+        } else if (AppRunnerRouterSettings.PLACEMENT_CONSISTENT_HASH.equals(settings.placement())) {
+            cluster.setPlacementStrategy(new ConsistentHashPlacement(ConsistentHashPlacement.DEFAULT_BALANCE_FACTOR));
+        }
+        AppTraffic appTraffic = new AppTraffic(AppTraffic.DEFAULT_HALF_LIFE);
+        if (settings.trafficAwarePlacement()) {
+            cluster.setPlacementStrategy(new TrafficAwarePlacement(cluster.getPlacementStrategy(), proxyMap, appTraffic, TrafficAwarePlacement.DEFAULT_HOT_APPS));
+        }
+
+        SampleCache sampleCache = new SampleCache(new File(settings.dataDir(), "sample-cache"), standardHttpClient, SampleCache.DEFAULT_REVALIDATE_AFTER);
+
+        InFlightRequests inFlightRequests = new InFlightRequests();
+        TrafficShadower trafficShadower = new TrafficShadower(standardHttpClient, TrafficShadower.DEFAULT_MAX_CONCURRENT, TrafficShadower.DEFAULT_TIMEOUT);
+        ReverseProxyManager reverseProxyManager = new ReverseProxyManager(cluster, proxyMap, settings.appRequestListener(),
+            new AppLocator(cluster, proxyMap, standardHttpClient, AppLocator.DEFAULT_DEADLINE, AppLocator.DEFAULT_NEGATIVE_TTL, AppLocator.DEFAULT_MAX_NEGATIVE_ENTRIES, AppLocator.DEFAULT_MAX_WAITING), appTraffic, inFlightRequests, trafficShadower);
+        if (settings.hibernateAfterMillis() > 0) {
+            appHibernator = new AppHibernator(proxyMap, standardHttpClient, inFlightRequests, Duration.ofMillis(settings.hibernateAfterMillis()),
+                AppHibernator.DEFAULT_WAKE_TIMEOUT, AppHibernator.DEFAULT_MAX_WAITING, AppHibernator.DEFAULT_POLL_INTERVAL,
+                new File(settings.dataDir(), "hibernating.json"));
+            appHibernator.start(AppHibernator.DEFAULT_CHECK_INTERVAL);
+        }
+        AppCutovers appCutovers = new AppCutovers(proxyMap, standardHttpClient, inFlightRequests, AppCutovers.DEFAULT_DRAIN_TIMEOUT,
+            AppCutovers.DEFAULT_WATCH, AppCutovers.DEFAULT_MAX_ERROR_RATE, AppCutovers.DEFAULT_MIN_REQUESTS, AppCutovers.DEFAULT_POLL_INTERVAL, appHibernator);
+        AppMigrator appMigrator = new AppMigrator(cluster, proxyMap, standardHttpClient, appCutovers,
+            AppMigrator.DEFAULT_READY_TIMEOUT, AppMigrator.DEFAULT_POLL_INTERVAL, appHibernator);
+
+        creationJobs = new CreationJobs(CreationJobs.DEFAULT_CONCURRENCY, CreationJobs.DEFAULT_MAX_QUEUED, CreationJobs.DEFAULT_RETENTION);
+
+        CreateAppHandler createAppHandler = new CreateAppHandler(proxyMap, mapManager, cluster, standardHttpClient, appEventSubscriber, creationJobs,
+            new CreationAdmission(cluster, CreationAdmission.DEFAULT_MAX_PER_RUNNER, CreationAdmission.DEFAULT_MAX_IN_CLUSTER, CreationAdmission.DEFAULT_MAX_QUEUED));
 
         AppsCallAggregator appsCallAggregator = new AppsCallAggregator(mapManager, cluster, settings.corsConfig());
 
@@ -62,10 +121,21 @@ public class App {
                 .addHandler(Method.GET, "/apps", appsCallAggregator)
                 .addHandler(Method.HEAD, "/apps", appsCallAggregator)
                 .addHandler(Method.OPTIONS, "/apps", (request, response, pathParams) -> response.headers().set(HeaderNames.ALLOW, "GET, POST, HEAD, OPTIONS"))
-                .addHandler(Method.POST, "/apps", new CreateAppHandler(proxyMap, mapManager, cluster, standardHttpClient))
+                .addHandler(Method.POST, "/apps", createAppHandler)
+                .addHandler(Method.POST, "/app-batches", new BatchCreateHandler(createAppHandler, proxyMap, cluster, BatchCreateHandler.DEFAULT_PARALLELISM))
+                .addHandler(context("/system/samples")
+                    .addHandler(new SampleDownloadHandler(runnerSystemCache, sampleCache))
+                )
                 .addHandler(restHandler()
-                    .addResource(new RunnerResource(cluster, mapManager, settings.runnerUrlVerifier()))
-                    .addResource(new SystemResource(systemInfo, cluster, standardHttpClient))
+                    .addResource(new RunnerResource(cluster, mapManager, settings.runnerUrlVerifier(), new RunnerDrainer(cluster, proxyMap, appMigrator)))
+                    .addResource(new SystemResource(systemInfo, runnerSystemCache))
+                    .addResource(new AppJobResource(creationJobs))
+                    .addResource(new PlacementResource(new RebalancePlanner(cluster, proxyMap, appTraffic), appMigrator))
+                    .addResource(new MigrationResource(cluster, appMigrator))
+                    .addResource(new CutoverResource(cluster, appCutovers))
+                    .addResource(new SplitResource(cluster, proxyMap))
+                    .addResource(new ShadowResource(cluster, proxyMap, trafficShadower))
+                    .addResource(new HibernationResource(appHibernator))
                     .withCORS(settings.corsConfig())
                     .withOpenApiJsonUrl("/router-openapi.json")
                     .withOpenApiHtmlUrl("/router-api.html")
@@ -98,6 +168,7 @@ public class App {
                         .build())
                 )
             )
+            .addHandler(appHibernator == null ? null : new HibernationHandler(appHibernator))
             .addHandler(reverseProxy()
                 .withTotalTimeout(settings.proxyTimeoutMillis())
                 .withViaName(VIA_VALUE)
@@ -105,6 +176,7 @@ public class App {
                 .discardClientForwardedHeaders(settings.discardClientForwarded())
                 .withUriMapper(reverseProxyManager)
                 .addProxyCompleteListener(reverseProxyManager)
+                .withResponseInterceptor(reverseProxyManager)
                 .withHttpClient(settings.reverseProxyHttpClient())
             )
             .start();
@@ -124,5 +196,29 @@ public class App {
             log.info("Shutdown complete");
             muServer = null;
         }
+        if (creationJobs != null) {
+            creationJobs.stop();
+            creationJobs = null;
+        }
+        if (appHibernator != null) {
+            appHibernator.stop();
+            appHibernator = null;
+        }
+        if (runnerLeaseMonitor != null) {
+            runnerLeaseMonitor.stop();
+            runnerLeaseMonitor = null;
+        }
+        if (appEventSubscriber != null) {
+            appEventSubscriber.stop();
+            appEventSubscriber = null;
+        }
+        if (appReconciler != null) {
+            appReconciler.stop();
+            appReconciler = null;
+        }
+        if (runnerSystemCache != null) {
+            runnerSystemCache.stop();
+            runnerSystemCache = null;
+        }
     }
 }
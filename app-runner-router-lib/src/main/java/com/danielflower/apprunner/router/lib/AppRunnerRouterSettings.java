@@ -5,14 +5,22 @@ import io.muserver.MuServerBuilder;
 import io.muserver.murp.ReverseProxyBuilder;
 import io.muserver.rest.CORSConfig;
 import io.muserver.rest.CORSConfigBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.net.http.HttpClient;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import static io.muserver.Mutils.fullPath;
 
 public class AppRunnerRouterSettings {
+    private static final Logger log = LoggerFactory.getLogger(AppRunnerRouterSettings.class);
+
+    public static final String PLACEMENT_LEAST_APPS = "apps";
+    public static final String PLACEMENT_RESOURCES = "resources";
+    public static final String PLACEMENT_CONSISTENT_HASH = "hash";
 
     public static Builder appRunnerRouterSettings() {
         return new Builder();
@@ -28,6 +36,10 @@ public class AppRunnerRouterSettings {
     private final String defaultAppName;
     private final RunnerUrlVerifier runnerUrlVerifier;
     private final boolean allowUntrustedInstances;
+    private final ExecutorService blockingExecutor;
+    private final String placement;
+    private final boolean trafficAwarePlacement;
+    private final long hibernateAfterMillis;
 
     public MuServerBuilder muServerBuilder() {
         return muServerBuilder;
@@ -67,7 +79,37 @@ public class AppRunnerRouterSettings {
         return allowUntrustedInstances;
     }
 
-    private AppRunnerRouterSettings(MuServerBuilder muServerBuilder, CORSConfig corsConfig, AppRequestListener appRequestListener, HttpClient reverseProxyHttpClient, long proxyTimeoutMillis, File dataDir, boolean discardClientForwarded, String defaultAppName, RunnerUrlVerifier runnerUrlVerifier, boolean allowUntrustedInstances) {
+    /**
+     * @return The executor that the router's HTTP clients and request handlers should use, or <code>null</code>
+     * to use their defaults. This is a virtual thread executor when virtual threads are enabled.
+     */
+    public ExecutorService blockingExecutor() {
+        return blockingExecutor;
+    }
+
+    /**
+     * @return How new apps are placed on runners: one of {@link #PLACEMENT_LEAST_APPS}, {@link #PLACEMENT_RESOURCES}
+     * or {@link #PLACEMENT_CONSISTENT_HASH}
+     */
+    public String placement() {
+        return placement;
+    }
+
+    /**
+     * @return True if the placement should be adjusted to avoid runners that serve the most traffic
+     */
+    public boolean trafficAwarePlacement() {
+        return trafficAwarePlacement;
+    }
+
+    /**
+     * @return How long an app can go without requests before it is stopped, or 0 if apps are never stopped
+     */
+    public long hibernateAfterMillis() {
+        return hibernateAfterMillis;
+    }
+
+    private AppRunnerRouterSettings(MuServerBuilder muServerBuilder, CORSConfig corsConfig, AppRequestListener appRequestListener, HttpClient reverseProxyHttpClient, long proxyTimeoutMillis, File dataDir, boolean discardClientForwarded, String defaultAppName, RunnerUrlVerifier runnerUrlVerifier, boolean allowUntrustedInstances, ExecutorService blockingExecutor, String placement, boolean trafficAwarePlacement, long hibernateAfterMillis) {
         this.muServerBuilder = muServerBuilder;
         this.corsConfig = corsConfig;
         this.appRequestListener = appRequestListener;
@@ -78,6 +120,10 @@ public class AppRunnerRouterSettings {
         this.defaultAppName = defaultAppName;
         this.runnerUrlVerifier = runnerUrlVerifier;
         this.allowUntrustedInstances = allowUntrustedInstances;
+        this.blockingExecutor = blockingExecutor;
+        this.placement = placement;
+        this.trafficAwarePlacement = trafficAwarePlacement;
+        this.hibernateAfterMillis = hibernateAfterMillis;
     }
 
     @Override
@@ -91,6 +137,10 @@ public class AppRunnerRouterSettings {
             ", dataDir=" + dataDir +
             ", discardClientForwarded=" + discardClientForwarded +
             ", defaultAppName='" + defaultAppName + '\'' +
+            ", blockingExecutor=" + blockingExecutor +
+            ", placement='" + placement + '\'' +
+            ", trafficAwarePlacement=" + trafficAwarePlacement +
+            ", hibernateAfterMillis=" + hibernateAfterMillis +
             '}';
     }
 
@@ -105,6 +155,10 @@ public class AppRunnerRouterSettings {
         private String defaultAppName;
         private RunnerUrlVerifier runnerUrlVerifier;
         private boolean allowUntrustedInstances;
+        private boolean useVirtualThreads;
+        private String placement = PLACEMENT_LEAST_APPS;
+        private boolean trafficAwarePlacement;
+        private long hibernateAfterMillis;
 
         public Builder withDataDir(File dataDir) {
             this.dataDir = dataDir;
@@ -156,6 +210,55 @@ public class AppRunnerRouterSettings {
             return this;
         }
 
+        /**
+         * When running on JDK 21 or later, setting this to true makes request handlers and the HTTP clients used
+         * to talk to runners use virtual threads rather than platform thread pools. On older JDKs a warning is
+         * logged and the default pools are used.
+         * @param useVirtualThreads true to use virtual threads where available
+         * @return this builder
+         */
+        public Builder withVirtualThreads(boolean useVirtualThreads) {
+            this.useVirtualThreads = useVirtualThreads;
+            return this;
+        }
+
+        /**
+         * Sets how new apps are placed on runners. The default, {@link #PLACEMENT_LEAST_APPS}, picks the runner with
+         * the fewest apps. {@link #PLACEMENT_RESOURCES} picks the runner with the fewest apps per unit of capacity,
+         * where capacity comes from each runner's CPU count, weight and the load reported in its heartbeats.
+         * {@link #PLACEMENT_CONSISTENT_HASH} picks the runner by hashing the app name, so that routers that share no
+         * state make the same choice.
+         * @param placement The placement name
+         * @return this builder
+         */
+        public Builder withPlacement(String placement) {
+            this.placement = placement;
+            return this;
+        }
+
+        /**
+         * When true, runners hosting the apps with the most traffic are avoided when placing new apps, and the
+         * other runners are ranked down in proportion to the traffic they serve. Traffic is measured from the
+         * requests proxied by the router.
+         * @param trafficAwarePlacement true to take traffic into account when placing apps
+         * @return this builder
+         */
+        public Builder withTrafficAwarePlacement(boolean trafficAwarePlacement) {
+            this.trafficAwarePlacement = trafficAwarePlacement;
+            return this;
+        }
+
+        /**
+         * When greater than 0, apps that have had no requests through the router for this long are stopped on their
+         * runner, and started again when their next request arrives. That request waits while the app starts.
+         * @param hibernateAfterMillis The idle time in millis, or 0 to never stop apps
+         * @return this builder
+         */
+        public Builder withHibernateAfterMillis(long hibernateAfterMillis) {
+            this.hibernateAfterMillis = hibernateAfterMillis;
+            return this;
+        }
+
         public AppRunnerRouterSettings build() {
             if (dataDir == null) {
                 throw new IllegalStateException("No dataDir has been specified");
@@ -165,6 +268,18 @@ public class AppRunnerRouterSettings {
                     throw new IllegalStateException("Could not create data directory at " + fullPath(dataDir));
                 }
             }
+            if (!PLACEMENT_LEAST_APPS.equals(placement) && !PLACEMENT_RESOURCES.equals(placement) && !PLACEMENT_CONSISTENT_HASH.equals(placement)) {
+                throw new IllegalStateException("Unknown placement '" + placement + "' - must be " + PLACEMENT_LEAST_APPS + ", "
+                    + PLACEMENT_RESOURCES + " or " + PLACEMENT_CONSISTENT_HASH);
+            }
+
+            ExecutorService blockingExecutor = null;
+            if (useVirtualThreads) {
+                blockingExecutor = VirtualThreads.newVirtualThreadPerTaskExecutor().orElse(null);
+                if (blockingExecutor == null) {
+                    log.warn("Virtual threads were requested but are not available on Java " + Runtime.version() + " so platform threads will be used");
+                }
+            }
 
             long defaultIdleTimeout = 30000;
             int defaultMaxHeadersSize = 24 * 1024;
@@ -175,16 +290,23 @@ public class AppRunnerRouterSettings {
                     .withIdleTimeout(defaultIdleTimeout + 5000 /* allow the rp client to time out first to give better errors back to clients */, TimeUnit.MILLISECONDS)
                     .withMaxHeadersSize(defaultMaxHeadersSize)
                 ;
+            if (blockingExecutor != null && muServerBuilder.executor() == null) {
+                muServerBuilder.withHandlerExecutor(blockingExecutor);
+            }
             CORSConfig corsConfig = this.corsConfig != null ? this.corsConfig : CORSConfigBuilder.corsConfig().build();
 
             java.net.http.HttpClient rpHttpClient = this.reverseProxyHttpClient;
             if (rpHttpClient == null) {
-                rpHttpClient = ReverseProxyBuilder.createHttpClientBuilder(allowUntrustedInstances).build();
+                java.net.http.HttpClient.Builder rpHttpClientBuilder = ReverseProxyBuilder.createHttpClientBuilder(allowUntrustedInstances);
+                if (blockingExecutor != null) {
+                    rpHttpClientBuilder.executor(blockingExecutor);
+                }
+                rpHttpClient = rpHttpClientBuilder.build();
             }
 
             RunnerUrlVerifier runnerUrlVerifier = this.runnerUrlVerifier != null ? this.runnerUrlVerifier : new RunnerUrlVerifier() {};
 
-            return new AppRunnerRouterSettings(muServerBuilder, corsConfig, appRequestListener, rpHttpClient, proxyTimeoutMillis, dataDir, discardClientForwarded, defaultAppName, runnerUrlVerifier, allowUntrustedInstances);
+            return new AppRunnerRouterSettings(muServerBuilder, corsConfig, appRequestListener, rpHttpClient, proxyTimeoutMillis, dataDir, discardClientForwarded, defaultAppName, runnerUrlVerifier, allowUntrustedInstances, blockingExecutor, placement, trafficAwarePlacement, hibernateAfterMillis);
         }
     }
 }
@@ -0,0 +1,29 @@
+package com.danielflower.apprunner.router.lib;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Gives access to virtual threads when running on JDK 21 or later, while the library itself is still compiled for JDK 17.
+ */
+public class VirtualThreads {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+    /**
+     * @return An executor that starts a new virtual thread for each task, or empty if the current JVM does not support them
+     */
+    public static Optional<ExecutorService> newVirtualThreadPerTaskExecutor() {
+        try {
+            return Optional.of((ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null));
+        } catch (NoSuchMethodException e) {
+            return Optional.empty();
+        } catch (ReflectiveOperationException e) {
+            log.warn("Virtual threads are not usable on Java " + Runtime.version(), e);
+            return Optional.empty();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.InFlightRequests;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The progress of switching an app's requests from one copy of the app to another.
+ */
+public class AppCutover {
+
+    public enum State {VERIFYING, SWITCHED, SUCCEEDED, ROLLED_BACK, FAILED}
+
+    public final String id = UUID.randomUUID().toString();
+    public final String appName;
+    public final URI from;
+    public final URI to;
+    public final long watchMillis;
+    public final double maxErrorRate;
+    public final long createdAt = System.currentTimeMillis();
+    private volatile State state = State.VERIFYING;
+    private volatile long switchedAt;
+    private volatile long finishedAt;
+    private volatile boolean oldTargetFree;
+    private volatile int requestsLeftAfterDrain = -1;
+    private volatile InFlightRequests.Outcomes outcomes;
+    private volatile String rollbackReason;
+    private volatile String error;
+    private final CompletableFuture<AppCutover> finished = new CompletableFuture<>();
+
+    AppCutover(String appName, URI from, URI to, long watchMillis, double maxErrorRate) {
+        this.appName = appName;
+        this.from = from;
+        this.to = to;
+        this.watchMillis = watchMillis;
+        this.maxErrorRate = maxErrorRate;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    public String error() {
+        return error != null ? error : rollbackReason;
+    }
+
+    public boolean isFinished() {
+        return state == State.SUCCEEDED || state == State.ROLLED_BACK || state == State.FAILED;
+    }
+
+    /**
+     * @return True once no requests are in flight to the old copy, or the drain timed out
+     */
+    public boolean oldTargetFree() {
+        return oldTargetFree;
+    }
+
+    /**
+     * @return A future that completes when the cutover has succeeded, been rolled back, or failed
+     */
+    public CompletableFuture<AppCutover> whenFinished() {
+        return finished;
+    }
+
+    void switched(InFlightRequests.Outcomes outcomes) {
+        this.outcomes = outcomes;
+        switchedAt = System.currentTimeMillis();
+        state = State.SWITCHED;
+    }
+
+    void drained(int remaining) {
+        if (state == State.ROLLED_BACK) {
+            return; // the old copy is serving requests again
+        }
+        requestsLeftAfterDrain = remaining;
+        oldTargetFree = true;
+    }
+
+    void rolledBack(String reason) {
+        rollbackReason = reason;
+        state = State.ROLLED_BACK;
+    }
+
+    void succeeded() {
+        state = State.SUCCEEDED;
+    }
+
+    void failed(String message) {
+        error = message;
+        state = State.FAILED;
+    }
+
+    void finish() {
+        finishedAt = System.currentTimeMillis();
+        finished.complete(this);
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject()
+            .put("id", id)
+            .put("url", "/api/v1/cutovers/" + id)
+            .put("appName", appName)
+            .put("from", from.toString())
+            .put("to", to.toString())
+            .put("state", state.name().toLowerCase())
+            .put("watchSeconds", watchMillis / 1000.0)
+            .put("maxErrorRate", maxErrorRate)
+            .put("createdAt", createdAt)
+            .put("oldTargetFree", oldTargetFree);
+        if (switchedAt > 0) {
+            json.put("switchedAt", switchedAt);
+        }
+        if (finishedAt > 0) {
+            json.put("finishedAt", finishedAt);
+        }
+        if (requestsLeftAfterDrain >= 0) {
+            json.put("requestsLeftAfterDrain", requestsLeftAfterDrain);
+        }
+        InFlightRequests.Outcomes watched = outcomes;
+        if (watched != null) {
+            json.put("newTarget", new JSONObject()
+                .put("requests", watched.requests())
+                .put("errors", watched.errors())
+                .put("errorRate", watched.errorRate()));
+        }
+        if (rollbackReason != null) {
+            json.put("rollbackReason", rollbackReason);
+        }
+        if (error != null) {
+            json.put("error", error);
+        }
+        return json;
+    }
+}
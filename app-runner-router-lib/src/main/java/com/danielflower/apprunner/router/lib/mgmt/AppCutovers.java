@@ -0,0 +1,234 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.InFlightRequests;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Switches an app's requests from one copy of the app to another copy on a different runner in one step.
+ * <p>
+ * The old copy is woken if it is hibernating and the new copy is checked to be available first. After the switch, requests already in flight to the old copy are
+ * given time to finish before the old copy is reported as free, and the new copy's responses are watched: if too many
+ * of them are server errors, requests are switched back to the old copy. Both copies are pinned in the proxy map for
+ * the duration so that loading either runner's apps cannot undo the switch.
+ * <p>
+ * When the losing copy is removed (as when moving an app), it is first given the same time for its requests to
+ * finish, and the pin is released afterwards. Otherwise both copies are
+ * left running and the app stays pinned to the winner until it is deleted or cut over again.
+ */
+public class AppCutovers {
+    private static final Logger log = LoggerFactory.getLogger(AppCutovers.class);
+
+    public static final Duration DEFAULT_DRAIN_TIMEOUT = Duration.ofSeconds(60);
+    public static final Duration DEFAULT_WATCH = Duration.ofSeconds(30);
+    public static final double DEFAULT_MAX_ERROR_RATE = 0.1;
+    public static final int DEFAULT_MIN_REQUESTS = 20;
+    public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(1);
+    static final int MAX_KEPT = 200;
+    private static final Duration CALL_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ProxyMap proxyMap;
+    private final HttpClient client;
+    private final InFlightRequests inFlightRequests;
+    private final Duration drainTimeout;
+    private final Duration watch;
+    private final double maxErrorRate;
+    private final int minRequests;
+    private final long pollMillis;
+    private final AppHibernator hibernator;
+    private final Map<String, AppCutover> active = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, AppCutover> cutovers = new LinkedHashMap<>();
+
+    /**
+     * @param drainTimeout How long requests in flight to the old copy have to finish
+     * @param watch How long the new copy's responses are watched for by default
+     * @param maxErrorRate The default fraction of the new copy's responses that can be server errors before it is rolled back
+     * @param minRequests The number of responses the new copy must have sent before its error rate is judged
+     * @param pollInterval How often the error rate is checked
+     * @param hibernator Used to start the old copy first if it is hibernating, so that it can take requests back on a
+     *                   roll back, or null if apps are not hibernated
+     */
+    public AppCutovers(ProxyMap proxyMap, HttpClient client, InFlightRequests inFlightRequests, Duration drainTimeout,
+                       Duration watch, double maxErrorRate, int minRequests, Duration pollInterval, AppHibernator hibernator) {
+        this.proxyMap = proxyMap;
+        this.client = client;
+        this.inFlightRequests = inFlightRequests;
+        this.drainTimeout = drainTimeout;
+        this.watch = watch;
+        this.maxErrorRate = maxErrorRate;
+        this.minRequests = minRequests;
+        this.pollMillis = pollInterval.toMillis();
+        this.hibernator = hibernator;
+    }
+
+    /**
+     * Cuts over with the default watch time and error rate.
+     */
+    public AppCutover cutover(String appName, URI newUrl, boolean removeLoser) {
+        return cutover(appName, newUrl, watch, maxErrorRate, removeLoser);
+    }
+
+    /**
+     * Starts switching the app to the copy at the given URL.
+     * @param watch How long to watch the new copy for errors, or zero to not roll back
+     * @param removeLoser True to delete the copy that does not end up serving requests
+     * @throws IllegalArgumentException If the app is not in the proxy map or is already at the URL
+     * @throws IllegalStateException If the app is already being cut over
+     */
+    public AppCutover cutover(String appName, URI newUrl, Duration watch, double maxErrorRate, boolean removeLoser) {
+        URI oldUrl = proxyMap.get(appName);
+        if (oldUrl == null) {
+            throw new IllegalArgumentException("There is no app called " + appName);
+        }
+        if (oldUrl.getAuthority().equals(newUrl.getAuthority())) {
+            throw new IllegalArgumentException(appName + " is already at " + newUrl);
+        }
+        AppCutover cutover = new AppCutover(appName, oldUrl, newUrl, watch.toMillis(), maxErrorRate);
+        if (active.putIfAbsent(appName, cutover) != null) {
+            throw new IllegalStateException(appName + " is already being cut over");
+        }
+        synchronized (this) {
+            cutovers.put(cutover.id, cutover);
+            Iterator<AppCutover> oldest = cutovers.values().iterator();
+            while (cutovers.size() > MAX_KEPT && oldest.hasNext()) {
+                if (oldest.next().isFinished()) {
+                    oldest.remove();
+                }
+            }
+        }
+        log.info("Cutting over " + appName + " from " + oldUrl + " to " + newUrl);
+        run(cutover, removeLoser);
+        return cutover;
+    }
+
+    public synchronized Optional<AppCutover> get(String id) {
+        return Optional.ofNullable(cutovers.get(id));
+    }
+
+    /**
+     * @return The most recent cutovers, newest first
+     */
+    public synchronized List<AppCutover> all() {
+        List<AppCutover> all = new ArrayList<>(cutovers.values());
+        Collections.reverse(all);
+        return all;
+    }
+
+    private void run(AppCutover cutover, boolean removeLoser) {
+        String appName = cutover.appName;
+        CompletableFuture<Void> awake = hibernator == null ? CompletableFuture.completedFuture(null) : hibernator.wake(appName);
+        awake.thenCompose(ignored -> send(HttpRequest.newBuilder(cutover.to.resolve("/api/v1/apps/" + appName)).GET()))
+            .thenCompose(resp -> {
+                if (resp.statusCode() != 200 || !new JSONObject(resp.body()).optBoolean("available", true)) {
+                    throw new IllegalStateException("The new copy is not available: " + resp.statusCode() + " " + resp.body());
+                }
+                InFlightRequests.Outcomes outcomes = inFlightRequests.watch(appName, cutover.to);
+                proxyMap.pin(appName, cutover.to);
+                cutover.switched(outcomes);
+                log.info("Switched " + appName + " to " + cutover.to);
+                CompletableFuture<Void> drained = inFlightRequests.awaitDrained(appName, cutover.from, drainTimeout)
+                    .thenAccept(done -> {
+                        int remaining = inFlightRequests.count(appName, cutover.from);
+                        if (!done) {
+                            log.warn("Gave up waiting for " + remaining + " requests to " + appName + " at " + cutover.from + " to finish");
+                        }
+                        cutover.drained(remaining);
+                    });
+                CompletableFuture<Boolean> healthy = new CompletableFuture<>();
+                watch(cutover, outcomes, System.currentTimeMillis() + cutover.watchMillis, healthy);
+                return healthy
+                    .whenComplete((result, error) -> inFlightRequests.unwatch(appName, cutover.to, outcomes))
+                    .thenCompose(ok -> ok ? drained.thenApply(ignored -> true) : rolledBack(cutover, removeLoser));
+            })
+            .thenCompose(healthy -> {
+                if (healthy) {
+                    cutover.succeeded();
+                }
+                return removeLoser
+                    ? delete(appName, healthy ? cutover.from : cutover.to)
+                    : CompletableFuture.completedFuture(false);
+            })
+            .handle((deleted, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    log.warn("Could not cut over " + appName + " to " + cutover.to + ": " + cause.getMessage());
+                    cutover.failed(cause.getMessage());
+                    if (removeLoser) {
+                        delete(appName, cutover.to);
+                    }
+                } else if (deleted) {
+                    proxyMap.unpin(appName);
+                }
+                active.remove(appName, cutover);
+                cutover.finish();
+                return null;
+            });
+    }
+
+    /**
+     * @return A future that completes with false once the requests still in flight to the new copy have finished, if
+     * it is going to be deleted, so that the copy is not deleted while it is still serving them
+     */
+    private CompletableFuture<Boolean> rolledBack(AppCutover cutover, boolean removeLoser) {
+        if (!removeLoser) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return inFlightRequests.awaitDrained(cutover.appName, cutover.to, drainTimeout)
+            .thenApply(done -> {
+                if (!done) {
+                    log.warn("Gave up waiting for " + inFlightRequests.count(cutover.appName, cutover.to) + " requests to "
+                        + cutover.appName + " at " + cutover.to + " to finish before deleting it");
+                }
+                return false;
+            });
+    }
+
+    private void watch(AppCutover cutover, InFlightRequests.Outcomes outcomes, long until, CompletableFuture<Boolean> healthy) {
+        if (outcomes.requests() >= minRequests && outcomes.errorRate() > cutover.maxErrorRate) {
+            String reason = String.format("%d of %d responses from the new copy were server errors", outcomes.errors(), outcomes.requests());
+            proxyMap.pin(cutover.appName, cutover.from);
+            cutover.rolledBack(reason);
+            log.warn("Rolled back " + cutover.appName + " to " + cutover.from + " because " + reason);
+            healthy.complete(false);
+        } else if (System.currentTimeMillis() >= until) {
+            healthy.complete(true);
+        } else {
+            CompletableFuture.delayedExecutor(Math.min(pollMillis, Math.max(1, until - System.currentTimeMillis())), TimeUnit.MILLISECONDS)
+                .execute(() -> watch(cutover, outcomes, until, healthy));
+        }
+    }
+
+    /**
+     * @return A future that completes with true if the copy was deleted. The pin is kept if the delete fails, so that
+     * the copy that was not deleted is not routed to after a reload.
+     */
+    private CompletableFuture<Boolean> delete(String appName, URI copy) {
+        log.info("Deleting the copy of " + appName + " at " + copy);
+        return send(HttpRequest.newBuilder(copy.resolve("/api/v1/apps/" + appName)).DELETE())
+            .handle((resp, error) -> {
+                if (error != null || resp.statusCode() / 100 != 2) {
+                    log.warn("Could not delete the copy of " + appName + " at " + copy + ". It will need to be deleted manually. "
+                        + (error != null ? error.getMessage() : resp.statusCode() + " " + resp.body()));
+                    return false;
+                }
+                return true;
+            });
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request) {
+        return client.sendAsync(request.timeout(CALL_TIMEOUT).build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,328 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Keeps a server-sent events stream open to each runner at <code>/api/v1/apps/events</code> and applies app
+ * changes to the proxy map as they happen.
+ * <p>
+ * Each event has a data value like <code>{"name":"my-app"}</code>, an event type of <code>app-created</code>,
+ * <code>app-updated</code> or <code>app-deleted</code>, and an ID which increments by one for each event. After
+ * connecting, and whenever an ID is skipped, the runner's full app list is reloaded, and reloaded again (up to a few
+ * times) if events arrive while it loads. Streams that close are
+ * reconnected with a back-off, and runners that do not support the stream are left to the {@link AppReconciler},
+ * which is told about each runner's connection state so that it can poll connected runners rarely.
+ */
+public class AppEventSubscriber {
+    private static final Logger log = LoggerFactory.getLogger(AppEventSubscriber.class);
+
+    private static final long MIN_RECONNECT_MILLIS = 1000;
+    private static final long MAX_RECONNECT_MILLIS = 30000;
+    private static final long UNSUPPORTED_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_RESYNC_ATTEMPTS = 5;
+
+    private final Cluster cluster;
+    private final MapManager mapManager;
+    private final ProxyMap proxyMap;
+    private final HttpClient httpClient;
+    private final AppReconciler reconciler;
+    private final long idleTimeoutMillis;
+    private final Map<String, Connection> connections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "app-event-subscriber");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param reconciler The reconciler to tell about connection changes, or null
+     * @param idleTimeout The time after which a stream with no events or comments on it is assumed to be dead
+     */
+    public AppEventSubscriber(Cluster cluster, MapManager mapManager, ProxyMap proxyMap, HttpClient httpClient, AppReconciler reconciler, Duration idleTimeout) {
+        this.cluster = cluster;
+        this.mapManager = mapManager;
+        this.proxyMap = proxyMap;
+        this.httpClient = httpClient;
+        this.reconciler = reconciler;
+        this.idleTimeoutMillis = idleTimeout.toMillis();
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::maintainConnections, 0, 200, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        for (Connection connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * @return True if every one of the given runners has a live event stream, meaning the proxy map is current
+     */
+    public boolean allConnected(List<Runner> runners) {
+        for (Runner runner : runners) {
+            if (!isConnected(runner)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the runner has a live event stream, meaning its apps in the proxy map are current
+     */
+    public boolean isConnected(Runner runner) {
+        Connection connection = connections.get(runner.id);
+        return connection != null && connection.live;
+    }
+
+    private void maintainConnections() {
+        try {
+            long now = System.currentTimeMillis();
+            Set<String> current = new HashSet<>();
+            for (Runner runner : cluster.getAvailableRunners()) {
+                current.add(runner.id);
+                Connection connection = connections.computeIfAbsent(runner.id, id -> new Connection(runner));
+                if ((connection.live || connection.connecting) && now - connection.lastActivity > idleTimeoutMillis) {
+                    log.info("No events from " + runner.id + " for " + idleTimeoutMillis + "ms so reconnecting");
+                    connection.disconnected(MIN_RECONNECT_MILLIS);
+                }
+                if (!connection.connecting && !connection.live && now >= connection.nextAttemptAt) {
+                    connection.connect();
+                }
+            }
+            for (String id : new HashSet<>(connections.keySet())) {
+                if (!current.contains(id)) {
+                    Connection removed = connections.remove(id);
+                    if (removed != null) {
+                        removed.close();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.warn("Error while maintaining runner event streams", e);
+        }
+    }
+
+    private class Connection implements Flow.Subscriber<String> {
+        private final Runner runner;
+        private final URI uri;
+        private volatile boolean connecting;
+        private volatile boolean live;
+        private volatile long lastActivity;
+        private volatile long nextAttemptAt;
+        private volatile long reconnectMillis = MIN_RECONNECT_MILLIS;
+        private volatile Flow.Subscription subscription;
+        private volatile int attempt;
+        private Long lastEventID;
+        private String eventID;
+        private String eventType;
+        private volatile long eventsApplied;
+        private final StringBuilder data = new StringBuilder();
+
+        Connection(Runner runner) {
+            this.runner = runner;
+            this.uri = runner.url.resolve("/api/v1/apps/events");
+        }
+
+        void connect() {
+            int thisAttempt = ++attempt;
+            connecting = true;
+            lastActivity = System.currentTimeMillis();
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                .header("Accept", "text/event-stream")
+                .build();
+            httpClient.sendAsync(request, info -> info.statusCode() == 200
+                    ? HttpResponse.BodySubscribers.fromLineSubscriber(this)
+                    : HttpResponse.BodySubscribers.replacing(null))
+                .whenComplete((resp, error) -> {
+                    if (thisAttempt != attempt) {
+                        return; // already given up on
+                    }
+                    connecting = false;
+                    if (error != null) {
+                        log.info("Event stream from " + runner.id + " failed: " + error.getMessage());
+                        disconnected(reconnectMillis);
+                        reconnectMillis = Math.min(MAX_RECONNECT_MILLIS, reconnectMillis * 2);
+                    } else if (resp.statusCode() == 404) {
+                        log.info(runner.id + " does not support app events so its apps will be polled");
+                        disconnected(UNSUPPORTED_RETRY_MILLIS);
+                    } else if (resp.statusCode() != 200) {
+                        log.info("Got " + resp.statusCode() + " from " + uri);
+                        disconnected(reconnectMillis);
+                        reconnectMillis = Math.min(MAX_RECONNECT_MILLIS, reconnectMillis * 2);
+                    } else {
+                        log.info("Event stream from " + runner.id + " ended");
+                        disconnected(MIN_RECONNECT_MILLIS);
+                    }
+                });
+        }
+
+        void disconnected(long retryInMillis) {
+            attempt++;
+            connecting = false;
+            Flow.Subscription sub = subscription;
+            subscription = null;
+            if (sub != null) {
+                sub.cancel();
+            }
+            if (live && reconciler != null) {
+                reconciler.setPushConnected(runner.id, false);
+            }
+            live = false;
+            nextAttemptAt = System.currentTimeMillis() + retryInMillis;
+        }
+
+        void close() {
+            disconnected(0);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            synchronized (this) {
+                lastEventID = null;
+                eventID = null;
+                eventType = null;
+                data.setLength(0);
+            }
+            lastActivity = System.currentTimeMillis();
+            connecting = false;
+            live = true;
+            reconnectMillis = MIN_RECONNECT_MILLIS;
+            log.info("Subscribed to app events from " + runner.id);
+            if (reconciler != null) {
+                reconciler.setPushConnected(runner.id, true);
+            }
+            resync();
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public synchronized void onNext(String line) {
+            lastActivity = System.currentTimeMillis();
+            if (line.isEmpty()) {
+                if (data.length() > 0) {
+                    dispatch(eventID, eventType, data.toString());
+                }
+                eventID = null;
+                eventType = null;
+                data.setLength(0);
+            } else if (line.startsWith(":")) {
+                // a comment, used by runners to keep the connection alive
+            } else {
+                int colon = line.indexOf(':');
+                String field = colon == -1 ? line : line.substring(0, colon);
+                String value = colon == -1 ? "" : line.substring(colon + 1);
+                if (value.startsWith(" ")) {
+                    value = value.substring(1);
+                }
+                switch (field) {
+                    case "id":
+                        eventID = value;
+                        break;
+                    case "event":
+                        eventType = value;
+                        break;
+                    case "data":
+                        if (data.length() > 0) {
+                            data.append('\n');
+                        }
+                        data.append(value);
+                        break;
+                }
+            }
+        }
+
+        private void dispatch(String id, String type, String data) {
+            boolean missedEvents = false;
+            if (id != null) {
+                try {
+                    long eventID = Long.parseLong(id);
+                    if (lastEventID != null && eventID != lastEventID + 1) {
+                        log.info("Missed app events from " + runner.id + " (went from " + lastEventID + " to " + eventID + ") so reloading its apps");
+                        missedEvents = true;
+                    }
+                    lastEventID = eventID;
+                } catch (NumberFormatException e) {
+                    log.warn("Ignoring non-numeric event ID " + id + " from " + runner.id);
+                }
+            }
+            apply(type, data);
+            if (missedEvents) {
+                resync();
+            }
+        }
+
+        private void apply(String type, String data) {
+            String name;
+            try {
+                name = new JSONObject(data).getString("name");
+            } catch (Exception e) {
+                log.warn("Could not parse app event from " + runner.id + ": " + data);
+                return;
+            }
+            if ("app-deleted".equals(type)) {
+                URI existing = proxyMap.get(name);
+                if (existing != null && existing.getAuthority().equals(runner.url.getAuthority())) {
+                    proxyMap.remove(name);
+                }
+            } else if ("app-created".equals(type) || "app-updated".equals(type)) {
+                proxyMap.add(name, runner.url.resolve("/" + name));
+            } else {
+                return;
+            }
+            eventsApplied++;
+            runner.refreshRunnerCountCache(proxyMap.getAll());
+        }
+
+        private void resync() {
+            resync(1);
+        }
+
+        private void resync(int attempt) {
+            long eventsBefore = eventsApplied;
+            mapManager.loadRunnerAppNamesAsync(null, runner)
+                .whenComplete((names, error) -> {
+                    if (error != null) {
+                        log.warn("Could not reload apps from " + runner.id + " after subscribing to its events", error);
+                    } else if (eventsApplied != eventsBefore && live) {
+                        // the loaded list may be older than the events applied while waiting for it
+                        if (attempt < MAX_RESYNC_ATTEMPTS) {
+                            resync(attempt + 1);
+                        } else {
+                            log.info("Apps on " + runner.id + " kept changing while reloading them " + attempt
+                                + " times so leaving any differences to the reconciler");
+                        }
+                    }
+                });
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            // reported by the sendAsync future
+        }
+
+        @Override
+        public void onComplete() {
+            // reported by the sendAsync future
+        }
+    }
+}
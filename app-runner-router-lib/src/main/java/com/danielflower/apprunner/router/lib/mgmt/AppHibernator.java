@@ -0,0 +1,317 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.InFlightRequests;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stops apps that have not had a request for a while so that they do not hold memory on their runner, and starts
+ * them again when the next request arrives.
+ * <p>
+ * A hibernating app stays in the proxy map. Requests for it wait, up to a limit on how many can wait at once, while
+ * the app is deployed on its runner again and becomes available, and are then proxied as normal. Apps that are
+ * pinned (because they are being moved, cut over or split) or that have requests in flight are not hibernated.
+ * <p>
+ * Waiting requests block their threads, so the number that can wait is kept low and requests beyond it are
+ * rejected. The hibernating apps are saved to a file so that they are still started on demand after the router
+ * restarts. A hibernation is forgotten if the app is deleted or moved to another runner, as the stopped copy is no
+ * longer the one that requests go to.
+ */
+public class AppHibernator {
+    private static final Logger log = LoggerFactory.getLogger(AppHibernator.class);
+
+    public static final Duration DEFAULT_CHECK_INTERVAL = Duration.ofMinutes(1);
+    public static final Duration DEFAULT_WAKE_TIMEOUT = Duration.ofMinutes(2);
+    public static final int DEFAULT_MAX_WAITING = 100;
+    public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(1);
+    private static final Duration CALL_TIMEOUT = Duration.ofSeconds(30);
+
+    private final ProxyMap proxyMap;
+    private final HttpClient client;
+    private final InFlightRequests inFlightRequests;
+    private final long idleMillis;
+    private final Duration wakeTimeout;
+    private final int maxWaiting;
+    private final long pollMillis;
+    private final File stateFile;
+    private final Map<String, AtomicLong> lastAccess = new ConcurrentHashMap<>();
+    private final Map<String, Hibernation> hibernations = new ConcurrentHashMap<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "app-hibernator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param inFlightRequests Used to avoid stopping apps with requests in progress, or null to not check
+     * @param idleTimeout How long an app can go without requests before it is stopped
+     * @param wakeTimeout How long a request waits for its app to be started before it is failed
+     * @param maxWaiting The most requests that can wait for apps to start at once, across all apps
+     * @param pollInterval How often a starting app is checked for availability
+     * @param stateFile The file the hibernating apps are saved to and loaded from, or null to not save them
+     */
+    public AppHibernator(ProxyMap proxyMap, HttpClient client, InFlightRequests inFlightRequests, Duration idleTimeout,
+                         Duration wakeTimeout, int maxWaiting, Duration pollInterval, File stateFile) throws IOException {
+        this.proxyMap = proxyMap;
+        this.client = client;
+        this.inFlightRequests = inFlightRequests;
+        this.idleMillis = idleTimeout.toMillis();
+        this.wakeTimeout = wakeTimeout;
+        this.maxWaiting = maxWaiting;
+        this.pollMillis = pollInterval.toMillis();
+        this.stateFile = stateFile;
+        if (stateFile != null && stateFile.isFile()) {
+            JSONObject saved = new JSONObject(FileUtils.readFileToString(stateFile, StandardCharsets.UTF_8));
+            for (String appName : saved.keySet()) {
+                Hibernation hibernation = new Hibernation(URI.create(saved.getString(appName)));
+                hibernation.stopped.complete(null);
+                hibernations.put(appName, hibernation);
+            }
+            log.info("Loaded " + hibernations.size() + " hibernating apps from " + stateFile.getCanonicalPath());
+        }
+    }
+
+    public void start(Duration checkInterval) {
+        long millis = checkInterval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::hibernateIdleApps, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Records a request to an app.
+     */
+    public void touched(String appName) {
+        if (proxyMap.get(appName) != null) {
+            lastAccess.computeIfAbsent(appName, name -> new AtomicLong()).set(System.currentTimeMillis());
+        }
+    }
+
+    public boolean isHibernating(String appName) {
+        return hibernations.containsKey(appName);
+    }
+
+    /**
+     * Starts the app if it is hibernating and blocks until it is available.
+     * @throws RejectedExecutionException If too many requests are already waiting for apps to start
+     * @throws TimeoutException If the app did not start within the wake timeout
+     * @throws ExecutionException If the app could not be started
+     */
+    public void awaitAwake(String appName) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!isHibernating(appName)) {
+            return;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            throw new RejectedExecutionException("There are already " + maxWaiting + " requests waiting for apps to start");
+        }
+        try {
+            wake(appName).get(wakeTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return A future that completes when the app is available, which is immediately if it is not hibernating
+     */
+    public CompletableFuture<Void> wake(String appName) {
+        Hibernation hibernation = hibernations.get(appName);
+        if (hibernation == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (!isCurrent(appName, hibernation)) {
+            forget(appName, hibernation);
+            return CompletableFuture.completedFuture(null);
+        }
+        synchronized (hibernation) {
+            if (hibernation.wake != null) {
+                return hibernation.wake;
+            }
+            CompletableFuture<Void> wake = new CompletableFuture<>();
+            hibernation.wake = wake;
+            log.info("Waking " + appName + " at " + hibernation.url);
+            hibernation.stopped
+                .thenCompose(ignored -> hibernations.get(appName) == hibernation && isCurrent(appName, hibernation)
+                    ? deployAndAwait(appName, hibernation.url) : CompletableFuture.completedFuture(null))
+                .whenComplete((ignored, error) -> {
+                    if (error == null) {
+                        touched(appName);
+                        if (hibernations.remove(appName, hibernation)) {
+                            save();
+                        }
+                        log.info(appName + " is awake");
+                        wake.complete(null);
+                    } else {
+                        log.warn("Could not wake " + appName + ": " + error.getMessage());
+                        synchronized (hibernation) {
+                            if (hibernation.wake == wake) {
+                                hibernation.wake = null; // the next request tries again
+                            }
+                        }
+                        wake.completeExceptionally(error);
+                    }
+                });
+            return wake;
+        }
+    }
+
+    /**
+     * Stops the apps that have been idle for longer than the idle timeout. This is called periodically once started.
+     */
+    void hibernateIdleApps() {
+        try {
+            long now = System.currentTimeMillis();
+            Map<String, URI> all = proxyMap.getAll();
+            lastAccess.keySet().retainAll(all.keySet());
+            for (Map.Entry<String, Hibernation> hibernating : hibernations.entrySet()) {
+                if (!isCurrent(hibernating.getKey(), hibernating.getValue())) {
+                    forget(hibernating.getKey(), hibernating.getValue());
+                }
+            }
+            for (Map.Entry<String, URI> entry : all.entrySet()) {
+                String appName = entry.getKey();
+                AtomicLong accessed = lastAccess.computeIfAbsent(appName, name -> new AtomicLong(now)); // the idle clock starts when the app is first seen
+                long accessedAt = accessed.get();
+                if (now - accessedAt < idleMillis || isHibernating(appName) || proxyMap.isPinned(appName)
+                    || (inFlightRequests != null && inFlightRequests.count(appName, entry.getValue()) > 0)) {
+                    continue;
+                }
+                hibernate(appName, entry.getValue(), accessed, accessedAt);
+            }
+        } catch (Exception e) {
+            log.warn("Error while hibernating idle apps", e);
+        }
+    }
+
+    /**
+     * @return False if the app has been deleted or now goes to a different runner than the one it was stopped on
+     */
+    private boolean isCurrent(String appName, Hibernation hibernation) {
+        URI current = proxyMap.get(appName);
+        return current != null && current.getAuthority().equals(hibernation.url.getAuthority());
+    }
+
+    private void forget(String appName, Hibernation hibernation) {
+        if (hibernations.remove(appName, hibernation)) {
+            log.info("No longer treating " + appName + " as hibernating as it is no longer at " + hibernation.url);
+            save();
+        }
+    }
+
+    /**
+     * @param accessedAt The last access time that the app was judged idle from
+     */
+    private void hibernate(String appName, URI url, AtomicLong accessed, long accessedAt) {
+        Hibernation hibernation = new Hibernation(url);
+        if (hibernations.putIfAbsent(appName, hibernation) != null) {
+            return;
+        }
+        if (accessed.get() != accessedAt) {
+            // a request arrived before it could see that the app is hibernating, so it may be on its way to the app
+            hibernations.remove(appName, hibernation);
+            return;
+        }
+        save(); // before stopping it, so that it is still started on demand if the router restarts while it stops
+        log.info("Stopping " + appName + " at " + url + " because it has had no requests for " + (idleMillis / 1000) + " seconds");
+        send(HttpRequest.newBuilder(url.resolve("/api/v1/apps/" + appName + "/stop")).PUT(HttpRequest.BodyPublishers.noBody()), CALL_TIMEOUT)
+            .whenComplete((resp, error) -> {
+                if (error != null || resp.statusCode() / 100 != 2) {
+                    log.warn("Could not stop " + appName + " so it will be left running: " + (error != null ? error.getMessage() : resp.statusCode() + " " + resp.body()));
+                    if (hibernations.remove(appName, hibernation)) {
+                        save();
+                    }
+                }
+                hibernation.stopped.complete(null);
+            });
+    }
+
+    private CompletableFuture<Void> deployAndAwait(String appName, URI url) {
+        long giveUpAt = System.currentTimeMillis() + wakeTimeout.toMillis();
+        return send(HttpRequest.newBuilder(url.resolve("/api/v1/apps/" + appName + "/deploy")).POST(HttpRequest.BodyPublishers.noBody()), wakeTimeout)
+            .thenCompose(resp -> {
+                if (resp.statusCode() / 100 != 2) {
+                    throw new IllegalStateException("Could not start the app: " + resp.statusCode() + " " + resp.body());
+                }
+                return awaitAvailable(appName, url, giveUpAt);
+            });
+    }
+
+    private CompletableFuture<Void> awaitAvailable(String appName, URI url, long giveUpAt) {
+        return send(HttpRequest.newBuilder(url.resolve("/api/v1/apps/" + appName)).GET(), CALL_TIMEOUT)
+            .thenCompose(resp -> {
+                if (resp.statusCode() == 200 && new JSONObject(resp.body()).optBoolean("available", true)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (System.currentTimeMillis() >= giveUpAt) {
+                    throw new IllegalStateException("The app did not become available in time");
+                }
+                return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(pollMillis, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> awaitAvailable(appName, url, giveUpAt));
+            });
+    }
+
+    /**
+     * @return The time of the last request to each app since the router started, in millis since the epoch
+     */
+    public JSONObject toJSON() {
+        JSONObject apps = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : lastAccess.entrySet()) {
+            apps.put(entry.getKey(), new JSONObject()
+                .put("lastAccess", entry.getValue().get())
+                .put("hibernating", isHibernating(entry.getKey())));
+        }
+        return new JSONObject()
+            .put("idleTimeoutSeconds", idleMillis / 1000)
+            .put("waitingRequests", waiting.get())
+            .put("apps", apps);
+    }
+
+    private synchronized void save() {
+        if (stateFile == null) {
+            return;
+        }
+        JSONObject state = new JSONObject();
+        for (Map.Entry<String, Hibernation> entry : hibernations.entrySet()) {
+            state.put(entry.getKey(), entry.getValue().url.toString());
+        }
+        try {
+            FileUtils.write(stateFile, state.toString(4), "UTF-8", false);
+        } catch (IOException e) {
+            log.warn("Could not save the hibernating apps to " + stateFile, e);
+        }
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request, Duration timeout) {
+        return client.sendAsync(request.timeout(timeout).build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static class Hibernation {
+        private final URI url;
+        private final CompletableFuture<Void> stopped = new CompletableFuture<>();
+        private CompletableFuture<Void> wake; // guarded by this
+
+        private Hibernation(URI url) {
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Finds apps that are not in the proxy map by asking each available runner for them, so that apps created
+ * directly on a runner can be reached before the next refresh.
+ * <p>
+ * Concurrent lookups for the same name share one set of runner calls. Names that every runner says it does not
+ * have are remembered for a while in a size-limited cache so that requests for random paths do not cause any
+ * runner calls.
+ * <p>
+ * As each lookup blocks a request thread, the number of callers waiting at once is capped; once the cap is reached
+ * other misses are treated as not found straight away rather than tying up more threads.
+ */
+public class AppLocator {
+    private static final Logger log = LoggerFactory.getLogger(AppLocator.class);
+
+    public static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(2);
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofSeconds(30);
+    public static final int DEFAULT_MAX_NEGATIVE_ENTRIES = 10000;
+    public static final int DEFAULT_MAX_WAITING = 50;
+
+    private static final Pattern APP_NAME = Pattern.compile("[A-Za-z0-9_-]{1,100}");
+
+    private final Cluster cluster;
+    private final ProxyMap proxyMap;
+    private final HttpClient httpClient;
+    private final long deadlineMillis;
+    private final long negativeTtlMillis;
+    private final int maxWaiting;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final Map<String, CompletableFuture<URI>> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, Long> missing;
+
+    /**
+     * @param deadline The longest time a request will wait for runners to answer
+     * @param negativeTtl How long a name that no runner has is remembered as missing
+     * @param maxNegativeEntries The most missing names to remember, after which the oldest are forgotten
+     * @param maxWaiting The most requests that can wait for lookups at once, across all names
+     */
+    public AppLocator(Cluster cluster, ProxyMap proxyMap, HttpClient httpClient, Duration deadline, Duration negativeTtl, int maxNegativeEntries, int maxWaiting) {
+        this.cluster = cluster;
+        this.proxyMap = proxyMap;
+        this.httpClient = httpClient;
+        this.deadlineMillis = deadline.toMillis();
+        this.negativeTtlMillis = negativeTtl.toMillis();
+        this.maxWaiting = maxWaiting;
+        this.missing = new LinkedHashMap<>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxNegativeEntries;
+            }
+        };
+    }
+
+    /**
+     * Looks for the app on the available runners, blocking for up to the deadline. If found, it is added to the
+     * proxy map.
+     * @return The URL of the app, or null if no runner has it, the runners did not answer in time, or too many
+     * requests are already waiting for lookups
+     */
+    public URI locate(String appName) {
+        if (!APP_NAME.matcher(appName).matches() || isKnownMissing(appName)) {
+            return null;
+        }
+        List<Runner> runners = cluster.getAvailableRunners();
+        if (runners.isEmpty()) {
+            return null;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            log.debug("Not looking for " + appName + " as " + maxWaiting + " requests are already waiting for lookups");
+            return null;
+        }
+        try {
+            return await(appName, runners);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    private URI await(String appName, List<Runner> runners) {
+        CompletableFuture<URI> lookup = new CompletableFuture<>();
+        CompletableFuture<URI> existing = inFlight.putIfAbsent(appName, lookup);
+        if (existing == null) {
+            startLookup(appName, runners, lookup);
+        } else {
+            lookup = existing;
+        }
+        try {
+            return lookup.get(deadlineMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | ExecutionException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * @return The number of names currently remembered as missing
+     */
+    public int missingCount() {
+        synchronized (missing) {
+            return missing.size();
+        }
+    }
+
+    private boolean isKnownMissing(String appName) {
+        synchronized (missing) {
+            Long expiresAt = missing.get(appName);
+            if (expiresAt == null) {
+                return false;
+            }
+            if (expiresAt < System.currentTimeMillis()) {
+                missing.remove(appName);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private void startLookup(String appName, List<Runner> runners, CompletableFuture<URI> lookup) {
+        AtomicInteger remaining = new AtomicInteger(runners.size());
+        AtomicBoolean found = new AtomicBoolean(false);
+        AtomicBoolean unanswered = new AtomicBoolean(false);
+        for (Runner runner : runners) {
+            HttpRequest request = HttpRequest.newBuilder(runner.url.resolve("/api/v1/apps/" + appName))
+                .timeout(Duration.ofMillis(deadlineMillis))
+                .build();
+            httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .orTimeout(deadlineMillis, TimeUnit.MILLISECONDS)
+                .whenComplete((resp, error) -> {
+                    if (error == null && resp.statusCode() == 200) {
+                        if (found.compareAndSet(false, true)) {
+                            URI url = runner.url.resolve("/" + appName);
+                            log.info("Found " + appName + " on " + runner.id + " after a proxy map miss");
+                            proxyMap.add(appName, url);
+                            runner.refreshRunnerCountCache(proxyMap.getAll());
+                            lookup.complete(url);
+                        }
+                    } else if (error != null || resp.statusCode() != 404) {
+                        unanswered.set(true);
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        if (!found.get() && !unanswered.get()) {
+                            synchronized (missing) {
+                                missing.put(appName, System.currentTimeMillis() + negativeTtlMillis);
+                            }
+                        }
+                        inFlight.remove(appName, lookup); // before completing, so that a later call starts a new lookup
+                        lookup.complete(null);
+                    }
+                });
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.json.JSONObject;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The progress of moving an app from one runner to another.
+ */
+public class AppMigration {
+
+    public enum State {QUEUED, CREATING, DEPLOYING, CUTTING_OVER, SUCCEEDED, FAILED}
+
+    public final String id = UUID.randomUUID().toString();
+    public final String appName;
+    public final String fromRunnerId;
+    public final String toRunnerId;
+    public final long createdAt = System.currentTimeMillis();
+    private volatile State state = State.QUEUED;
+    private volatile long finishedAt;
+    private volatile String cutoverId;
+    private volatile String error;
+    private final CompletableFuture<AppMigration> finished = new CompletableFuture<>();
+
+    AppMigration(String appName, String fromRunnerId, String toRunnerId) {
+        this.appName = appName;
+        this.fromRunnerId = fromRunnerId;
+        this.toRunnerId = toRunnerId;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    public String error() {
+        return error;
+    }
+
+    public boolean isFinished() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    /**
+     * @return A future that completes when the migration has succeeded or failed
+     */
+    public CompletableFuture<AppMigration> whenFinished() {
+        return finished;
+    }
+
+    void finish() {
+        finished.complete(this);
+    }
+
+    void moveTo(State state) {
+        this.state = state;
+        if (state == State.SUCCEEDED) {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    void cutover(String cutoverId) {
+        this.cutoverId = cutoverId;
+    }
+
+    void failed(String message) {
+        error = message;
+        finishedAt = System.currentTimeMillis();
+        state = State.FAILED;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject json = new JSONObject()
+            .put("id", id)
+            .put("url", "/api/v1/migrations/" + id)
+            .put("appName", appName)
+            .put("from", fromRunnerId)
+            .put("to", toRunnerId)
+            .put("state", state.name().toLowerCase())
+            .put("createdAt", createdAt);
+        if (finishedAt > 0) {
+            json.put("finishedAt", finishedAt);
+        }
+        if (cutoverId != null) {
+            json.put("cutover", "/api/v1/cutovers/" + cutoverId);
+        }
+        if (error != null) {
+            json.put("error", error);
+        }
+        return json;
+    }
+}
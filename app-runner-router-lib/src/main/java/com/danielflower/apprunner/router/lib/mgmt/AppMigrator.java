@@ -0,0 +1,307 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import io.muserver.Mutils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Moves apps between runners without dropping requests.
+ * <p>
+ * A hibernating app is started on its runner first. The app is then created on the target runner from its git URL,
+ * deployed, and polled until it is available. Until then the proxy map is pinned to the old runner so that loading
+ * the apps of either runner does not send requests to the copy that is still starting. Requests are then moved over with a cutover, which drains the old copy and deletes it,
+ * or rolls back and deletes the new copy if it returns too many errors. If anything fails before the cutover, the
+ * new copy is deleted and the app stays where it was.
+ */
+public class AppMigrator {
+    private static final Logger log = LoggerFactory.getLogger(AppMigrator.class);
+
+    public static final Duration DEFAULT_READY_TIMEOUT = Duration.ofMinutes(10);
+    public static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(1);
+    static final int MAX_KEPT = 200;
+    private static final Duration CALL_TIMEOUT = Duration.ofSeconds(30);
+
+    private final Cluster cluster;
+    private final ProxyMap proxyMap;
+    private final HttpClient client;
+    private final AppCutovers cutovers;
+    private final Duration readyTimeout;
+    private final long pollMillis;
+    private final AppHibernator hibernator;
+    private final Map<String, AppMigration> active = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, AppMigration> migrations = new LinkedHashMap<>();
+
+    /**
+     * @param cutovers Used to switch requests to the new copy once it is available
+     * @param readyTimeout How long the new copy has to build and become available
+     * @param pollInterval How often the new copy is checked while waiting for it to be available
+     * @param hibernator Used to start the app first if it is hibernating, or null if apps are not hibernated
+     */
+    public AppMigrator(Cluster cluster, ProxyMap proxyMap, HttpClient client, AppCutovers cutovers,
+                       Duration readyTimeout, Duration pollInterval, AppHibernator hibernator) {
+        this.cluster = cluster;
+        this.proxyMap = proxyMap;
+        this.client = client;
+        this.cutovers = cutovers;
+        this.readyTimeout = readyTimeout;
+        this.pollMillis = pollInterval.toMillis();
+        this.hibernator = hibernator;
+    }
+
+    /**
+     * Starts moving the app to the target runner.
+     * @return The migration, which can be followed with {@link #get(String)} or {@link AppMigration#whenFinished()}
+     * @throws IllegalArgumentException If the app does not exist or is already on the target runner
+     * @throws IllegalStateException If the app is already being moved or the target runner has no free capacity
+     */
+    public AppMigration migrate(String appName, Runner target) {
+        AppMigration migration = prepare(appName, target, false);
+        run(migration, target);
+        return migration;
+    }
+
+    /**
+     * Like {@link #migrate(String, Runner)} but for a target that the caller has already reserved a place on, for
+     * example with {@link Cluster#allocateRunner(PlacementRequest, int)}, so that no other creation can take the
+     * place between choosing the runner and starting the move. The migration takes over the reservation, which is
+     * released when the move finishes or if it cannot be started.
+     */
+    public AppMigration migrateReserved(String appName, Runner target) {
+        AppMigration migration = prepare(appName, target, true);
+        run(migration, target);
+        return migration;
+    }
+
+    /**
+     * Runs the moves from a rebalance plan, with no more than the given number running at the same time. Moves that
+     * cannot be started, for example because the app has since been deleted, are skipped.
+     * @return The migrations that were queued
+     */
+    public List<AppMigration> migrateAll(List<RebalancePlanner.Move> moves, int concurrency) {
+        List<AppMigration> queued = new ArrayList<>();
+        Map<AppMigration, Runner> targets = new HashMap<>();
+        for (RebalancePlanner.Move move : moves) {
+            Optional<Runner> target = cluster.runner(move.toRunnerId);
+            if (target.isEmpty()) {
+                log.warn("Not moving " + move.appName + " because runner " + move.toRunnerId + " no longer exists");
+                continue;
+            }
+            try {
+                AppMigration migration = prepare(move.appName, target.get(), false);
+                queued.add(migration);
+                targets.put(migration, target.get());
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                log.warn("Not moving " + move.appName + ": " + e.getMessage());
+            }
+        }
+        AtomicInteger next = new AtomicInteger();
+        for (int i = 0; i < Math.min(concurrency, queued.size()); i++) {
+            migrateNext(queued, targets, next);
+        }
+        return queued;
+    }
+
+    private CompletableFuture<Void> migrateNext(List<AppMigration> queued, Map<AppMigration, Runner> targets, AtomicInteger next) {
+        int index = next.getAndIncrement();
+        if (index >= queued.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        AppMigration migration = queued.get(index);
+        return run(migration, targets.get(migration))
+            .thenCompose(ignored -> migrateNext(queued, targets, next));
+    }
+
+    public synchronized Optional<AppMigration> get(String id) {
+        return Optional.ofNullable(migrations.get(id));
+    }
+
+    /**
+     * @return The most recent migrations, newest first
+     */
+    public synchronized List<AppMigration> all() {
+        List<AppMigration> all = new ArrayList<>(migrations.values());
+        Collections.reverse(all);
+        return all;
+    }
+
+    public boolean isMigrating(String appName) {
+        return active.containsKey(appName);
+    }
+
+    /**
+     * @param reserved True if the target already has a place reserved for the app, which is released if this throws
+     */
+    private AppMigration prepare(String appName, Runner target, boolean reserved) {
+        try {
+            return prepareChecked(appName, target, reserved);
+        } catch (RuntimeException e) {
+            if (reserved) {
+                target.releaseReservation();
+            }
+            throw e;
+        }
+    }
+
+    private AppMigration prepareChecked(String appName, Runner target, boolean reserved) {
+        URI current = proxyMap.get(appName);
+        if (current == null) {
+            throw new IllegalArgumentException("There is no app called " + appName);
+        }
+        Runner source = cluster.getRunnerByURL(current)
+            .orElseThrow(() -> new IllegalArgumentException(appName + " is not on a known runner"));
+        if (source.id.equals(target.id)) {
+            throw new IllegalArgumentException(appName + " is already on " + target.id);
+        }
+        AppMigration migration = new AppMigration(appName, source.id, target.id);
+        if (active.putIfAbsent(appName, migration) != null) {
+            throw new IllegalStateException(appName + " is already being moved");
+        }
+        if (!reserved && !target.tryReserve()) {
+            active.remove(appName, migration);
+            throw new IllegalStateException(target.id + " has no free capacity");
+        }
+        synchronized (this) {
+            migrations.put(migration.id, migration);
+            Iterator<AppMigration> oldest = migrations.values().iterator();
+            while (migrations.size() > MAX_KEPT && oldest.hasNext()) {
+                if (oldest.next().isFinished()) {
+                    oldest.remove();
+                }
+            }
+        }
+        log.info("Going to move " + appName + " from " + source.id + " to " + target.id);
+        return migration;
+    }
+
+    private CompletableFuture<AppMigration> run(AppMigration migration, Runner target) {
+        String appName = migration.appName;
+        Runner source = cluster.runner(migration.fromRunnerId).orElse(null);
+        URI oldUrl = proxyMap.get(appName);
+        if (source == null || oldUrl == null || !oldUrl.getAuthority().equals(source.url.getAuthority())) {
+            target.releaseReservation();
+            active.remove(appName, migration);
+            fail(migration, "The app was deleted or moved, or its runner was removed, before the move started");
+            migration.finish();
+            return CompletableFuture.completedFuture(migration);
+        }
+        URI newUrl = target.url.resolve("/" + appName);
+        proxyMap.pin(appName, oldUrl);
+        AtomicBoolean created = new AtomicBoolean();
+
+        // a hibernating app is started first so that the old copy can serve requests until the cutover
+        CompletableFuture<Void> awake = hibernator == null ? CompletableFuture.completedFuture(null) : hibernator.wake(appName);
+        return awake.thenCompose(ignored -> send(HttpRequest.newBuilder(source.url.resolve("/api/v1/apps/" + appName)).GET(), CALL_TIMEOUT))
+            .thenCompose(resp -> {
+                expect(resp, 200, "get the app from " + source.id);
+                String gitUrl = new JSONObject(resp.body()).optString("gitUrl", null);
+                if (gitUrl == null) {
+                    throw new IllegalStateException(source.id + " did not return a git URL for " + appName);
+                }
+                migration.moveTo(AppMigration.State.CREATING);
+                String form = "appName=" + Mutils.urlEncode(appName) + "&gitUrl=" + Mutils.urlEncode(gitUrl);
+                return send(HttpRequest.newBuilder(target.url.resolve("/api/v1/apps"))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(form)), CALL_TIMEOUT);
+            })
+            .thenCompose(resp -> {
+                expect(resp, 201, "create the app on " + target.id);
+                created.set(true);
+                migration.moveTo(AppMigration.State.DEPLOYING);
+                return send(HttpRequest.newBuilder(target.url.resolve("/api/v1/apps/" + appName + "/deploy"))
+                    .POST(HttpRequest.BodyPublishers.noBody()), readyTimeout);
+            })
+            .thenCompose(resp -> {
+                if (resp.statusCode() / 100 != 2) {
+                    throw new IllegalStateException("Could not deploy the app on " + target.id + ": " + resp.statusCode() + " " + resp.body());
+                }
+                return awaitAvailable(target, appName, System.currentTimeMillis() + readyTimeout.toMillis());
+            })
+            .thenCompose(ignored -> {
+                migration.moveTo(AppMigration.State.CUTTING_OVER);
+                AppCutover cutover = cutovers.cutover(appName, newUrl, true);
+                migration.cutover(cutover.id);
+                return cutover.whenFinished();
+            })
+            .handle((cutover, error) -> {
+                if (error == null) {
+                    target.refreshRunnerCountCache(proxyMap.getAll());
+                    source.refreshRunnerCountCache(proxyMap.getAll());
+                    target.releaseReservation();
+                    if (cutover.state() == AppCutover.State.SUCCEEDED) {
+                        migration.moveTo(AppMigration.State.SUCCEEDED);
+                        log.info("Moved " + appName + " from " + source.id + " to " + target.id);
+                    } else {
+                        if (cutover.state() == AppCutover.State.FAILED) {
+                            proxyMap.unpin(appName); // the cutover did not switch, so the pin to the old copy is still here
+                        }
+                        fail(migration, "The cutover " + cutover.state().name().toLowerCase().replace('_', ' ') + ": " + cutover.error());
+                    }
+                } else {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    target.releaseReservation();
+                    if (created.get()) {
+                        deleteQuietly(target, appName);
+                    }
+                    proxyMap.unpin(appName);
+                    fail(migration, cause.getMessage());
+                }
+                active.remove(appName, migration);
+                migration.finish();
+                return migration;
+            });
+    }
+
+    private CompletableFuture<Void> awaitAvailable(Runner target, String appName, long giveUpAt) {
+        return send(HttpRequest.newBuilder(target.url.resolve("/api/v1/apps/" + appName)).GET(), CALL_TIMEOUT)
+            .thenCompose(resp -> {
+                if (resp.statusCode() == 200 && new JSONObject(resp.body()).optBoolean("available", true)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+                if (System.currentTimeMillis() >= giveUpAt) {
+                    throw new IllegalStateException("The app did not become available on " + target.id + " in time");
+                }
+                return CompletableFuture.supplyAsync(() -> null, CompletableFuture.delayedExecutor(pollMillis, TimeUnit.MILLISECONDS))
+                    .thenCompose(ignored -> awaitAvailable(target, appName, giveUpAt));
+            });
+    }
+
+    private void deleteQuietly(Runner runner, String appName) {
+        log.info("Deleting the partly moved copy of " + appName + " from " + runner.id);
+        send(HttpRequest.newBuilder(runner.url.resolve("/api/v1/apps/" + appName)).DELETE(), CALL_TIMEOUT)
+            .whenComplete((resp, error) -> {
+                if (error != null || resp.statusCode() / 100 != 2) {
+                    log.warn("Could not delete " + appName + " from " + runner.id + ". It will need to be deleted manually.");
+                }
+            });
+    }
+
+    private static void fail(AppMigration migration, String message) {
+        log.warn("Could not move " + migration.appName + " from " + migration.fromRunnerId + " to " + migration.toRunnerId + ": " + message);
+        migration.failed(message);
+    }
+
+    private static void expect(HttpResponse<String> resp, int status, String action) {
+        if (resp.statusCode() != status) {
+            throw new IllegalStateException("Could not " + action + ": " + resp.statusCode() + " " + resp.body());
+        }
+    }
+
+    private CompletableFuture<HttpResponse<String>> send(HttpRequest.Builder request, Duration timeout) {
+        return client.sendAsync(request.timeout(timeout).build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,156 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.json.JSONTokener;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pulls the app names out of a runner's <code>/api/v1/apps</code> response as it is read, skipping over everything
+ * else rather than building the whole JSON tree. This is all that is needed to keep the {@link com.danielflower.apprunner.router.lib.web.ProxyMap} up to date.
+ */
+public class AppNameReader {
+
+    /**
+     * @param json A JSON stream in the form <code>{ "apps": [ { "name": "app1", ... }, ... ], ... }</code>
+     * @return The value of each <code>name</code> in the <code>apps</code> array, in order
+     */
+    public static List<String> readNames(InputStream json) {
+        JSONTokener x = new JSONTokener(json);
+        List<String> names = new ArrayList<>();
+        if (x.nextClean() != '{') {
+            throw x.syntaxError("A JSONObject text must begin with '{'");
+        }
+        String key;
+        while ((key = nextKey(x)) != null) {
+            if (key.equals("apps") && peek(x) == '[') {
+                readApps(x, names);
+            } else {
+                skipValue(x);
+            }
+            if (endOfContainer(x, '}')) {
+                break;
+            }
+        }
+        return names;
+    }
+
+    private static void readApps(JSONTokener x, List<String> names) {
+        x.nextClean();
+        if (peek(x) == ']') {
+            x.nextClean();
+            return;
+        }
+        do {
+            if (peek(x) == '{') {
+                x.nextClean();
+                String key;
+                while ((key = nextKey(x)) != null) {
+                    if (key.equals("name") && peek(x) == '"') {
+                        x.nextClean();
+                        names.add(x.nextString('"'));
+                    } else {
+                        skipValue(x);
+                    }
+                    if (endOfContainer(x, '}')) {
+                        break;
+                    }
+                }
+            } else {
+                skipValue(x);
+            }
+        } while (!endOfContainer(x, ']'));
+    }
+
+    /**
+     * Reads the next key and its colon, or returns null if the object has ended
+     */
+    private static String nextKey(JSONTokener x) {
+        char c = x.nextClean();
+        if (c == '}') {
+            return null;
+        }
+        if (c != '"') {
+            throw x.syntaxError("Expected a quoted key");
+        }
+        String key = x.nextString('"');
+        if (x.nextClean() != ':') {
+            throw x.syntaxError("Expected a ':' after a key");
+        }
+        return key;
+    }
+
+    private static boolean endOfContainer(JSONTokener x, char end) {
+        char c = x.nextClean();
+        if (c == end) {
+            return true;
+        }
+        if (c != ',') {
+            throw x.syntaxError("Expected a ',' or '" + end + "'");
+        }
+        return false;
+    }
+
+    private static char peek(JSONTokener x) {
+        char c = x.nextClean();
+        x.back();
+        return c;
+    }
+
+    private static void skipValue(JSONTokener x) {
+        char c = x.nextClean();
+        switch (c) {
+            case '"':
+                skipString(x);
+                break;
+            case '{':
+                if (peek(x) == '}') {
+                    x.nextClean();
+                    return;
+                }
+                do {
+                    if (x.nextClean() != '"') {
+                        throw x.syntaxError("Expected a quoted key");
+                    }
+                    skipString(x);
+                    if (x.nextClean() != ':') {
+                        throw x.syntaxError("Expected a ':' after a key");
+                    }
+                    skipValue(x);
+                } while (!endOfContainer(x, '}'));
+                break;
+            case '[':
+                if (peek(x) == ']') {
+                    x.nextClean();
+                    return;
+                }
+                do {
+                    skipValue(x);
+                } while (!endOfContainer(x, ']'));
+                break;
+            case 0:
+                throw x.syntaxError("Unexpected end of JSON");
+            default:
+                // a number, true, false or null
+                while (c != 0 && ",}] \t\r\n".indexOf(c) == -1) {
+                    c = x.next();
+                }
+                x.back();
+        }
+    }
+
+    private static void skipString(JSONTokener x) {
+        while (true) {
+            char c = x.next();
+            if (c == 0 || c == '\n' || c == '\r') {
+                throw x.syntaxError("Unterminated string");
+            }
+            if (c == '\\') {
+                x.next();
+            } else if (c == '"') {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Polls each runner's app list in the background so that the proxy map stays up to date without relying on
+ * clients calling <code>/api/v1/apps</code>.
+ * <p>
+ * Each runner is polled on its own interval, which starts at the minimum, doubles (up to the maximum) each time
+ * nothing has changed, and goes back to the minimum when something does. A random jitter of up to 20% stops all
+ * runners being polled at once. Polls are conditional on the ETag or Last-Modified value of the previous response.
+ */
+public class AppReconciler {
+    private static final Logger log = LoggerFactory.getLogger(AppReconciler.class);
+
+    public static final Duration DEFAULT_MIN_INTERVAL = Duration.ofSeconds(2);
+    public static final Duration DEFAULT_MAX_INTERVAL = Duration.ofSeconds(60);
+
+    private final Cluster cluster;
+    private final MapManager mapManager;
+    private final long minIntervalMillis;
+    private final long maxIntervalMillis;
+    private final Map<String, RunnerState> states = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "app-reconciler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public AppReconciler(Cluster cluster, MapManager mapManager, Duration minInterval, Duration maxInterval) {
+        this.cluster = cluster;
+        this.mapManager = mapManager;
+        this.minIntervalMillis = minInterval.toMillis();
+        this.maxIntervalMillis = Math.max(minIntervalMillis, maxInterval.toMillis());
+    }
+
+    public void start() {
+        long tick = Math.max(10, Math.min(1000, minIntervalMillis / 2));
+        scheduler.scheduleWithFixedDelay(this::pollDueRunners, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Called when a runner's app event stream connects or disconnects. Runners with a live stream are only polled at
+     * the maximum interval, as a safety net, and runners whose stream drops are polled straight away.
+     */
+    public void setPushConnected(String runnerId, boolean connected) {
+        RunnerState state = states.computeIfAbsent(runnerId, id -> new RunnerState(minIntervalMillis));
+        state.pushConnected = connected;
+        if (!connected) {
+            state.intervalMillis = minIntervalMillis;
+            state.nextPollAt = 0;
+        }
+    }
+
+    private void pollDueRunners() {
+        try {
+            long now = System.currentTimeMillis();
+            Set<String> current = new HashSet<>();
+            for (Runner runner : cluster.getAvailableRunners()) {
+                current.add(runner.id);
+                RunnerState state = states.computeIfAbsent(runner.id, id -> new RunnerState(minIntervalMillis));
+                if (!state.inProgress && now >= state.nextPollAt) {
+                    poll(runner, state);
+                }
+            }
+            states.keySet().retainAll(current);
+        } catch (Exception e) {
+            log.warn("Error while reconciling apps", e);
+        }
+    }
+
+    private void poll(Runner runner, RunnerState state) {
+        state.inProgress = true;
+        mapManager.loadRunnerAppNamesIfChangedAsync(runner, state.last)
+            .whenComplete((apps, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    log.info("Could not reconcile apps on " + runner.id + " - " + cause.getMessage());
+                    state.intervalMillis = Math.min(maxIntervalMillis, state.intervalMillis * 2);
+                } else if (apps.changed) {
+                    log.info("Apps on " + runner.id + " changed; now " + apps.names.size() + " apps");
+                    state.last = apps;
+                    state.intervalMillis = minIntervalMillis;
+                    cluster.refreshRunnerCountCache(mapManager.getCurrentMapping());
+                } else {
+                    state.last = apps;
+                    state.intervalMillis = Math.min(maxIntervalMillis, state.intervalMillis * 2);
+                }
+                if (state.pushConnected) {
+                    state.intervalMillis = maxIntervalMillis;
+                }
+                long jitter = (long) (state.intervalMillis * 0.2 * ThreadLocalRandom.current().nextDouble());
+                state.nextPollAt = System.currentTimeMillis() + state.intervalMillis - jitter;
+                state.inProgress = false;
+            });
+    }
+
+    private static class RunnerState {
+        volatile MapManager.RunnerApps last;
+        volatile long intervalMillis;
+        volatile long nextPollAt;
+        volatile boolean inProgress;
+        volatile boolean pushConnected;
+
+        RunnerState(long intervalMillis) {
+            this.intervalMillis = intervalMillis;
+        }
+    }
+}
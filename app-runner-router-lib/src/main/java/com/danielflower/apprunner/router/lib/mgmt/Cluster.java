@@ -11,10 +11,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
@@ -24,11 +21,14 @@ public class Cluster {
     private final File config;
     private final List<Runner> runners = new CopyOnWriteArrayList<>();
     private final MapManager querier;
+    private volatile PlacementStrategy placementStrategy = PlacementStrategy.LEAST_APPS;
+    private volatile Map<String, Map<String, Set<String>>> labelIndex = Map.of(); // label name -> value -> runner IDs
 
     private Cluster(File config, MapManager querier, List<Runner> runners) {
         this.config = config;
         this.querier = querier;
         this.runners.addAll(runners);
+        indexLabels();
     }
 
     public static Cluster load(File config, MapManager mapManager) throws IOException {
@@ -54,29 +54,96 @@ public class Cluster {
         return runners;
     }
 
-    public synchronized void addRunner(MuRequest clientRequest, Runner runner) throws Exception {
-        if (!runners.contains(runner)) {
-            runners.add(runner);
+    /**
+     * @return The runners that can be routed to and placed on, which excludes runners whose heartbeat lease has expired
+     */
+    public List<Runner> getAvailableRunners() {
+        List<Runner> available = new ArrayList<>();
+        for (Runner runner : runners) {
+            if (runner.isAvailable()) {
+                available.add(runner);
+            }
+        }
+        return available;
+    }
+
+    public void addRunner(MuRequest clientRequest, Runner runner) throws Exception {
+        synchronized (this) {
+            if (!runners.contains(runner)) {
+                runners.add(runner);
+                indexLabels();
+            }
         }
-        querier.loadRunner(clientRequest, runner);
+        // loaded without holding the lock so that a slow runner does not hold up other changes to the cluster
+        querier.loadRunnerAppNames(clientRequest, runner);
         refreshRunnerCountCache(querier.getCurrentMapping());
-        save();
+        synchronized (this) {
+            save();
+        }
     }
 
     public synchronized void deleteRunner(Runner runner) throws IOException {
         runners.remove(runner);
+        indexLabels();
         querier.removeRunner(runner);
         save();
     }
 
+    /**
+     * Swaps a runner for one with the same ID but new settings, keeping its draining state and lease. If the URL is
+     * unchanged then its apps are still routed to, otherwise the apps at the old URL are removed and must be loaded
+     * from the new URL by the caller.
+     */
+    public synchronized void replaceRunner(Runner existing, Runner replacement) throws IOException {
+        replacement.setDraining(existing.isDraining());
+        replacement.copyLeaseFrom(existing);
+        replacement.shareReservationsWith(existing);
+        int index = runners.indexOf(existing);
+        if (index == -1) {
+            runners.add(replacement);
+        } else {
+            runners.set(index, replacement);
+        }
+        if (!existing.url.equals(replacement.url)) {
+            querier.removeRunner(existing);
+        }
+        indexLabels();
+        replacement.refreshRunnerCountCache(querier.getCurrentMapping());
+        save();
+    }
+
+    /**
+     * Starts or stops draining the runner, which stops new apps being placed on it while its existing apps are still
+     * routed to. The setting is saved so that it survives a restart.
+     */
+    public synchronized void setDraining(Runner runner, boolean draining) throws IOException {
+        runner.setDraining(draining);
+        save();
+    }
+
+    private void indexLabels() {
+        Map<String, Map<String, Set<String>>> index = new HashMap<>();
+        for (Runner runner : runners) {
+            for (Map.Entry<String, String> label : runner.labels.entrySet()) {
+                index.computeIfAbsent(label.getKey(), k -> new HashMap<>())
+                    .computeIfAbsent(label.getValue(), v -> new HashSet<>())
+                    .add(runner.id);
+            }
+        }
+        labelIndex = index;
+    }
+
     private void save() throws IOException {
         FileUtils.write(config, toJSON().toString(4), "UTF-8", false);
     }
 
+    /**
+     * @return The config of the cluster as it is saved to disk
+     */
     public JSONObject toJSON() {
         JSONArray all = new JSONArray();
         for (Runner runner : runners) {
-            all.put(runner.toJSON());
+            all.put(runner.toConfigJSON());
         }
         return new JSONObject()
             .put("runners", all);
@@ -88,32 +155,104 @@ public class Cluster {
             .findFirst();
     }
 
-    public synchronized Optional<Runner> allocateRunner(ConcurrentHashMap<String, URI> currentMapping, Collection<String> excludedRunnerIDs) {
-        refreshRunnerCountCache(currentMapping);
-        Runner leastContended = null;
-        for (Runner runner : runners) {
-            if (!runner.hasCapacity()) {
-                continue;
+    public PlacementStrategy getPlacementStrategy() {
+        return placementStrategy;
+    }
+
+    public void setPlacementStrategy(PlacementStrategy placementStrategy) {
+        this.placementStrategy = placementStrategy;
+    }
+
+    /**
+     * Picks the best runner according to the placement strategy (by default, the one with the fewest apps) and
+     * reserves a place on it. The reservation must be released with {@link Runner#releaseReservation()} when the
+     * creation finishes. No lock is held, so if another allocation takes the last place on the chosen runner first
+     * then the next best runner is tried.
+     * The counts are kept current as apps are loaded, created and removed, so they are not recalculated here.
+     */
+    public Optional<Runner> allocateRunner(Collection<String> excludedRunnerIDs) {
+        return allocateRunner(PlacementRequest.excluding(excludedRunnerIDs), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #allocateRunner(Collection)} but only considers runners that meet the constraints of the request,
+     * and skips runners that already hold the given number of reservations. Runners with more of the
+     * preferred labels are tried before the placement strategy's ranking is considered.
+     */
+    public Optional<Runner> allocateRunner(PlacementRequest request, int maxReservedPerRunner) {
+        List<Runner> candidates = new ArrayList<>();
+        for (Runner runner : eligibleRunners(request)) {
+            if (runner.hasCapacity() && runner.reservedApps() < maxReservedPerRunner) {
+                candidates.add(runner);
             }
-            if (leastContended == null || leastContended.numberOfApps() > runner.numberOfApps()) {
-                boolean isBanned = excludedRunnerIDs.contains(runner.id);
-                if (isBanned) {
-                    log.info("Not allocating to " + runner.id + " because it was requested to be excluded.");
-                } else {
-                    leastContended = runner;
-                }
+        }
+        List<Runner> ranked = new ArrayList<>(placementStrategy.rank(request, candidates));
+        if (!request.preferredLabels.isEmpty()) {
+            ranked.sort(Comparator.comparingInt(request::preferredLabelsMatched).reversed());
+        }
+        for (Runner candidate : ranked) {
+            if (candidate.tryReserve()) {
+                log.info("Allocated " + candidate.id + " which now has " + candidate.numberOfAppsIncludingReserved()
+                    + " of " + candidate.maxApps + " apps including reservations");
+                return Optional.of(candidate);
             }
         }
-        if (leastContended != null) {
-            log.info("Incrementing app count for " + leastContended.id + " because apparently it is the least contended with "
-                + leastContended.numberOfApps() + " apps (with max capacity of " + leastContended.maxApps + "). The full mapping is: " + currentMapping);
-            leastContended.incrementNumberOfApps();
-            return Optional.of(leastContended);
+        if (candidates.isEmpty()) {
+            log.info("Could not allocate a runner because none of the " + runners.size() + " runners have capacity for " + request);
         }
-        log.info("Could not allocate a runner because it seems there is no capacity. Current mapping: " + currentMapping);
         return Optional.empty();
     }
 
+    /**
+     * @return True if any runner that meets the constraints of the request has room for another app
+     */
+    public boolean hasCapacity(PlacementRequest request) {
+        for (Runner runner : eligibleRunners(request)) {
+            if (runner.hasCapacity()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The available runners that are not draining or excluded, have the required labels, and do not host any
+     * of the apps that the request has anti-affinity with
+     */
+    public List<Runner> eligibleRunners(PlacementRequest request) {
+        Set<String> labelled = null;
+        Map<String, Map<String, Set<String>>> index = labelIndex;
+        for (Map.Entry<String, String> required : request.requiredLabels.entrySet()) {
+            Set<String> ids = index.getOrDefault(required.getKey(), Map.of()).getOrDefault(required.getValue(), Set.of());
+            if (labelled == null) {
+                labelled = new HashSet<>(ids);
+            } else {
+                labelled.retainAll(ids);
+            }
+        }
+        Set<String> authoritiesToAvoid = new HashSet<>();
+        if (!request.antiAffinity.isEmpty()) {
+            Map<String, URI> mapping = querier.getCurrentMapping();
+            for (String app : request.antiAffinity) {
+                URI url = mapping.get(app);
+                if (url != null) {
+                    authoritiesToAvoid.add(url.getAuthority());
+                }
+            }
+        }
+        List<Runner> eligible = new ArrayList<>();
+        for (Runner runner : runners) {
+            if (runner.isAvailable()
+                && !runner.isDraining()
+                && !request.excludedRunnerIDs.contains(runner.id)
+                && (labelled == null || labelled.contains(runner.id))
+                && !authoritiesToAvoid.contains(runner.url.getAuthority())) {
+                eligible.add(runner);
+            }
+        }
+        return eligible;
+    }
+
     public void refreshRunnerCountCache(ConcurrentHashMap<String, URI> currentMapping) {
         for (Runner runner : runners) {
             runner.refreshRunnerCountCache(currentMapping);
@@ -1,5 +1,6 @@
 package com.danielflower.apprunner.router.lib.mgmt;
 
+import com.danielflower.apprunner.router.lib.problems.AppRunnerException;
 import com.danielflower.apprunner.router.lib.web.ProxyMap;
 import io.muserver.MuRequest;
 import io.muserver.murp.ReverseProxy;
@@ -7,24 +8,23 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.io.ByteArrayInputStream;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Function;
 
 public class ClusterQueryingMapManager implements MapManager {
     private static final Logger log = LoggerFactory.getLogger(ClusterQueryingMapManager.class);
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
 
     private final ProxyMap proxyMap;
     private final HttpClient httpClient;
+    private final Map<String, Long> loadedAt = new ConcurrentHashMap<>();
 
     public ClusterQueryingMapManager(ProxyMap proxyMap, HttpClient httpClient) {
         this.proxyMap = proxyMap;
@@ -38,77 +38,193 @@ public class ClusterQueryingMapManager implements MapManager {
 
     @Override
     public Result loadAllApps(MuRequest clientRequest, List<Runner> runners) throws InterruptedException {
-        Result result = new Result();
+        try {
+            return loadAllAppsAsync(clientRequest, runners, DEFAULT_DEADLINE).get();
+        } catch (ExecutionException e) {
+            throw new AppRunnerException("Error while loading apps", e.getCause());
+        }
+    }
+
+    @Override
+    public CompletableFuture<Result> loadAllAppsAsync(MuRequest clientRequest, List<Runner> runners, Duration deadline) {
+        return loadFromAll(runners, deadline, runner -> loadRunnerAsync(clientRequest, runner));
+    }
+
+    @Override
+    public CompletableFuture<Result> loadAllAppNamesAsync(MuRequest clientRequest, List<Runner> runners, Duration deadline) {
+        return loadFromAll(runners, deadline, runner -> loadRunnerAppNamesAsync(clientRequest, runner).thenApply(names -> null));
+    }
+
+    private CompletableFuture<Result> loadFromAll(List<Runner> runners, Duration deadline, Function<Runner, CompletableFuture<JSONObject>> loader) {
         log.info("Looking up app info from " + runners);
-        List<RunnerFuture> futures = new ArrayList<>();
+        List<CompletableFuture<RunnerResult>> futures = new ArrayList<>();
         for (Runner runner : runners) {
-            futures.add(new RunnerFuture(runner, executorService.submit(() -> loadRunner(clientRequest, runner))));
-        }
-        for (RunnerFuture rf : futures) {
-            try {
-                JSONObject appJson = rf.future.get();
-                appJson.put("appRunnerInstanceId", rf.runner.id);
-                result.appsJsonFromEachRunner.add(appJson);
-            } catch (InterruptedException e) {
-                throw e;
-            } catch (Exception e) {
-                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
-                log.error(rf.runner.id + " app lookup error: " + cause.getMessage());
-                result.errors.add(rf.runner.id + ": " + cause.getMessage());
-            }
+            futures.add(loader.apply(runner)
+                .orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((appJson, error) -> new RunnerResult(runner, appJson, error)));
         }
-        log.info("Got " + result.appsJsonFromEachRunner.size() + " results");
-        return result;
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .thenApply(ignored -> {
+                Result result = new Result();
+                for (CompletableFuture<RunnerResult> future : futures) {
+                    RunnerResult rr = future.join();
+                    if (rr.error == null) {
+                        if (rr.appJson != null) {
+                            rr.appJson.put("appRunnerInstanceId", rr.runner.id);
+                            result.appsJsonFromEachRunner.add(rr.appJson);
+                        }
+                    } else {
+                        Throwable cause = unwrap(rr.error);
+                        String message = cause instanceof TimeoutException
+                            ? "Timed out after " + deadline.toMillis() + "ms"
+                            : cause.getMessage();
+                        log.error(rr.runner.id + " app lookup error: " + message);
+                        result.errors.add(rr.runner.id + ": " + message);
+                    }
+                }
+                log.info("Got " + (runners.size() - result.errors.size()) + " results");
+                return result;
+            });
     }
 
     @Override
     public JSONObject loadRunner(MuRequest clientRequest, Runner runner) throws Exception {
+        return await(loadRunnerAsync(clientRequest, runner));
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> loadRunnerAsync(MuRequest clientRequest, Runner runner) {
+        URI uri = runner.url.resolve("/api/v1/apps");
+        return getJSONResponseAsync(clientRequest, uri).thenApply(info -> {
+            List<String> names = new ArrayList<>();
+            for (Object app : info.getJSONArray("apps")) {
+                names.add(((JSONObject) app).getString("name"));
+            }
+            updateProxyMap(runner, uri, names);
+            return info;
+        });
+    }
+
+    @Override
+    public List<String> loadRunnerAppNames(MuRequest clientRequest, Runner runner) throws Exception {
+        return await(loadRunnerAppNamesAsync(clientRequest, runner));
+    }
+
+    @Override
+    public CompletableFuture<List<String>> loadRunnerAppNamesAsync(MuRequest clientRequest, Runner runner) {
         URI uri = runner.url.resolve("/api/v1/apps");
-        JSONObject info = getJSONResponse(clientRequest, uri);
-        List<String> addedNames = new ArrayList<>();
-        for (Object app : info.getJSONArray("apps")) {
-            String name = ((JSONObject) app).getString("name");
-            addedNames.add(name);
-            proxyMap.add(name, uri.resolve("/" + name));
+        return httpClient.sendAsync(jsonRequest(clientRequest, uri), HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(resp -> {
+                if (resp.statusCode() != 200) {
+                    throw new RuntimeException("Unable to load apps from " + uri + " - message was " + new String(resp.body(), StandardCharsets.UTF_8));
+                }
+                List<String> names = AppNameReader.readNames(new ByteArrayInputStream(resp.body()));
+                updateProxyMap(runner, uri, names);
+                return names;
+            });
+    }
+
+    @Override
+    public CompletableFuture<RunnerApps> loadRunnerAppNamesIfChangedAsync(Runner runner, RunnerApps previous) {
+        URI uri = runner.url.resolve("/api/v1/apps");
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+            .timeout(Duration.ofSeconds(10));
+        if (previous != null && previous.etag != null) {
+            request.header("If-None-Match", previous.etag);
+        } else if (previous != null && previous.lastModified != null) {
+            request.header("If-Modified-Since", previous.lastModified);
+        }
+        return httpClient.sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+            .thenApply(resp -> {
+                if (resp.statusCode() == 304 && previous != null) {
+                    loadedAt.put(runner.id, System.currentTimeMillis());
+                    return new RunnerApps(previous.names, false, previous.etag, previous.lastModified);
+                }
+                if (resp.statusCode() != 200) {
+                    throw new RuntimeException("Unable to load apps from " + uri + " - message was " + new String(resp.body(), StandardCharsets.UTF_8));
+                }
+                List<String> names = AppNameReader.readNames(new ByteArrayInputStream(resp.body()));
+                updateProxyMap(runner, uri, names);
+                Set<String> nameSet = new HashSet<>(names);
+                return new RunnerApps(nameSet, previous == null || !previous.names.equals(nameSet),
+                    resp.headers().firstValue("ETag").orElse(null),
+                    resp.headers().firstValue("Last-Modified").orElse(null));
+            });
+    }
+
+    private void updateProxyMap(Runner runner, URI uri, List<String> names) {
+        Set<String> added = new HashSet<>(names);
+        for (String name : names) {
+            URI target = uri.resolve("/" + name);
+            if (!target.equals(proxyMap.get(name))) {
+                proxyMap.add(name, target);
+            }
         }
         for (Map.Entry<String, URI> entry : proxyMap.getAll().entrySet()) {
             if (entry.getValue().getAuthority().equals(runner.url.getAuthority())
-                && !addedNames.contains(entry.getKey())) {
+                && !added.contains(entry.getKey())) {
                 log.info("Detected a missing app, so will remove it from the proxy map: " + entry.getKey() + " at " + entry.getValue());
                 proxyMap.remove(entry.getKey());
             }
         }
-        return info;
+        runner.refreshRunnerCountCache(proxyMap.getAll());
+        loadedAt.put(runner.id, System.currentTimeMillis());
+    }
+
+    @Override
+    public long appsLoadedAt(Runner runner) {
+        return loadedAt.getOrDefault(runner.id, 0L);
     }
 
     @Override
     public JSONObject loadRunnerSystemInfo(MuRequest clientRequest, Runner runner) throws Exception {
+        return await(loadRunnerSystemInfoAsync(clientRequest, runner));
+    }
+
+    @Override
+    public CompletableFuture<JSONObject> loadRunnerSystemInfoAsync(MuRequest clientRequest, Runner runner) {
         URI uri = runner.url.resolve("/api/v1/system");
-        return getJSONResponse(clientRequest, uri);
+        return getJSONResponseAsync(clientRequest, uri);
     }
 
 
-    private JSONObject getJSONResponse(MuRequest clientRequest, URI uri) throws InterruptedException, ExecutionException, TimeoutException {
-        HttpResponse<String> resp;
-        try {
-            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
-                .timeout(Duration.ofSeconds(10));
-            if (clientRequest != null) {
-                ReverseProxy.setForwardedHeaders(clientRequest, request, false, true);
-            }
-            resp = httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    private static HttpRequest jsonRequest(MuRequest clientRequest, URI uri) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+            .timeout(Duration.ofSeconds(10));
+        if (clientRequest != null) {
+            ReverseProxy.setForwardedHeaders(clientRequest, request, false, true);
         }
-        if (resp.statusCode() != 200) {
-            throw new RuntimeException("Unable to load apps from " + uri + " - message was " + resp.body());
+        return request.build();
+    }
+
+    private CompletableFuture<JSONObject> getJSONResponseAsync(MuRequest clientRequest, URI uri) {
+        return httpClient.sendAsync(jsonRequest(clientRequest, uri), HttpResponse.BodyHandlers.ofString())
+            .thenApply(resp -> {
+                if (resp.statusCode() != 200) {
+                    throw new RuntimeException("Unable to load apps from " + uri + " - message was " + resp.body());
+                }
+                return new JSONObject(resp.body());
+            });
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
         }
-        return new JSONObject(resp.body());
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        return (error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null
+            ? error.getCause() : error;
     }
 
 
     @Override
     public void removeRunner(Runner runner) {
+        loadedAt.remove(runner.id);
         for (Map.Entry<String, URI> entry : proxyMap.getAll().entrySet()) {
             if (entry.getValue().getAuthority().equals(runner.url.getAuthority())) {
                 proxyMap.remove(entry.getKey());
@@ -117,13 +233,15 @@ public class ClusterQueryingMapManager implements MapManager {
     }
 
 
-    private static class RunnerFuture {
+    private static class RunnerResult {
         public final Runner runner;
-        public final Future<JSONObject> future;
+        public final JSONObject appJson;
+        public final Throwable error;
 
-        private RunnerFuture(Runner runner, Future<JSONObject> future) {
+        private RunnerResult(Runner runner, JSONObject appJson, Throwable error) {
             this.runner = runner;
-            this.future = future;
+            this.appJson = appJson;
+            this.error = error;
         }
     }
 }
@@ -0,0 +1,87 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places each app on the runner picked by weighted rendezvous hashing of the app name and runner IDs, so that
+ * several routers that share no state pick the same runner for an app, and adding or removing a runner only changes
+ * the choice for the apps that would go to (or went to) that runner.
+ * <p>
+ * To stop unlucky hashing from overloading a runner, runners that already have more than their share of the apps
+ * (their weighted share of the average, plus the balance factor) are only tried after the others. Because app counts
+ * can differ slightly between routers, this bound is the only part of the choice that is not fully deterministic.
+ * Apps with no name fall back to the runner with the fewest apps.
+ */
+public class ConsistentHashPlacement implements PlacementStrategy {
+
+    public static final double DEFAULT_BALANCE_FACTOR = 0.25;
+
+    private final double balanceFactor;
+
+    /**
+     * @param balanceFactor How far above its share of the apps a runner can go before it is avoided, for example
+     *                      0.25 lets a runner have 25% more than its share
+     */
+    public ConsistentHashPlacement(double balanceFactor) {
+        this.balanceFactor = balanceFactor;
+    }
+
+    @Override
+    public List<Runner> rank(PlacementRequest request, List<Runner> candidates) {
+        if (request.appName == null) {
+            return LEAST_APPS.rank(request, candidates);
+        }
+        int totalApps = 1;
+        double totalWeight = 0;
+        for (Runner runner : candidates) {
+            totalApps += runner.numberOfAppsIncludingReserved();
+            totalWeight += weightOf(runner);
+        }
+        Map<Runner, Double> scores = new HashMap<>();
+        Map<Runner, Boolean> overloaded = new HashMap<>();
+        for (Runner runner : candidates) {
+            scores.put(runner, score(request.appName, runner.id, weightOf(runner)));
+            double bound = Math.ceil((1 + balanceFactor) * totalApps * weightOf(runner) / totalWeight);
+            overloaded.put(runner, runner.numberOfAppsIncludingReserved() + 1 > bound);
+        }
+        List<Runner> ordered = new ArrayList<>(candidates);
+        ordered.sort(Comparator.<Runner, Boolean>comparing(overloaded::get).thenComparing(Comparator.<Runner>comparingDouble(scores::get).reversed()));
+        return ordered;
+    }
+
+    private static double weightOf(Runner runner) {
+        return Math.max(0.01, runner.weight);
+    }
+
+    /**
+     * @return The weighted rendezvous score of the app on the runner, where the highest score wins. Runners with twice
+     * the weight win twice as many apps.
+     */
+    static double score(String appName, String runnerId, double weight) {
+        long hash = hash(appName + '\u0000' + runnerId);
+        double uniform = ((hash >>> 11) + 0.5) / (1L << 53); // strictly between 0 and 1
+        return -weight / Math.log(uniform);
+    }
+
+    /**
+     * A 64-bit FNV-1a hash with a final mix, which gives the same value on every JVM.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
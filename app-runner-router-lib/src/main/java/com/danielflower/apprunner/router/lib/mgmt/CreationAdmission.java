@@ -0,0 +1,178 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Limits how many app creations run at once, both on each runner and across the cluster, as creating an app is the
+ * most expensive thing a runner does.
+ * <p>
+ * Creations that cannot start yet wait in a queue and are started in the order they arrived as earlier creations
+ * finish. A creation is only queued if some runner has capacity for it once the in-progress creations finish;
+ * otherwise it is told straight away that there is no capacity.
+ */
+public class CreationAdmission {
+    private static final Logger log = LoggerFactory.getLogger(CreationAdmission.class);
+
+    public static final int DEFAULT_MAX_PER_RUNNER = 2;
+    public static final int DEFAULT_MAX_IN_CLUSTER = 20;
+    public static final int DEFAULT_MAX_QUEUED = 200;
+
+    private final Cluster cluster;
+    private final int maxPerRunner;
+    private final int maxInCluster;
+    private final int maxQueued;
+    private final Deque<Waiter> queue = new ArrayDeque<>();
+    private final Map<String, Integer> inProgressOnRunner = new HashMap<>();
+    private int inProgress;
+
+    /**
+     * @param maxPerRunner The most creations that can run on one runner at a time
+     * @param maxInCluster The most creations that can run across all runners at a time
+     * @param maxQueued The most creations that can wait to start before new ones are rejected
+     */
+    public CreationAdmission(Cluster cluster, int maxPerRunner, int maxInCluster, int maxQueued) {
+        this.cluster = cluster;
+        this.maxPerRunner = maxPerRunner;
+        this.maxInCluster = maxInCluster;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Waits for a turn to create an app and then reserves a place on the least contended runner. If a runner is
+     * returned then {@link #release(Runner)} must be called when the creation finishes.
+     * @return A future with the runner to create on, or an empty value if no runner has capacity. The future
+     * fails with a {@link RejectedExecutionException} if the queue is full.
+     */
+    public CompletableFuture<Optional<Runner>> allocate(Collection<String> excludedRunnerIDs) {
+        return allocate(PlacementRequest.excluding(excludedRunnerIDs));
+    }
+
+    /**
+     * Like {@link #allocate(Collection)} but only runners meeting the constraints of the request are used.
+     */
+    public CompletableFuture<Optional<Runner>> allocate(PlacementRequest request) {
+        Waiter waiter = new Waiter(request, null);
+        synchronized (this) {
+            if (queue.size() >= maxQueued) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("There are already " + queue.size() + " app creations waiting to start"));
+            }
+            queue.add(waiter);
+        }
+        admit();
+        return waiter.future;
+    }
+
+    /**
+     * Waits for a turn to create an app on a runner that already has a place reserved for the app, such as the
+     * runners planned for a batch of apps. The reservation only holds the place, so the creation still waits until
+     * the runner has fewer than the per-runner limit of creations in progress. {@link #release(Runner)} must be
+     * called when the creation finishes.
+     * @return A future with the reserved runner. The future fails with a {@link RejectedExecutionException} if the
+     * queue is full, in which case the reservation is still held.
+     */
+    public CompletableFuture<Optional<Runner>> allocateReserved(Runner reserved) {
+        Waiter waiter = new Waiter(null, reserved);
+        synchronized (this) {
+            if (queue.size() >= maxQueued) {
+                return CompletableFuture.failedFuture(new RejectedExecutionException("There are already " + queue.size() + " app creations waiting to start"));
+            }
+            queue.add(waiter);
+        }
+        admit();
+        return waiter.future;
+    }
+
+    /**
+     * Releases the runner's reservation and lets the next waiting creation start.
+     */
+    public void release(Runner runner) {
+        runner.releaseReservation();
+        synchronized (this) {
+            inProgress--;
+            inProgressOnRunner.computeIfPresent(runner.id, (id, count) -> count > 1 ? count - 1 : null);
+        }
+        admit();
+    }
+
+    /**
+     * @return The number of creations waiting to start
+     */
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of creations that have started and not been released
+     */
+    public synchronized int inProgress() {
+        return inProgress;
+    }
+
+    /**
+     * @return The number of creations on the given runner that have started and not been released
+     */
+    public synchronized int inProgressOn(String runnerID) {
+        return inProgressOnRunner.getOrDefault(runnerID, 0);
+    }
+
+    private void admit() {
+        Map<Waiter, Optional<Runner>> decided = new LinkedHashMap<>();
+        synchronized (this) {
+            while (!queue.isEmpty()) {
+                Waiter head = queue.peek();
+                if (head.reserved != null) {
+                    if (inProgress >= maxInCluster || inProgressOn(head.reserved.id) >= maxPerRunner) {
+                        break;
+                    }
+                    started(head.reserved);
+                    decided.put(queue.poll(), Optional.of(head.reserved));
+                    continue;
+                }
+                if (!cluster.hasCapacity(head.request)) {
+                    decided.put(queue.poll(), Optional.empty());
+                    continue;
+                }
+                if (inProgress >= maxInCluster) {
+                    break;
+                }
+                PlacementRequest request = head.request;
+                for (Map.Entry<String, Integer> busy : inProgressOnRunner.entrySet()) {
+                    if (busy.getValue() >= maxPerRunner) {
+                        request = request.excluding(busy.getKey());
+                    }
+                }
+                Optional<Runner> runner = cluster.allocateRunner(request, Integer.MAX_VALUE);
+                if (runner.isEmpty()) {
+                    break; // the runners with capacity are busy with other creations
+                }
+                started(runner.get());
+                decided.put(queue.poll(), runner);
+            }
+            if (!queue.isEmpty()) {
+                log.info(queue.size() + " app creations are waiting for " + inProgress + " in-progress creations to finish");
+            }
+        }
+        decided.forEach((waiter, runner) -> waiter.future.complete(runner));
+    }
+
+    private void started(Runner runner) {
+        inProgress++;
+        inProgressOnRunner.merge(runner.id, 1, Integer::sum);
+    }
+
+    private static class Waiter {
+        final PlacementRequest request;
+        final Runner reserved; // set if a place was reserved before the creation was queued
+        final CompletableFuture<Optional<Runner>> future = new CompletableFuture<>();
+
+        Waiter(PlacementRequest request, Runner reserved) {
+            this.request = request;
+            this.reserved = reserved;
+        }
+    }
+}
@@ -4,23 +4,80 @@ import io.muserver.MuRequest;
 import org.json.JSONObject;
 
 import java.net.URI;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 public interface MapManager {
+
+    /**
+     * The maximum time to wait for all runners to respond when loading from the whole cluster. Runners that have
+     * not responded by then are reported as errors and the results from the other runners are returned.
+     */
+    Duration DEFAULT_DEADLINE = Duration.ofSeconds(12);
+
     ConcurrentHashMap<String, URI> getCurrentMapping();
 
     Result loadAllApps(MuRequest clientRequest, List<Runner> runners) throws InterruptedException;
 
+    CompletableFuture<Result> loadAllAppsAsync(MuRequest clientRequest, List<Runner> runners, Duration deadline);
+
+    /**
+     * Like {@link #loadAllAppsAsync(MuRequest, List, Duration)} but only updates the proxy map, so the returned
+     * result has errors but no app JSON.
+     */
+    CompletableFuture<Result> loadAllAppNamesAsync(MuRequest clientRequest, List<Runner> runners, Duration deadline);
+
     JSONObject loadRunner(MuRequest clientRequest, Runner runner) throws Exception;
 
+    CompletableFuture<JSONObject> loadRunnerAsync(MuRequest clientRequest, Runner runner);
+
+    /**
+     * Updates the proxy map with the apps on the given runner, reading just the names from the runner's response.
+     * @return The names of the apps on the runner
+     */
+    List<String> loadRunnerAppNames(MuRequest clientRequest, Runner runner) throws Exception;
+
+    CompletableFuture<List<String>> loadRunnerAppNamesAsync(MuRequest clientRequest, Runner runner);
+
+    /**
+     * Like {@link #loadRunnerAppNamesAsync(MuRequest, Runner)} but sends the validators from the previous load so
+     * that the runner can reply that nothing has changed, in which case the response is not parsed.
+     * @param previous The result of the last call for this runner, or null
+     */
+    CompletableFuture<RunnerApps> loadRunnerAppNamesIfChangedAsync(Runner runner, RunnerApps previous);
+
     JSONObject loadRunnerSystemInfo(MuRequest clientRequest, Runner runner) throws Exception;
 
+    CompletableFuture<JSONObject> loadRunnerSystemInfoAsync(MuRequest clientRequest, Runner runner);
+
+    /**
+     * @return The time in millis that the runner's apps were last confirmed, either by loading them or by the runner
+     * saying they have not changed, or 0 if they have never been loaded
+     */
+    long appsLoadedAt(Runner runner);
+
     void removeRunner(Runner runner);
 
     class Result {
         public final List<JSONObject> appsJsonFromEachRunner = new ArrayList<>();
         public final List<String> errors = new ArrayList<>();
     }
+
+    class RunnerApps {
+        public final Set<String> names;
+        public final boolean changed;
+        public final String etag;
+        public final String lastModified;
+
+        public RunnerApps(Set<String> names, boolean changed, String etag, String lastModified) {
+            this.names = names;
+            this.changed = changed;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
 }
@@ -0,0 +1,87 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import java.util.*;
+
+/**
+ * What is being placed and the constraints on where it can go.
+ * <p>
+ * Runners must have all the required labels, and runners already hosting any of the anti-affinity apps are not
+ * used. Of the runners that are left, those with more of the preferred labels are tried first.
+ */
+public class PlacementRequest {
+
+    public static final PlacementRequest ANYWHERE = new PlacementRequest(null, List.of(), Map.of(), Map.of(), Set.of());
+
+    public final String appName;
+    public final List<String> excludedRunnerIDs;
+    public final Map<String, String> requiredLabels;
+    public final Map<String, String> preferredLabels;
+    public final Set<String> antiAffinity;
+
+    /**
+     * @param appName The name of the app being placed, or null if not known
+     * @param excludedRunnerIDs Runners that must not be used
+     * @param requiredLabels Labels that a runner must have
+     * @param preferredLabels Labels that make a runner more preferred
+     * @param antiAffinity Apps that the new app must not share a runner with
+     */
+    public PlacementRequest(String appName, Collection<String> excludedRunnerIDs, Map<String, String> requiredLabels,
+                            Map<String, String> preferredLabels, Set<String> antiAffinity) {
+        this.appName = appName;
+        this.excludedRunnerIDs = List.copyOf(excludedRunnerIDs);
+        this.requiredLabels = Map.copyOf(requiredLabels);
+        this.preferredLabels = Map.copyOf(preferredLabels);
+        this.antiAffinity = Set.copyOf(antiAffinity);
+    }
+
+    public static PlacementRequest excluding(Collection<String> excludedRunnerIDs) {
+        return new PlacementRequest(null, excludedRunnerIDs, Map.of(), Map.of(), Set.of());
+    }
+
+    /**
+     * @return A copy of this request for the given app
+     */
+    public PlacementRequest forApp(String appName) {
+        return new PlacementRequest(appName, excludedRunnerIDs, requiredLabels, preferredLabels, antiAffinity);
+    }
+
+    /**
+     * @return A copy of this request that also excludes the given runner
+     */
+    public PlacementRequest excluding(String runnerID) {
+        List<String> excluded = new ArrayList<>(excludedRunnerIDs);
+        excluded.add(runnerID);
+        return new PlacementRequest(appName, excluded, requiredLabels, preferredLabels, antiAffinity);
+    }
+
+    /**
+     * @return True if there are constraints other than excluded runners
+     */
+    public boolean hasConstraints() {
+        return !requiredLabels.isEmpty() || !antiAffinity.isEmpty();
+    }
+
+    /**
+     * @return The number of the preferred labels that the runner has
+     */
+    public int preferredLabelsMatched(Runner runner) {
+        int matched = 0;
+        for (Map.Entry<String, String> label : preferredLabels.entrySet()) {
+            if (label.getValue().equals(runner.labels.get(label.getKey()))) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+
+    @Override
+    public String toString() {
+        return "PlacementRequest{" +
+            "appName='" + appName + '\'' +
+            ", excludedRunnerIDs=" + excludedRunnerIDs +
+            ", requiredLabels=" + requiredLabels +
+            ", preferredLabels=" + preferredLabels +
+            ", antiAffinity=" + antiAffinity +
+            '}';
+    }
+}
@@ -0,0 +1,27 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which runner a new app should be created on.
+ */
+public interface PlacementStrategy {
+
+    /**
+     * Places apps on the runner with the fewest apps, including places reserved for apps being created.
+     */
+    PlacementStrategy LEAST_APPS = (request, candidates) -> {
+        List<Runner> ordered = new ArrayList<>(candidates);
+        ordered.sort(Comparator.comparingInt(Runner::numberOfAppsIncludingReserved).thenComparingInt(Runner::reservedApps));
+        return ordered;
+    };
+
+    /**
+     * @param request The app being placed
+     * @param candidates The runners that meet the request's constraints and have capacity for another app
+     * @return The candidates in the order they should be tried, best first
+     */
+    List<Runner> rank(PlacementRequest request, List<Runner> candidates);
+}
@@ -0,0 +1,160 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.monitoring.AppTraffic;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Suggests moving apps between runners so that the traffic each runner serves is more even. Nothing is moved: the
+ * plan is only a suggestion.
+ * <p>
+ * Moves are chosen one at a time, each time taking the app from the busiest runner that best halves the difference
+ * with the quietest runner that has room for it, until the busiest runner is within a tenth of the average.
+ */
+public class RebalancePlanner {
+
+    static final double TOLERANCE = 0.1;
+
+    private final Cluster cluster;
+    private final ProxyMap proxyMap;
+    private final AppTraffic traffic;
+
+    public RebalancePlanner(Cluster cluster, ProxyMap proxyMap, AppTraffic traffic) {
+        this.cluster = cluster;
+        this.proxyMap = proxyMap;
+        this.traffic = traffic;
+    }
+
+    public Plan plan(int maxMoves) {
+        List<Runner> runners = cluster.getAvailableRunners();
+        Map<String, AppTraffic.AppLoad> appLoads = traffic.snapshot();
+        Map<String, URI> mapping = proxyMap.getAll();
+        Map<String, Double> before = TrafficAwarePlacement.runnerLoads(runners, mapping, appLoads);
+        Map<String, Double> after = new HashMap<>(before);
+        Map<String, Integer> appCounts = new HashMap<>();
+        Map<String, List<String>> appsByRunner = new HashMap<>();
+        for (Runner runner : runners) {
+            appCounts.put(runner.id, runner.numberOfAppsIncludingReserved());
+            appsByRunner.put(runner.id, new ArrayList<>());
+        }
+        for (String app : appLoads.keySet()) {
+            Runner runner = TrafficAwarePlacement.runnerOf(mapping.get(app), runners);
+            if (runner != null) {
+                appsByRunner.get(runner.id).add(app);
+            }
+        }
+
+        List<Move> moves = new ArrayList<>();
+        double average = runners.isEmpty() ? 0 : after.values().stream().mapToDouble(Double::doubleValue).sum() / runners.size();
+        while (moves.size() < maxMoves && runners.size() > 1) {
+            Runner busiest = null;
+            Runner quietest = null;
+            for (Runner runner : runners) {
+                if (busiest == null || after.get(runner.id) > after.get(busiest.id)) {
+                    busiest = runner;
+                }
+                boolean hasRoom = !runner.isDraining() && appCounts.get(runner.id) < runner.maxApps;
+                if (hasRoom && (quietest == null || after.get(runner.id) < after.get(quietest.id))) {
+                    quietest = runner;
+                }
+            }
+            if (quietest == null || busiest == quietest || after.get(busiest.id) <= average * (1 + TOLERANCE)) {
+                break;
+            }
+            double difference = after.get(busiest.id) - after.get(quietest.id);
+            String best = null;
+            double bestRemaining = difference;
+            for (String app : appsByRunner.get(busiest.id)) {
+                double remaining = Math.abs(difference - 2 * appLoads.get(app).load());
+                if (remaining < bestRemaining) {
+                    best = app;
+                    bestRemaining = remaining;
+                }
+            }
+            if (best == null) {
+                break; // every app on the busiest runner is too busy to move without making things worse
+            }
+            double load = appLoads.get(best).load();
+            moves.add(new Move(best, busiest.id, quietest.id, load));
+            appsByRunner.get(busiest.id).remove(best);
+            appsByRunner.get(quietest.id).add(best);
+            after.merge(busiest.id, -load, Double::sum);
+            after.merge(quietest.id, load, Double::sum);
+            appCounts.merge(busiest.id, -1, Integer::sum);
+            appCounts.merge(quietest.id, 1, Integer::sum);
+        }
+        return new Plan(appLoads, mapping, runners, before, after, moves);
+    }
+
+    /**
+     * A suggested move of one app from one runner to another.
+     */
+    public static class Move {
+        public final String appName;
+        public final String fromRunnerId;
+        public final String toRunnerId;
+        public final double load;
+
+        Move(String appName, String fromRunnerId, String toRunnerId, double load) {
+            this.appName = appName;
+            this.fromRunnerId = fromRunnerId;
+            this.toRunnerId = toRunnerId;
+            this.load = load;
+        }
+
+        public JSONObject toJSON() {
+            return new JSONObject()
+                .put("app", appName)
+                .put("from", fromRunnerId)
+                .put("to", toRunnerId)
+                .put("load", load);
+        }
+    }
+
+    public static class Plan {
+        public final List<Move> moves;
+        private final Map<String, AppTraffic.AppLoad> appLoads;
+        private final Map<String, URI> mapping;
+        private final List<Runner> runners;
+        private final Map<String, Double> before;
+        private final Map<String, Double> after;
+
+        Plan(Map<String, AppTraffic.AppLoad> appLoads, Map<String, URI> mapping, List<Runner> runners, Map<String, Double> before, Map<String, Double> after, List<Move> moves) {
+            this.appLoads = appLoads;
+            this.mapping = mapping;
+            this.runners = runners;
+            this.before = before;
+            this.after = after;
+            this.moves = moves;
+        }
+
+        public JSONObject toJSON() {
+            JSONArray runnersJSON = new JSONArray();
+            for (Runner runner : runners) {
+                runnersJSON.put(new JSONObject()
+                    .put("id", runner.id)
+                    .put("load", before.get(runner.id))
+                    .put("loadAfterMoves", after.get(runner.id)));
+            }
+            JSONArray apps = new JSONArray();
+            for (String app : TrafficAwarePlacement.hottest(appLoads, appLoads.size())) {
+                Runner runner = TrafficAwarePlacement.runnerOf(mapping.get(app), runners);
+                apps.put(appLoads.get(app).toJSON()
+                    .put("app", app)
+                    .put("runner", runner == null ? null : runner.id));
+            }
+            JSONArray movesJSON = new JSONArray();
+            for (Move move : moves) {
+                movesJSON.put(move.toJSON());
+            }
+            return new JSONObject()
+                .put("runners", runnersJSON)
+                .put("apps", apps)
+                .put("moves", movesJSON);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.json.JSONObject;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Places apps on the runner with the most headroom, rather than simply the fewest apps.
+ * <p>
+ * Each runner's capacity is its CPU count (from its <code>/api/v1/system</code> info) multiplied by its configured
+ * weight, reduced by how busy the host said it was in its last heartbeat. The heartbeat <code>load</code> object may
+ * have <code>cpu</code> and <code>memory</code> values as fractions between 0 and 1, and a <code>loadAverage</code>
+ * which is divided by the CPU count. Runners are then ranked by apps per unit of capacity. Runners whose CPU count is
+ * not known yet are assumed to be average, so a new runner is neither starved nor flooded.
+ */
+public class ResourceAwarePlacement implements PlacementStrategy {
+
+    static final double MIN_HEADROOM = 0.05;
+
+    private final Supplier<RunnerSystemCache.Snapshot> systemInfo;
+
+    /**
+     * @param systemInfo Gets the latest runner system info without blocking, or null if there is none yet
+     */
+    public ResourceAwarePlacement(Supplier<RunnerSystemCache.Snapshot> systemInfo) {
+        this.systemInfo = systemInfo;
+    }
+
+    @Override
+    public List<Runner> rank(PlacementRequest request, List<Runner> candidates) {
+        RunnerSystemCache.Snapshot snapshot = systemInfo.get();
+        Map<Runner, Integer> cpus = new HashMap<>();
+        int knownTotal = 0;
+        for (Runner runner : candidates) {
+            int numCpus = numCpus(snapshot, runner);
+            if (numCpus > 0) {
+                cpus.put(runner, numCpus);
+                knownTotal += numCpus;
+            }
+        }
+        double averageCpus = cpus.isEmpty() ? 1 : (double) knownTotal / cpus.size();
+
+        Map<Runner, Double> scores = new HashMap<>();
+        for (Runner runner : candidates) {
+            double numCpus = cpus.containsKey(runner) ? cpus.get(runner) : averageCpus;
+            scores.put(runner, score(runner, numCpus));
+        }
+        List<Runner> ordered = new ArrayList<>(candidates);
+        ordered.sort(Comparator.<Runner>comparingDouble(scores::get).thenComparingInt(Runner::reservedApps));
+        return ordered;
+    }
+
+    /**
+     * @return The apps per unit of capacity the runner would have with one more app, where lower is better
+     */
+    static double score(Runner runner, double numCpus) {
+        double capacity = Math.max(0.01, runner.weight) * numCpus * Math.max(MIN_HEADROOM, 1 - pressure(runner.load(), numCpus));
+        return (runner.numberOfAppsIncludingReserved() + 1) / capacity;
+    }
+
+    /**
+     * @return How busy the host is, from 0 (idle) to 1 (saturated), based on the most constrained resource
+     */
+    static double pressure(JSONObject load, double numCpus) {
+        if (load == null) {
+            return 0;
+        }
+        double pressure = Math.max(load.optDouble("cpu", 0), load.optDouble("memory", 0));
+        if (load.has("loadAverage") && numCpus > 0) {
+            pressure = Math.max(pressure, load.optDouble("loadAverage", 0) / numCpus);
+        }
+        return Double.isNaN(pressure) ? 0 : Math.min(1, Math.max(0, pressure));
+    }
+
+    private static int numCpus(RunnerSystemCache.Snapshot snapshot, Runner runner) {
+        if (snapshot == null) {
+            return 0;
+        }
+        RunnerSystemCache.RunnerSystem system = snapshot.runner(runner.id);
+        if (system == null || system.error != null) {
+            return 0;
+        }
+        JSONObject os = system.system.optJSONObject("os");
+        return os == null ? 0 : os.optInt("numCpus", 0);
+    }
+}
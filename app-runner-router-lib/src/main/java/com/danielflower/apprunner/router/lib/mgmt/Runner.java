@@ -3,22 +3,49 @@ package com.danielflower.apprunner.router.lib.mgmt;
 import org.json.JSONObject;
 
 import java.net.URI;
+import java.time.Duration;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 
 public class Runner {
+    public static final Duration DEFAULT_LEASE = Duration.ofSeconds(30);
+    private static final Pattern LABEL_PART = Pattern.compile("[A-Za-z0-9_.-]{1,100}");
+
     public final String id;
     public final URI url;
     public final int maxApps;
+    public final double weight; // relative capacity of the runner's host, used by resource-aware placement
+    public final Map<String, String> labels; // such as zone=eu-1 or hardware=fast, for placement constraints
     private AtomicInteger appCount = new AtomicInteger(0);
+    private volatile AtomicInteger reservations = new AtomicInteger(0); // places held for apps that are being created
+    private volatile long leaseExpiresAt; // 0 for runners that were registered without a heartbeat, which never expire
+    private static final long EXPIRED = 1; // the lease of a heartbeat runner that has not sent one since the router started
+    private volatile long lastHeartbeat;
+    private volatile String appsDigest;
+    private volatile JSONObject load;
+    private volatile boolean draining; // no new apps are placed on a draining runner, but its apps are still routed to
+    private final AtomicBoolean expiryHandled = new AtomicBoolean(false);
     public int numberOfApps() {
         return appCount.get();
     }
 
     public Runner(String id, URI url, int maxApps) {
+        this(id, url, maxApps, 1.0);
+    }
+
+    public Runner(String id, URI url, int maxApps, double weight) {
+        this(id, url, maxApps, weight, Map.of());
+    }
+
+    public Runner(String id, URI url, int maxApps, double weight, Map<String, String> labels) {
         this.id = id;
         this.url = url;
         this.maxApps = maxApps;
+        this.weight = weight;
+        this.labels = Collections.unmodifiableMap(new TreeMap<>(labels));
     }
 
     @Override
@@ -54,16 +81,188 @@ public class Runner {
         vals.put("appsUrl", url.resolve("/api/v1/apps").toString());
         vals.put("systemUrl", url.resolve("/api/v1/system").toString());
         vals.put("appCount", appCount.get());
+        vals.put("reservedApps", reservations.get());
         vals.put("maxApps", maxApps);
+        vals.put("weight", weight);
+        vals.put("labels", new JSONObject(labels));
+        vals.put("draining", draining);
+        if (leaseExpiresAt != 0) {
+            vals.put("lease", new JSONObject()
+                .put("available", isAvailable())
+                .put("expiresAt", leaseExpiresAt)
+                .put("lastHeartbeat", lastHeartbeat)
+                .put("appsDigest", appsDigest)
+                .put("load", load));
+        }
         return vals;
     }
 
+    /**
+     * @return The settings of the runner that are saved in the cluster config, which excludes the app counts and
+     * lease state that are only known while the router is running
+     */
+    public JSONObject toConfigJSON() {
+        JSONObject vals = new JSONObject();
+        vals.put("id", id);
+        vals.put("url", url.toString());
+        vals.put("maxApps", maxApps);
+        vals.put("weight", weight);
+        vals.put("labels", new JSONObject(labels));
+        vals.put("draining", draining);
+        vals.put("heartbeat", isHeartbeatManaged());
+        return vals;
+    }
+
+    /**
+     * @return True if the runner was registered with a heartbeat, so is only available while its lease is current
+     */
+    public boolean isHeartbeatManaged() {
+        return leaseExpiresAt != 0;
+    }
+
+    /**
+     * Copies the lease of a runner that this runner is replacing, so that a runner updated with a PUT keeps
+     * expiring if it stops sending heartbeats.
+     */
+    public void copyLeaseFrom(Runner other) {
+        this.lastHeartbeat = other.lastHeartbeat;
+        this.appsDigest = other.appsDigest;
+        this.load = other.load;
+        this.leaseExpiresAt = other.leaseExpiresAt;
+    }
+
+    /**
+     * Shares the reservations of a runner that this runner is replacing, so that creations which reserved a place
+     * on the old runner still hold it on this one, and free it here when they release it on the old one.
+     */
+    public void shareReservationsWith(Runner other) {
+        this.reservations = other.reservations;
+    }
+
+    /**
+     * Records a heartbeat from the runner, extending its lease.
+     * @return True if the runner's apps should be reloaded, because the lease had expired or the app digest changed
+     */
+    public boolean renewLease(Duration lease, String appsDigest, JSONObject load) {
+        boolean wasAvailable = isAvailable();
+        boolean digestChanged = !Objects.equals(this.appsDigest, appsDigest);
+        long now = System.currentTimeMillis();
+        this.lastHeartbeat = now;
+        this.leaseExpiresAt = now + lease.toMillis();
+        this.appsDigest = appsDigest;
+        this.load = load;
+        expiryHandled.set(false);
+        return !wasAvailable || digestChanged;
+    }
+
+    /**
+     * @return False if the runner has a lease from heartbeats that has expired
+     */
+    public boolean isAvailable() {
+        long expiry = leaseExpiresAt;
+        return expiry == 0 || System.currentTimeMillis() < expiry;
+    }
+
+    /**
+     * @return True the first time this is called after the lease expires
+     */
+    boolean markExpiryHandled() {
+        return !isAvailable() && expiryHandled.compareAndSet(false, true);
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    /**
+     * @return The load the runner reported in its last heartbeat, or null if it has not sent one
+     */
+    public JSONObject load() {
+        return load;
+    }
+
     public static Runner fromJSON(JSONObject o) {
-        return new Runner((String) o.get("id"), URI.create((String) o.get("url")), (int) o.get("maxApps"));
+        Map<String, String> labels = new HashMap<>();
+        JSONObject labelsJSON = o.optJSONObject("labels");
+        if (labelsJSON != null) {
+            for (String key : labelsJSON.keySet()) {
+                labels.put(key, labelsJSON.getString(key));
+            }
+        }
+        Runner runner = new Runner((String) o.get("id"), URI.create((String) o.get("url")), (int) o.get("maxApps"), o.optDouble("weight", 1.0), labels);
+        runner.setDraining(o.optBoolean("draining", false));
+        if (o.optBoolean("heartbeat", false)) {
+            // not routed to or placed on until its next heartbeat says it is still there
+            runner.leaseExpiresAt = EXPIRED;
+        }
+        return runner;
+    }
+
+    /**
+     * Parses labels such as <code>zone=eu-1,hardware=fast</code>
+     * @param values Comma separated <code>name=value</code> pairs. Null values are ignored.
+     * @return The labels
+     * @throws IllegalArgumentException if a label is not a name and value of letters, numbers, dots, dashes or underscores
+     */
+    public static Map<String, String> parseLabels(Collection<String> values) {
+        Map<String, String> labels = new HashMap<>();
+        for (String value : values) {
+            if (value == null) {
+                continue;
+            }
+            for (String pair : value.split(",")) {
+                if (pair.isBlank()) {
+                    continue;
+                }
+                String[] bits = pair.trim().split("=", 2);
+                if (bits.length != 2 || !LABEL_PART.matcher(bits[0]).matches() || !LABEL_PART.matcher(bits[1]).matches()) {
+                    throw new IllegalArgumentException("Invalid label '" + pair.trim() + "' - labels must be in the format name=value");
+                }
+                labels.put(bits[0], bits[1]);
+            }
+        }
+        return labels;
     }
 
     public boolean hasCapacity() {
-        return appCount.get() < maxApps;
+        return isAvailable() && !draining && appCount.get() + reservations.get() < maxApps;
+    }
+
+    /**
+     * @return The number of apps on the runner plus the number of places reserved for apps being created
+     */
+    public int numberOfAppsIncludingReserved() {
+        return appCount.get() + reservations.get();
+    }
+
+    public int reservedApps() {
+        return reservations.get();
+    }
+
+    /**
+     * Reserves a place for a new app without locking, failing if another caller took the last place first.
+     * Each successful reservation must be released with {@link #releaseReservation()} once the creation has
+     * finished, after the app count has been refreshed if the app was created.
+     * @return True if a place was reserved
+     */
+    public boolean tryReserve() {
+        while (true) {
+            int reserved = reservations.get();
+            if (!isAvailable() || draining || appCount.get() + reserved >= maxApps) {
+                return false;
+            }
+            if (reservations.compareAndSet(reserved, reserved + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void releaseReservation() {
+        reservations.updateAndGet(reserved -> Math.max(0, reserved - 1));
     }
 
     public int refreshRunnerCountCache(ConcurrentHashMap<String, URI> currentMapping) {
@@ -73,8 +272,4 @@ public class Runner {
         appCount.set(num);
         return num;
     }
-
-    public int incrementNumberOfApps() {
-        return appCount.incrementAndGet();
-    }
 }
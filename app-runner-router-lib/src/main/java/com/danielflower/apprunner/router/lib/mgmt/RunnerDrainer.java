@@ -0,0 +1,173 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drains runners so that they can be removed without dropping requests.
+ * <p>
+ * A draining runner gets no new apps, but its apps are still routed to. Optionally its apps are also moved to other
+ * runners with live migrations, a few at a time, so the runner is empty once the drain has finished. Apps that cannot
+ * be moved (for example because no other runner has room) are left where they are and reported as failed.
+ */
+public class RunnerDrainer {
+    private static final Logger log = LoggerFactory.getLogger(RunnerDrainer.class);
+
+    private final Cluster cluster;
+    private final ProxyMap proxyMap;
+    private final AppMigrator migrator;
+    private final Map<String, Drain> drains = new ConcurrentHashMap<>();
+
+    public RunnerDrainer(Cluster cluster, ProxyMap proxyMap, AppMigrator migrator) {
+        this.cluster = cluster;
+        this.proxyMap = proxyMap;
+        this.migrator = migrator;
+    }
+
+    /**
+     * Marks the runner as draining, replacing any drain already in progress for it.
+     * @param migrateApps True to move the runner's apps to other runners
+     * @param concurrency The most apps to move at the same time
+     */
+    public Drain start(Runner runner, boolean migrateApps, int concurrency) throws IOException {
+        cluster.setDraining(runner, true);
+        Drain drain = new Drain(cluster, runner.id, migrateApps, concurrency);
+        Drain previous = drains.put(runner.id, drain);
+        if (previous != null) {
+            previous.cancelled = true;
+        }
+        log.info("Draining " + runner.id + (migrateApps ? " and moving its apps with a concurrency of " + concurrency : ""));
+        if (migrateApps) {
+            for (int i = 0; i < concurrency; i++) {
+                migrateNext(drain);
+            }
+        }
+        return drain;
+    }
+
+    /**
+     * Stops draining the runner so that new apps can be placed on it again. Moves in progress are completed, but no
+     * more are started.
+     */
+    public void stop(Runner runner) throws IOException {
+        Drain drain = drains.remove(runner.id);
+        if (drain != null) {
+            drain.cancelled = true;
+        }
+        cluster.setDraining(runner, false);
+        log.info("Stopped draining " + runner.id);
+    }
+
+    public Optional<Drain> get(String runnerId) {
+        return Optional.ofNullable(drains.get(runnerId));
+    }
+
+    private void migrateNext(Drain drain) {
+        while (!drain.cancelled) {
+            String appName = nextApp(drain);
+            if (appName == null) {
+                return;
+            }
+            Optional<Runner> target = cluster.allocateRunner(PlacementRequest.ANYWHERE.forApp(appName).excluding(drain.runnerId), Integer.MAX_VALUE);
+            if (target.isEmpty()) {
+                drain.failed(appName, "No other runner has room for the app");
+                continue;
+            }
+            AppMigration migration;
+            try {
+                migration = migrator.migrateReserved(appName, target.get());
+            } catch (IllegalArgumentException | IllegalStateException e) {
+                drain.failed(appName, e.getMessage());
+                continue;
+            }
+            drain.inProgress.incrementAndGet();
+            migration.whenFinished().whenComplete((result, error) -> {
+                drain.inProgress.decrementAndGet();
+                if (migration.state() == AppMigration.State.SUCCEEDED) {
+                    drain.moved.incrementAndGet();
+                } else {
+                    drain.failed(appName, migration.error());
+                }
+                migrateNext(drain);
+            });
+            return;
+        }
+    }
+
+    /**
+     * @return An app on the runner that is not being moved and has not failed to move, or null if there are none
+     */
+    private synchronized String nextApp(Drain drain) {
+        Optional<Runner> runner = drain.runner();
+        if (runner.isEmpty()) {
+            return null; // the runner was removed
+        }
+        for (Map.Entry<String, URI> entry : proxyMap.getAll().entrySet()) {
+            String appName = entry.getKey();
+            if (entry.getValue().getAuthority().equals(runner.get().url.getAuthority())
+                && !migrator.isMigrating(appName)
+                && !drain.attempted.contains(appName)) {
+                drain.attempted.add(appName);
+                return appName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The progress of draining a runner.
+     */
+    public static class Drain {
+        private final Cluster cluster;
+        private final String runnerId;
+        public final boolean migrateApps;
+        public final int concurrency;
+        public final long startedAt = System.currentTimeMillis();
+        private volatile boolean cancelled;
+        private final Set<String> attempted = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger inProgress = new AtomicInteger();
+        private final AtomicInteger moved = new AtomicInteger();
+        private final Map<String, String> failures = new ConcurrentHashMap<>();
+
+        private Drain(Cluster cluster, String runnerId, boolean migrateApps, int concurrency) {
+            this.cluster = cluster;
+            this.runnerId = runnerId;
+            this.migrateApps = migrateApps;
+            this.concurrency = concurrency;
+        }
+
+        /**
+         * @return The runner as it is now, which is looked up each time as the runner is replaced when its
+         * settings change
+         */
+        private Optional<Runner> runner() {
+            return cluster.runner(runnerId);
+        }
+
+        private void failed(String appName, String message) {
+            log.warn("Could not move " + appName + " off draining runner " + runnerId + ": " + message);
+            failures.put(appName, message == null ? "Unknown error" : message);
+        }
+
+        public JSONObject toJSON() {
+            int appsRemaining = runner().map(Runner::numberOfApps).orElse(0);
+            return new JSONObject()
+                .put("startedAt", startedAt)
+                .put("migrateApps", migrateApps)
+                .put("concurrency", concurrency)
+                .put("appsRemaining", appsRemaining)
+                .put("appsMoving", inProgress.get())
+                .put("appsMoved", moved.get())
+                .put("failures", new JSONObject(failures))
+                .put("complete", appsRemaining == 0 && inProgress.get() == 0);
+        }
+    }
+}
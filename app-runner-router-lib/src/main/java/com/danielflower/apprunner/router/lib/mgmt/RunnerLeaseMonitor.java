@@ -0,0 +1,59 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops routing to runners whose heartbeat lease has expired by removing their apps from the proxy map. The apps
+ * are loaded again when the runner's next heartbeat arrives.
+ */
+public class RunnerLeaseMonitor {
+    private static final Logger log = LoggerFactory.getLogger(RunnerLeaseMonitor.class);
+
+    private final Cluster cluster;
+    private final MapManager mapManager;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "runner-lease-monitor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public RunnerLeaseMonitor(Cluster cluster, MapManager mapManager) {
+        this.cluster = cluster;
+        this.mapManager = mapManager;
+    }
+
+    public void start(long checkIntervalMillis) {
+        scheduler.scheduleWithFixedDelay(this::expireLeases, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    void expireLeases() {
+        try {
+            boolean changed = false;
+            for (Runner runner : cluster.getRunners()) {
+                if (runner.isAvailable()) {
+                    continue;
+                }
+                if (runner.markExpiryHandled()) {
+                    log.warn("The lease for " + runner.id + " has expired so it will no longer be routed to or placed on");
+                }
+                // done on every check in case an in-flight refresh put the apps back
+                mapManager.removeRunner(runner);
+                changed = true;
+            }
+            if (changed) {
+                cluster.refreshRunnerCountCache(mapManager.getCurrentMapping());
+            }
+        } catch (Exception e) {
+            log.warn("Error while checking runner leases", e);
+        }
+    }
+}
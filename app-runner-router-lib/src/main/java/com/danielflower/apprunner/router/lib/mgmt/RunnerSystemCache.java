@@ -0,0 +1,251 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the system info of every runner (from <code>/api/v1/system</code>) along with the aggregated public keys and
+ * samples, so that callers get an answer without waiting on the runners.
+ * <p>
+ * Runners are queried concurrently with a single deadline for the whole cluster, and the result is refreshed in the
+ * background so that it is normally never older than the TTL. A stale result is still returned immediately (while a
+ * refresh is triggered), however if runners have been added or removed since the last refresh then callers wait for
+ * a new one.
+ */
+public class RunnerSystemCache {
+    private static final Logger log = LoggerFactory.getLogger(RunnerSystemCache.class);
+
+    public static final Duration DEFAULT_TTL = Duration.ofSeconds(30);
+
+    private final Cluster cluster;
+    private final MapManager mapManager;
+    private final Duration ttl;
+    private final Duration deadline;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "runner-system-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicReference<CompletableFuture<Snapshot>> inProgress = new AtomicReference<>();
+    private volatile Snapshot current;
+
+    public RunnerSystemCache(Cluster cluster, MapManager mapManager, Duration ttl, Duration deadline) {
+        this.cluster = cluster;
+        this.mapManager = mapManager;
+        this.ttl = ttl;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Starts refreshing in the background, at half the TTL so that the cached value is never stale if runners respond
+     * within the deadline.
+     */
+    public void start() {
+        long period = Math.max(1, ttl.toMillis() / 2);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.warn("Error while refreshing runner system info", e);
+            }
+        }, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return The latest snapshot, which may be up to one refresh old
+     */
+    public CompletableFuture<Snapshot> get() {
+        Snapshot snapshot = current;
+        if (snapshot != null && snapshot.isFor(cluster.getRunners())) {
+            if (snapshot.ageMillis() > ttl.toMillis()) {
+                refresh();
+            }
+            return CompletableFuture.completedFuture(snapshot);
+        }
+        // A refresh already in progress may have started before the runners changed, in which case go again
+        return refresh().thenCompose(s -> s.isFor(cluster.getRunners()) ? CompletableFuture.completedFuture(s) : refresh());
+    }
+
+    /**
+     * @return The last snapshot loaded, without waiting or triggering a refresh, or null if none has loaded yet
+     */
+    public Snapshot latest() {
+        return current;
+    }
+
+    /**
+     * Queries all the runners, unless a refresh is already in progress in which case that one is returned.
+     */
+    public CompletableFuture<Snapshot> refresh() {
+        while (true) {
+            CompletableFuture<Snapshot> existing = inProgress.get();
+            if (existing != null) {
+                return existing;
+            }
+            CompletableFuture<Snapshot> mine = new CompletableFuture<>();
+            if (inProgress.compareAndSet(null, mine)) {
+                load(new ArrayList<>(cluster.getRunners())).whenComplete((snapshot, error) -> {
+                    if (snapshot != null) {
+                        current = snapshot;
+                    }
+                    inProgress.set(null);
+                    if (error == null) {
+                        mine.complete(snapshot);
+                    } else {
+                        mine.completeExceptionally(error);
+                    }
+                });
+                return mine;
+            }
+        }
+    }
+
+    private CompletableFuture<Snapshot> load(List<Runner> runners) {
+        Snapshot previous = current;
+        List<CompletableFuture<RunnerSystem>> futures = new ArrayList<>();
+        for (Runner runner : runners) {
+            RunnerSystem before = previous == null ? null : previous.runner(runner.id);
+            Long lastSuccess = before == null ? null : before.lastSuccessAt;
+            futures.add(mapManager.loadRunnerSystemInfoAsync(null, runner)
+                .orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS)
+                .handle((system, error) -> {
+                    long now = System.currentTimeMillis();
+                    if (error == null) {
+                        return new RunnerSystem(runner, system, null, now, now);
+                    }
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    String message = cause instanceof TimeoutException ? "Timed out after " + deadline.toMillis() + "ms" : cause.getMessage();
+                    log.warn("Error looking up system info for " + runner.id + " - " + message);
+                    return new RunnerSystem(runner, erroredSystemJson(), "ERROR: " + message, now, lastSuccess);
+                }));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+            .thenApply(ignored -> {
+                List<RunnerSystem> results = new ArrayList<>();
+                for (CompletableFuture<RunnerSystem> future : futures) {
+                    results.add(future.join());
+                }
+                return new Snapshot(results);
+            });
+    }
+
+    private static JSONObject erroredSystemJson() {
+        return new JSONObject()
+            .put("appRunnerStarted", false)
+            .put("samples", new JSONArray());
+    }
+
+    public static String getSampleID(JSONObject sample) {
+        return sample.has("id") ? sample.getString("id") : sample.getString("name");
+    }
+
+    /**
+     * The system info of a single runner as of a certain time.
+     */
+    public static class RunnerSystem {
+        public final Runner runner;
+        public final JSONObject system;
+        public final String error;
+        public final long refreshedAt;
+        public final Long lastSuccessAt;
+
+        RunnerSystem(Runner runner, JSONObject system, String error, long refreshedAt, Long lastSuccessAt) {
+            this.runner = runner;
+            this.system = system;
+            this.error = error;
+            this.refreshedAt = refreshedAt;
+            this.lastSuccessAt = lastSuccessAt;
+        }
+
+        public JSONObject toJSON() {
+            JSONObject json = runner.toJSON()
+                .put("system", system)
+                .put("systemRefreshedAt", refreshedAt)
+                .put("systemAgeMillis", System.currentTimeMillis() - refreshedAt);
+            if (lastSuccessAt != null) {
+                json.put("systemLastSuccessAt", lastSuccessAt);
+            }
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+    }
+
+    /**
+     * The system info of all the runners, along with values aggregated across them.
+     */
+    public static class Snapshot {
+        public final List<RunnerSystem> runners;
+        public final JSONArray publicKeys = new JSONArray();
+        public final List<JSONObject> samples = new ArrayList<>();
+        public final boolean allStarted;
+        public final long createdAt = System.currentTimeMillis();
+
+        Snapshot(List<RunnerSystem> runners) {
+            this.runners = Collections.unmodifiableList(runners);
+            Set<String> addedKeys = new HashSet<>();
+            Set<String> addedSamples = new HashSet<>();
+            boolean allStarted = true;
+            for (RunnerSystem runner : runners) {
+                JSONObject system = runner.system;
+                allStarted = allStarted && system.getBoolean("appRunnerStarted");
+                if (system.has("publicKeys")) {
+                    for (Object keyObj : system.getJSONArray("publicKeys")) {
+                        String key = (String) keyObj;
+                        if (addedKeys.add(key)) {
+                            publicKeys.put(key);
+                        }
+                    }
+                }
+                for (Object sampleObj : system.getJSONArray("samples")) {
+                    JSONObject sample = (JSONObject) sampleObj;
+                    if (addedSamples.add(getSampleID(sample))) {
+                        samples.add(sample);
+                    }
+                }
+            }
+            this.allStarted = allStarted;
+        }
+
+        public RunnerSystem runner(String id) {
+            for (RunnerSystem runner : runners) {
+                if (runner.runner.id.equals(id)) {
+                    return runner;
+                }
+            }
+            return null;
+        }
+
+        public long ageMillis() {
+            return System.currentTimeMillis() - createdAt;
+        }
+
+        boolean isFor(List<Runner> currentRunners) {
+            if (currentRunners.size() != runners.size()) {
+                return false;
+            }
+            for (int i = 0; i < runners.size(); i++) {
+                Runner cached = runners.get(i).runner;
+                Runner actual = currentRunners.get(i);
+                if (!cached.id.equals(actual.id) || !cached.url.equals(actual.url)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.apache.commons.io.FileUtils;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Keeps copies of the sample app zips from the runners on disk, at <code>{cacheDir}/{runnerVersion}/{sampleID}.zip</code>
+ * <p>
+ * A sample is only downloaded from a runner when no runner that has it has a cached copy for its version. Cached
+ * copies older than the revalidation period are served as-is while being downloaded again in the background.
+ * After each successful download, the copies for runner versions that no runner has any more are deleted.
+ */
+public class SampleCache {
+    private static final Logger log = LoggerFactory.getLogger(SampleCache.class);
+
+    public static final Duration DEFAULT_REVALIDATE_AFTER = Duration.ofMinutes(10);
+
+    private final File cacheDir;
+    private final HttpClient httpClient;
+    private final Duration revalidateAfter;
+    private final ConcurrentHashMap<Path, CachedSample> samples = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<CachedSample>> downloads = new ConcurrentHashMap<>();
+
+    public SampleCache(File cacheDir, HttpClient httpClient, Duration revalidateAfter) {
+        this.cacheDir = cacheDir;
+        this.httpClient = httpClient;
+        this.revalidateAfter = revalidateAfter;
+    }
+
+    /**
+     * Gets a sample from disk, downloading it first if needed.
+     * @param requestedID The ID of the sample, e.g. <code>maven</code>, which is matched ignoring case
+     * @param snapshot The latest system info of the runners, used to find which runners have the sample
+     * @return The cached sample, or null if no runner has a sample with the given ID
+     */
+    public CompletableFuture<CachedSample> get(String requestedID, RunnerSystemCache.Snapshot snapshot) {
+        String sampleID = canonicalID(requestedID, snapshot);
+        if (sampleID == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        List<Candidate> candidates = candidates(sampleID, snapshot);
+        if (candidates.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        for (Candidate candidate : candidates) {
+            CachedSample cached = cached(sampleID, candidate.version);
+            if (cached != null) {
+                if (System.currentTimeMillis() - cached.checkedAt > revalidateAfter.toMillis()) {
+                    download(sampleID, List.of(candidate), snapshot);
+                }
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        return download(sampleID, candidates, snapshot);
+    }
+
+    private CachedSample cached(String sampleID, String version) {
+        Path file = fileFor(sampleID, version);
+        CachedSample existing = samples.get(file);
+        if (existing != null) {
+            return existing;
+        }
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try {
+            // left over from a previous run so check it again soon
+            CachedSample fromDisk = new CachedSample(sampleID, version, file, etag(file), Files.getLastModifiedTime(file).toMillis());
+            samples.putIfAbsent(file, fromDisk);
+            return samples.get(file);
+        } catch (IOException e) {
+            log.warn("Could not read cached sample " + file, e);
+            return null;
+        }
+    }
+
+    private CompletableFuture<CachedSample> download(String sampleID, List<Candidate> candidates, RunnerSystemCache.Snapshot snapshot) {
+        CompletableFuture<CachedSample> mine = new CompletableFuture<>();
+        CompletableFuture<CachedSample> existing = downloads.putIfAbsent(sampleID, mine);
+        if (existing != null) {
+            return existing;
+        }
+        downloadFrom(sampleID, candidates.iterator())
+            .whenComplete((sample, error) -> {
+                downloads.remove(sampleID, mine);
+                if (error == null) {
+                    if (sample != null) {
+                        deleteOldVersions(snapshot);
+                    }
+                    mine.complete(sample);
+                } else {
+                    mine.completeExceptionally(error);
+                }
+            });
+        return mine;
+    }
+
+    private CompletableFuture<CachedSample> downloadFrom(String sampleID, Iterator<Candidate> candidates) {
+        if (!candidates.hasNext()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Candidate candidate = candidates.next();
+        Path target = fileFor(sampleID, candidate.version);
+        Path temp;
+        try {
+            Files.createDirectories(target.getParent());
+            temp = Files.createTempFile(target.getParent(), sampleID, ".download");
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        HttpRequest request = HttpRequest.newBuilder(candidate.url)
+            .timeout(Duration.ofSeconds(30))
+            .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofFile(temp))
+            .handle((resp, error) -> {
+                if (error == null && resp.statusCode() == 200) {
+                    try {
+                        return CompletableFuture.completedFuture(store(sampleID, candidate.version, temp, target));
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                deleteQuietly(temp);
+                if (error != null) {
+                    log.warn("Error while trying to download " + candidate.url, error);
+                } else {
+                    log.warn("Got " + resp.statusCode() + " while trying to download " + candidate.url);
+                }
+                return downloadFrom(sampleID, candidates);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    private CachedSample store(String sampleID, String version, Path temp, Path target) throws IOException {
+        String etag = etag(temp);
+        CachedSample existing = samples.get(target);
+        if (existing != null && existing.etag.equals(etag)) {
+            deleteQuietly(temp);
+            CachedSample checked = new CachedSample(sampleID, version, target, etag, System.currentTimeMillis());
+            samples.put(target, checked);
+            return checked;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        CachedSample sample = new CachedSample(sampleID, version, target, etag, System.currentTimeMillis());
+        samples.put(target, sample);
+        log.info("Cached sample " + sampleID + " for runner version " + version + " at " + target);
+        return sample;
+    }
+
+    /**
+     * Deletes the cached samples of runner versions that none of the runners in the snapshot have, so that runner
+     * upgrades do not leave old copies behind. Nothing is deleted if the version of any runner is unknown.
+     */
+    private void deleteOldVersions(RunnerSystemCache.Snapshot snapshot) {
+        Set<String> current = new HashSet<>();
+        for (RunnerSystemCache.RunnerSystem runner : snapshot.runners) {
+            if (runner.error != null) {
+                return;
+            }
+            current.add(safeName(runner.system.optString("appRunnerVersion", "unknown")));
+        }
+        File[] versionDirs = cacheDir.listFiles(File::isDirectory);
+        if (versionDirs == null) {
+            return;
+        }
+        for (File versionDir : versionDirs) {
+            if (current.contains(versionDir.getName())) {
+                continue;
+            }
+            Path versionPath = versionDir.toPath();
+            samples.keySet().removeIf(file -> file.getParent().equals(versionPath));
+            try {
+                FileUtils.deleteDirectory(versionDir);
+                log.info("Deleted the cached samples for runner version " + versionDir.getName() + " as no runner has that version");
+            } catch (IOException e) {
+                log.warn("Could not delete old cached samples at " + versionDir, e);
+            }
+        }
+    }
+
+    private Path fileFor(String sampleID, String version) {
+        return cacheDir.toPath().resolve(safeName(version)).resolve(safeName(sampleID) + ".zip");
+    }
+
+    /**
+     * @return The sample ID as the runners spell it, so that differently cased requests share one cached copy, or
+     * null if no runner has the sample
+     */
+    private static String canonicalID(String requestedID, RunnerSystemCache.Snapshot snapshot) {
+        for (JSONObject sample : snapshot.samples) {
+            String id = RunnerSystemCache.getSampleID(sample);
+            if (id.equalsIgnoreCase(requestedID)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    private static List<Candidate> candidates(String sampleID, RunnerSystemCache.Snapshot snapshot) {
+        List<Candidate> candidates = new ArrayList<>();
+        for (RunnerSystemCache.RunnerSystem runner : snapshot.runners) {
+            if (runner.error != null) {
+                continue;
+            }
+            String version = runner.system.optString("appRunnerVersion", "unknown");
+            for (Object sampleObj : runner.system.getJSONArray("samples")) {
+                JSONObject sample = (JSONObject) sampleObj;
+                if (RunnerSystemCache.getSampleID(sample).equals(sampleID)) {
+                    candidates.add(new Candidate(URI.create(sample.getString("url")), version));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static String safeName(String value) {
+        return value.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private static String etag(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return "\"" + HexFormat.of().formatHex(digest.digest(), 0, 16) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.info("Could not delete " + file + " - " + e.getMessage());
+        }
+    }
+
+    private static class Candidate {
+        final URI url;
+        final String version;
+
+        Candidate(URI url, String version) {
+            this.url = url;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A sample zip that is on disk.
+     */
+    public static class CachedSample {
+        public final String id;
+        public final String runnerVersion;
+        public final Path file;
+        public final String etag;
+        final long checkedAt;
+
+        CachedSample(String id, String runnerVersion, Path file, String etag, long checkedAt) {
+            this.id = id;
+            this.runnerVersion = runnerVersion;
+            this.file = file;
+            this.etag = etag;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
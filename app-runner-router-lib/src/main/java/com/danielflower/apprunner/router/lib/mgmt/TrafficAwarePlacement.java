@@ -0,0 +1,110 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.monitoring.AppTraffic;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Adjusts the ranking of another placement strategy using the traffic the router has seen for the apps already on
+ * each runner.
+ * <p>
+ * Runners hosting any of the busiest apps are tried last, so that a new app does not compete with them. Beyond that,
+ * each runner is moved down the ranking in proportion to its share of the traffic: a runner serving half of the
+ * traffic of four candidates drops two places.
+ */
+public class TrafficAwarePlacement implements PlacementStrategy {
+
+    public static final int DEFAULT_HOT_APPS = 5;
+
+    private final PlacementStrategy base;
+    private final ProxyMap proxyMap;
+    private final AppTraffic traffic;
+    private final int hotApps;
+
+    /**
+     * @param base The strategy whose ranking is adjusted
+     * @param hotApps The number of busiest apps whose runners are avoided
+     */
+    public TrafficAwarePlacement(PlacementStrategy base, ProxyMap proxyMap, AppTraffic traffic, int hotApps) {
+        this.base = base;
+        this.proxyMap = proxyMap;
+        this.traffic = traffic;
+        this.hotApps = hotApps;
+    }
+
+    @Override
+    public List<Runner> rank(PlacementRequest request, List<Runner> candidates) {
+        List<Runner> ordered = base.rank(request, candidates);
+        Map<String, AppTraffic.AppLoad> appLoads = traffic.snapshot();
+        if (appLoads.isEmpty()) {
+            return ordered;
+        }
+        Map<String, URI> mapping = proxyMap.getAll();
+        Set<String> hotRunners = new HashSet<>();
+        for (String app : hottest(appLoads, hotApps)) {
+            Runner runner = runnerOf(mapping.get(app), ordered);
+            if (runner != null) {
+                hotRunners.add(runner.id);
+            }
+        }
+        Map<String, Double> runnerLoads = runnerLoads(ordered, mapping, appLoads);
+        double total = 0;
+        for (double load : runnerLoads.values()) {
+            total += load;
+        }
+        Map<Runner, Double> positions = new HashMap<>();
+        for (int i = 0; i < ordered.size(); i++) {
+            Runner runner = ordered.get(i);
+            double share = total > 0 ? runnerLoads.get(runner.id) / total : 0;
+            positions.put(runner, i + share * ordered.size());
+        }
+        List<Runner> adjusted = new ArrayList<>(ordered);
+        adjusted.sort(Comparator.<Runner, Boolean>comparing(runner -> hotRunners.contains(runner.id)).thenComparingDouble(positions::get));
+        return adjusted;
+    }
+
+    /**
+     * @return The names of the apps with the most load, busiest first, ignoring apps with no load
+     */
+    static List<String> hottest(Map<String, AppTraffic.AppLoad> appLoads, int count) {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, AppTraffic.AppLoad> entry : appLoads.entrySet()) {
+            if (entry.getValue().load() > 0) {
+                names.add(entry.getKey());
+            }
+        }
+        names.sort(Comparator.comparingDouble((String name) -> appLoads.get(name).load()).reversed());
+        return names.subList(0, Math.min(count, names.size()));
+    }
+
+    /**
+     * @return The total load of the apps on each of the given runners, keyed by runner ID
+     */
+    static Map<String, Double> runnerLoads(List<Runner> runners, Map<String, URI> mapping, Map<String, AppTraffic.AppLoad> appLoads) {
+        Map<String, Double> loads = new HashMap<>();
+        for (Runner runner : runners) {
+            loads.put(runner.id, 0.0);
+        }
+        for (Map.Entry<String, AppTraffic.AppLoad> entry : appLoads.entrySet()) {
+            Runner runner = runnerOf(mapping.get(entry.getKey()), runners);
+            if (runner != null) {
+                loads.merge(runner.id, entry.getValue().load(), Double::sum);
+            }
+        }
+        return loads;
+    }
+
+    static Runner runnerOf(URI appUrl, List<Runner> runners) {
+        if (appUrl == null) {
+            return null;
+        }
+        for (Runner runner : runners) {
+            if (runner.url.getAuthority().equals(appUrl.getAuthority())) {
+                return runner;
+            }
+        }
+        return null;
+    }
+}
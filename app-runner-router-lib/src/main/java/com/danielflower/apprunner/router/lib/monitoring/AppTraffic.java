@@ -0,0 +1,133 @@
+package com.danielflower.apprunner.router.lib.monitoring;
+
+import org.json.JSONObject;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps a rolling summary of the requests proxied to each app, where older requests count for less and less so that
+ * the values reflect recent traffic. A request counts half as much after each half-life has passed.
+ */
+public class AppTraffic {
+
+    public static final Duration DEFAULT_HALF_LIFE = Duration.ofMinutes(10);
+    private static final double NEGLIGIBLE_REQUESTS = 0.01;
+
+    private final double decayPerMilli;
+    private final ConcurrentHashMap<String, Rollup> rollups = new ConcurrentHashMap<>();
+
+    public AppTraffic(Duration halfLife) {
+        this.decayPerMilli = Math.log(2) / halfLife.toMillis();
+    }
+
+    /**
+     * Records a completed request to an app.
+     */
+    public void record(String appName, long durationMillis) {
+        record(appName, durationMillis, System.currentTimeMillis());
+    }
+
+    void record(String appName, long durationMillis, long now) {
+        rollups.compute(appName, (name, existing) -> {
+            Rollup rollup = existing == null ? new Rollup(now) : existing;
+            rollup.add(Math.max(0, durationMillis), now, decayPerMilli);
+            return rollup;
+        });
+    }
+
+    /**
+     * Forgets the traffic of an app, for example because it was deleted.
+     */
+    public void remove(String appName) {
+        rollups.remove(appName);
+    }
+
+    /**
+     * @return The current traffic of each app that has had requests recently
+     */
+    public Map<String, AppLoad> snapshot() {
+        return snapshot(System.currentTimeMillis());
+    }
+
+    Map<String, AppLoad> snapshot(long now) {
+        Map<String, AppLoad> loads = new HashMap<>();
+        for (Map.Entry<String, Rollup> entry : rollups.entrySet()) {
+            AppLoad load;
+            synchronized (entry.getValue()) {
+                load = entry.getValue().toLoad(now, decayPerMilli);
+            }
+            if (load.requests < NEGLIGIBLE_REQUESTS) {
+                rollups.remove(entry.getKey(), entry.getValue());
+            } else {
+                loads.put(entry.getKey(), load);
+            }
+        }
+        return loads;
+    }
+
+    /**
+     * The recent traffic of a single app.
+     */
+    public static class AppLoad {
+        final double requests;
+        public final double requestsPerSecond;
+        public final double meanLatencyMillis;
+
+        AppLoad(double requests, double requestsPerSecond, double meanLatencyMillis) {
+            this.requests = requests;
+            this.requestsPerSecond = requestsPerSecond;
+            this.meanLatencyMillis = meanLatencyMillis;
+        }
+
+        /**
+         * @return The average number of requests in progress at once, which is the request rate multiplied by the
+         * latency. This combines both into a measure of how much work an app gives the runner it is on.
+         */
+        public double load() {
+            return requestsPerSecond * meanLatencyMillis / 1000.0;
+        }
+
+        public JSONObject toJSON() {
+            return new JSONObject()
+                .put("requestsPerSecond", requestsPerSecond)
+                .put("meanLatencyMillis", meanLatencyMillis)
+                .put("load", load());
+        }
+    }
+
+    private static class Rollup {
+        private double requests;
+        private double latencyMillis;
+        private long updatedAt;
+
+        Rollup(long now) {
+            this.updatedAt = now;
+        }
+
+        synchronized void add(long durationMillis, long now, double decayPerMilli) {
+            decayTo(now, decayPerMilli);
+            requests += 1;
+            latencyMillis += durationMillis;
+        }
+
+        AppLoad toLoad(long now, double decayPerMilli) {
+            decayTo(now, decayPerMilli);
+            // with a constant rate r per milli the decayed count settles at r / decayPerMilli
+            double requestsPerSecond = requests * decayPerMilli * 1000;
+            double meanLatency = requests == 0 ? 0 : latencyMillis / requests;
+            return new AppLoad(requests, requestsPerSecond, meanLatency);
+        }
+
+        private void decayTo(long now, double decayPerMilli) {
+            if (now > updatedAt) {
+                double factor = Math.exp(-decayPerMilli * (now - updatedAt));
+                requests *= factor;
+                latencyMillis *= factor;
+                updatedAt = now;
+            }
+        }
+    }
+}
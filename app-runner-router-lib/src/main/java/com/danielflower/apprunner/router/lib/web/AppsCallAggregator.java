@@ -27,42 +27,49 @@ public class AppsCallAggregator implements RouteHandler {
     }
 
     @Override
-    public void handle(MuRequest request, MuResponse response, Map<String, String> pathParams) throws Exception {
-        try {
-            corsConfig.writeHeaders(request, response, new HashSet<>(asList(Method.GET, Method.POST, Method.PUT, Method.DELETE)));
+    public void handle(MuRequest request, MuResponse response, Map<String, String> pathParams) {
+        corsConfig.writeHeaders(request, response, new HashSet<>(asList(Method.GET, Method.POST, Method.PUT, Method.DELETE)));
 
-            MapManager.Result results = mapManager.loadAllApps(request, cluster.getRunners());
-            JSONObject all = new JSONObject();
-            List<JSONObject> unsorted = new ArrayList<>();
-
-            for (JSONObject result : results.appsJsonFromEachRunner) {
-                JSONArray singleApps = result.getJSONArray("apps");
-                for (Object singleApp : singleApps) {
-                    JSONObject appJson = (JSONObject) singleApp;
-                    appJson.put("appRunnerInstanceId", result.getString("appRunnerInstanceId"));
-                    unsorted.add(appJson);
+        AsyncHandle asyncHandle = request.handleAsync();
+        mapManager.loadAllAppsAsync(request, cluster.getAvailableRunners(), MapManager.DEFAULT_DEADLINE)
+            .thenApply(AppsCallAggregator::aggregate)
+            .whenComplete((all, error) -> {
+                if (error == null) {
+                    response.status(200);
+                    response.contentType(ContentTypes.APPLICATION_JSON);
+                    AsyncResponses.writeAndComplete(request, asyncHandle, response, all.toString(4));
+                } else {
+                    log.error("Error while aggregating the " + request + " call", error);
+                    asyncHandle.complete(new ServerErrorException("Error while aggregating the calls.", 502));
                 }
-            }
-            unsorted.sort(Comparator.comparing(o -> o.getString("name").toLowerCase()));
-            JSONArray apps = new JSONArray();
-            for (JSONObject jsonObject : unsorted) {
-                apps.put(jsonObject);
-            }
-            all.put("appCount", apps.length());
-            all.put("apps", apps);
+            });
+    }
 
-            JSONArray errors = new JSONArray();
-            for (String error : results.errors) {
-                errors.put(error);
+    private static JSONObject aggregate(MapManager.Result results) {
+        JSONObject all = new JSONObject();
+        List<JSONObject> unsorted = new ArrayList<>();
+
+        for (JSONObject result : results.appsJsonFromEachRunner) {
+            JSONArray singleApps = result.getJSONArray("apps");
+            for (Object singleApp : singleApps) {
+                JSONObject appJson = (JSONObject) singleApp;
+                appJson.put("appRunnerInstanceId", result.getString("appRunnerInstanceId"));
+                unsorted.add(appJson);
             }
-            all.put("errors", errors);
+        }
+        unsorted.sort(Comparator.comparing(o -> o.getString("name").toLowerCase()));
+        JSONArray apps = new JSONArray();
+        for (JSONObject jsonObject : unsorted) {
+            apps.put(jsonObject);
+        }
+        all.put("appCount", apps.length());
+        all.put("apps", apps);
 
-            response.status(200);
-            response.contentType(ContentTypes.APPLICATION_JSON);
-            response.write(all.toString(4));
-        } catch (Exception e) {
-            log.error("Error while aggregating the " + request + " call", e);
-            throw new ServerErrorException("Error while aggregating the calls.", 502);
+        JSONArray errors = new JSONArray();
+        for (String error : results.errors) {
+            errors.put(error);
         }
+        all.put("errors", errors);
+        return all;
     }
 }
@@ -0,0 +1,28 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import io.muserver.*;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for route handlers that call {@link io.muserver.MuRequest#handleAsync()} and so cannot use the
+ * blocking write methods on {@link MuResponse}.
+ */
+class AsyncResponses {
+
+    static void writeAndComplete(MuRequest request, AsyncHandle asyncHandle, MuResponse response, String body) {
+        ByteBuffer bytes = Mutils.toByteBuffer(body);
+        response.headers().set(HeaderNames.CONTENT_LENGTH, bytes.remaining());
+        if (request.method() == Method.HEAD) {
+            asyncHandle.complete();
+            return;
+        }
+        asyncHandle.write(bytes, error -> {
+            if (error == null) {
+                asyncHandle.complete();
+            } else {
+                asyncHandle.complete(error);
+            }
+        });
+    }
+}
@@ -0,0 +1,194 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.CreationAdmission;
+import com.danielflower.apprunner.router.lib.mgmt.PlacementRequest;
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import io.muserver.*;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.ws.rs.BadRequestException;
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates many apps from one request to <code>POST /api/v1/app-batches</code>, with a JSON body like
+ * <code>{"apps":[{"appName":"app1","gitUrl":"..."},...]}</code> where each object has the same fields as the form
+ * posted to create a single app.
+ * <p>
+ * The whole batch is planned before anything is created: names that are already taken or repeated in the batch
+ * get a 409, and each other app is given a runner with a place reserved on it, so that apps later in the batch
+ * cannot have their places taken by other creations. Apps that no runner has room for get a 503. The rest are
+ * created in parallel, a few at a time and within the per-runner limit of the {@link CreationAdmission}, falling
+ * back to other runners if their planned runner fails, and the response has the result for each app in the order
+ * they were given. Placement headers such as <code>X-Required-Label</code> apply to every app in the batch.
+ */
+public class BatchCreateHandler implements RouteHandler {
+    private static final Logger log = LoggerFactory.getLogger(BatchCreateHandler.class);
+
+    public static final int MAX_BATCH_SIZE = 200;
+    public static final int DEFAULT_PARALLELISM = 8;
+
+    private final CreateAppHandler createAppHandler;
+    private final ProxyMap proxyMap;
+    private final Cluster cluster;
+    private final int parallelism;
+
+    /**
+     * @param parallelism The most creations from one batch that are in progress at once
+     */
+    public BatchCreateHandler(CreateAppHandler createAppHandler, ProxyMap proxyMap, Cluster cluster, int parallelism) {
+        this.createAppHandler = createAppHandler;
+        this.proxyMap = proxyMap;
+        this.cluster = cluster;
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public void handle(MuRequest request, MuResponse response, Map<String, String> pathParams) throws IOException {
+        PlacementRequest placement = CreateAppHandler.placementRequest(request);
+        List<BatchItem> items = parse(request.readBodyAsString());
+        HttpRequest.Builder creationTemplate = CreateAppHandler.creationTemplate(request, "application/x-www-form-urlencoded");
+
+        AsyncHandle asyncHandle = request.handleAsync();
+        createAppHandler.refreshStaleRunners(request)
+            .thenCompose(ignored -> {
+                List<BatchItem> toCreate = plan(items, placement);
+                log.info("Creating " + toCreate.size() + " of " + items.size() + " apps in a batch");
+                return createAll(toCreate, creationTemplate, placement);
+            })
+            .whenComplete((ignored, error) -> {
+                if (error == null) {
+                    JSONArray results = new JSONArray();
+                    for (BatchItem item : items) {
+                        results.put(item.toJSON());
+                    }
+                    response.status(200);
+                    response.contentType(ContentTypes.APPLICATION_JSON);
+                    AsyncResponses.writeAndComplete(request, asyncHandle, response, new JSONObject().put("results", results).toString(4));
+                } else {
+                    log.error("Error while creating a batch of apps", error);
+                    asyncHandle.complete(error);
+                }
+            });
+    }
+
+    private static List<BatchItem> parse(String body) {
+        JSONArray apps;
+        try {
+            apps = new JSONObject(body).getJSONArray("apps");
+        } catch (JSONException e) {
+            throw new BadRequestException("The body must be a JSON object with an apps array: " + e.getMessage());
+        }
+        if (apps.length() > MAX_BATCH_SIZE) {
+            throw new BadRequestException("A batch can have at most " + MAX_BATCH_SIZE + " apps");
+        }
+        List<BatchItem> items = new ArrayList<>();
+        for (int i = 0; i < apps.length(); i++) {
+            JSONObject app = apps.optJSONObject(i);
+            if (app == null) {
+                throw new BadRequestException("Item " + i + " in the apps array is not an object");
+            }
+            StringBuilder form = new StringBuilder();
+            for (String key : app.keySet()) {
+                if (form.length() > 0) {
+                    form.append('&');
+                }
+                form.append(Mutils.urlEncode(key)).append('=').append(Mutils.urlEncode(String.valueOf(app.get(key))));
+            }
+            String createBody = form.toString();
+            String name = CreateAppHandler.getNameFromBody(createBody);
+            if (name == null || name.isEmpty()) {
+                throw new BadRequestException("Item " + i + " in the apps array needs an appName or gitUrl");
+            }
+            items.add(new BatchItem(name, createBody));
+        }
+        return items;
+    }
+
+    /**
+     * Sets the result of any items that will not be created, and reserves a runner for each of the others, which
+     * are returned. The reservations are released as each creation finishes.
+     */
+    private List<BatchItem> plan(List<BatchItem> items, PlacementRequest placement) {
+        Set<String> names = new HashSet<>();
+        List<BatchItem> toCreate = new ArrayList<>();
+        for (BatchItem item : items) {
+            if (!names.add(item.name) || proxyMap.get(item.name) != null) {
+                item.result = CreateAppHandler.alreadyExists();
+                continue;
+            }
+            Optional<Runner> runner = cluster.allocateRunner(placement.forApp(item.name), Integer.MAX_VALUE);
+            if (runner.isPresent()) {
+                item.runner = runner.get();
+                toCreate.add(item);
+            } else {
+                item.result = new CreateAppHandler.CreationResponse(503, null, "There is no free capacity for this app in the batch");
+            }
+        }
+        return toCreate;
+    }
+
+    private CompletableFuture<Void> createAll(List<BatchItem> toCreate, HttpRequest.Builder creationTemplate, PlacementRequest placement) {
+        AtomicInteger next = new AtomicInteger();
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(parallelism, toCreate.size()); i++) {
+            workers.add(createNext(toCreate, next, creationTemplate, placement));
+        }
+        return CompletableFuture.allOf(workers.toArray(new CompletableFuture[0]));
+    }
+
+    private CompletableFuture<Void> createNext(List<BatchItem> toCreate, AtomicInteger next, HttpRequest.Builder creationTemplate, PlacementRequest placement) {
+        int index = next.getAndIncrement();
+        if (index >= toCreate.size()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        BatchItem item = toCreate.get(index);
+        return createAppHandler.createIfNew(creationTemplate, item.createBody, item.name, placement, null, item.runner)
+            .handle((result, error) -> {
+                if (error == null) {
+                    item.result = result;
+                } else {
+                    log.warn("Error creating " + item.name + " in a batch", error);
+                    item.result = new CreateAppHandler.CreationResponse(502, null, "Error while creating app: " + error.getMessage());
+                }
+                return null;
+            })
+            .thenCompose(ignored -> createNext(toCreate, next, creationTemplate, placement));
+    }
+
+    private static class BatchItem {
+        final String name;
+        final String createBody;
+        Runner runner; // reserved when the batch is planned
+        volatile CreateAppHandler.CreationResponse result;
+
+        BatchItem(String name, String createBody) {
+            this.name = name;
+            this.createBody = createBody;
+        }
+
+        JSONObject toJSON() {
+            JSONObject json = new JSONObject()
+                .put("appName", name)
+                .put("status", result.status);
+            String content = result.content;
+            if (content != null && result.contentType != null && result.contentType.contains("json")) {
+                try {
+                    json.put("body", new JSONObject(content));
+                    return json;
+                } catch (JSONException e) {
+                    // fall through to return it as a string
+                }
+            }
+            return json.put("body", content);
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package com.danielflower.apprunner.router.lib.web;
 
+import com.danielflower.apprunner.router.lib.mgmt.AppEventSubscriber;
 import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.CreationAdmission;
 import com.danielflower.apprunner.router.lib.mgmt.MapManager;
+import com.danielflower.apprunner.router.lib.mgmt.PlacementRequest;
 import com.danielflower.apprunner.router.lib.mgmt.Runner;
 import io.muserver.*;
 import io.muserver.murp.ReverseProxy;
@@ -10,27 +13,56 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import jakarta.ws.rs.BadRequestException;
 import jakarta.ws.rs.ServerErrorException;
+import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 public class CreateAppHandler implements RouteHandler {
     private static final Logger log = LoggerFactory.getLogger(CreateAppHandler.class);
+
+    /**
+     * Runners whose apps have not been loaded for this long are queried before a creation. This is longer than the
+     * longest interval between background reconciliations, so normally no runners are queried.
+     */
+    static final Duration MAX_INDEX_AGE = Duration.ofSeconds(90);
+
     private final ProxyMap proxyMap;
     private final MapManager mapManager;
     private final Cluster cluster;
     private final HttpClient client;
+    private final AppEventSubscriber appEventSubscriber;
+    private final CreationJobs creationJobs;
+    private final CreationAdmission admission;
+    private final Set<String> creating = ConcurrentHashMap.newKeySet();
 
-
-    public CreateAppHandler(ProxyMap proxyMap, MapManager mapManager, Cluster cluster, HttpClient client) {
+    /**
+     * @param appEventSubscriber If not null, runners with a live event stream are never queried before a creation
+     * @param creationJobs If not null, requests with a <code>Prefer: respond-async</code> header get a 202 response
+     *                     and the creation is run as a job
+     * @param admission Limits how many creations run at once and picks the runner for each
+     */
+    public CreateAppHandler(ProxyMap proxyMap, MapManager mapManager, Cluster cluster, HttpClient client, AppEventSubscriber appEventSubscriber,
+                            CreationJobs creationJobs, CreationAdmission admission) {
         this.proxyMap = proxyMap;
         this.mapManager = mapManager;
         this.cluster = cluster;
         this.client = client;
+        this.appEventSubscriber = appEventSubscriber;
+        this.creationJobs = creationJobs;
+        this.admission = admission;
     }
 
     public static String getNameFromBody(String rawBody) {
@@ -41,7 +73,7 @@ public class CreateAppHandler implements RouteHandler {
             if (nvp[0].equals("appName") && nvp.length > 1) {
                 name = Mutils.urlDecode(nvp[1]);
                 break;
-            } else if (nvp[0].equals("gitUrl")) {
+            } else if (nvp[0].equals("gitUrl") && nvp.length > 1) {
                 String temp = StringUtils.removeEndIgnoreCase(StringUtils.removeEnd(Mutils.urlDecode(nvp[1]), "/"), ".git");
                 temp = temp.substring(Math.max(temp.lastIndexOf('/'), temp.lastIndexOf('\\')) + 1);
                 name = temp;
@@ -51,107 +83,319 @@ public class CreateAppHandler implements RouteHandler {
     }
 
     @Override
-    public void handle(MuRequest request, MuResponse clientResp, Map<String, String> pathParams) {
-        try {
-            List<String> excludedRunnerIDs = new ArrayList<>(request.headers().getAll("X-Excluded-Runner"));
-            String createBody = request.readBodyAsString();
+    public void handle(MuRequest request, MuResponse clientResp, Map<String, String> pathParams) throws IOException {
+        PlacementRequest placement = placementRequest(request);
+        String createBody = request.readBodyAsString();
+
+        String nameFromBody = getNameFromBody(createBody);
+        if (nameFromBody == null || nameFromBody.isBlank()) {
+            throw new BadRequestException("An appName or gitUrl is needed to create an app");
+        }
 
-            String nameFromBody = getNameFromBody(createBody);
+        // built now so that async creations do not need the client request after it has been responded to
+        HttpRequest.Builder creationTemplate = creationTemplate(request, request.headers().get("Content-Type"));
 
-            // This refreshes the proxyMap's view of which apps are on which runners
-            mapManager.loadAllApps(request, cluster.getRunners());
+        if (!claim(nameFromBody)) {
+            clientResp.status(409);
+            clientResp.contentType(ContentTypes.APPLICATION_JSON);
+            clientResp.write(alreadyExists().content);
+            return;
+        }
 
-            if (proxyMap.get(nameFromBody) != null) {
-                log.info("Was asked to create " + nameFromBody + " but it is already an existing app");
-                clientResp.status(409);
-                clientResp.contentType(ContentTypes.APPLICATION_JSON);
-                clientResp.write(new JSONObject()
-                    .put("message", "There is already an app with that ID")
-                    .toString(4));
+        if (creationJobs != null && request.headers().getAll("Prefer").stream().anyMatch(p -> p.contains("respond-async"))) {
+            CreationJob job = creationJobs.submit(nameFromBody, j ->
+                create(null, creationTemplate, createBody, nameFromBody, placement, j)
+                    .whenComplete((creation, error) -> {
+                        if (error == null) {
+                            j.finished(creation.status, creation.contentType, creation.content);
+                        } else {
+                            log.error("Error creating " + nameFromBody + " in job " + j.id, error);
+                            j.failed("Error while creating app: " + error.getMessage());
+                        }
+                    }));
+            if (job == null) {
+                creating.remove(nameFromBody);
+                clientResp.status(503);
+                clientResp.write("Too many app creations are queued. Please try again later.");
                 return;
             }
+            log.info("Accepted creation of " + nameFromBody + " as job " + job.id);
+            clientResp.status(202);
+            clientResp.headers().set(HeaderNames.LOCATION, request.uri().resolve("/api/v1/app-jobs/" + job.id).toString());
+            clientResp.headers().set("Preference-Applied", "respond-async");
+            clientResp.contentType(ContentTypes.APPLICATION_JSON);
+            clientResp.write(job.toJSON().toString(4));
+            return;
+        }
 
-            log.info("Going to create " + nameFromBody);
-
-            boolean finished = false;
-            Set<CreationError> creationErrors = new HashSet<>();
-            while (!finished) {
-                Optional<Runner> optTargetRunner = cluster.allocateRunner(proxyMap.getAll(), excludedRunnerIDs);
-                if (optTargetRunner.isPresent()) {
-                    Runner targetRunner = optTargetRunner.get();
-                    URI targetAppRunner = targetRunner.url.resolve("/api/v1/apps");
-                    HttpRequest.Builder creationReqBuilder = HttpRequest.newBuilder(targetAppRunner)
-                        .method("POST", HttpRequest.BodyPublishers.ofString(createBody));
-
-                    ReverseProxy.setForwardedHeaders(request, creationReqBuilder, false, true);
-                    creationReqBuilder.header("Accept", "*/*"); // for old apprunner instances
-                    creationReqBuilder.header("Content-Type", request.headers().get("Content-Type"));
-
-                    var creationReq = creationReqBuilder.build();
-
-                    log.info("Sending " + creationReq.method() + " " + creationReq.uri() + " with " + creationReq.headers() + " and body " + createBody);
-
-                    HttpResponse<String> creationResp;
-                    String content;
-                    try {
-                        creationResp = client.send(creationReq, HttpResponse.BodyHandlers.ofString());
-                        content = creationResp.body();
-                        log.info("Received " + creationResp.statusCode() + " with headers " + creationResp.headers() + " and content " + content);
-                        if ((creationResp.statusCode() / 100) == 5) {
-                            log.warn("Got a " + creationResp.statusCode() + " from " + targetRunner.id);
-                            creationErrors.add(new CreationError(creationResp.statusCode(), content));
-                            throw new TargetServerErrorException();
-                        }
-                        log.info("Proxying app creation with " + creationResp);
+        AsyncHandle asyncHandle = request.handleAsync();
+        create(request, creationTemplate, createBody, nameFromBody, placement, null)
+            .whenComplete((creation, error) -> {
+                if (error == null) {
+                    clientResp.status(creation.status);
+                    if (creation.contentType != null) {
+                        clientResp.headers().add("Content-Type", creation.contentType);
+                    }
+                    AsyncResponses.writeAndComplete(request, asyncHandle, clientResp, creation.content);
+                } else {
+                    String errorID = "ERR" + UUID.randomUUID();
+                    log.error("Error creating an app. Error ID=" + errorID, error);
+                    asyncHandle.complete(new ServerErrorException("Error while creating app. Error ID=" + errorID, 502));
+                }
+            });
+    }
 
-                    } catch (InterruptedException e) {
-                        break;
-                    } catch (Exception e) {
-                        if (!(e instanceof TargetServerErrorException)) {
-                            creationErrors.add(new CreationError(0, "Error talking to " + targetRunner.id + ": " + e));
-                            log.warn("Error while calling POST " + targetAppRunner + " to create a new app. Will retry if" +
-                                " there are more runners. Error was " + e.getClass().getName() + " " + e.getMessage());
-                        }
-                        targetRunner.refreshRunnerCountCache(proxyMap.getAll());
-                        excludedRunnerIDs.add(targetRunner.id);
-                        continue;
+    /**
+     * Gets the placement constraints from the request headers: <code>X-Excluded-Runner</code> with runner IDs,
+     * <code>X-Required-Label</code> and <code>X-Preferred-Label</code> with labels such as <code>zone=eu-1</code>,
+     * and <code>X-Anti-Affinity</code> with the names of apps that the new app should not share a runner with.
+     * Each header can be repeated or have comma separated values.
+     * @throws BadRequestException if a label is invalid
+     */
+    static PlacementRequest placementRequest(MuRequest request) {
+        try {
+            Set<String> antiAffinity = new HashSet<>();
+            for (String value : request.headers().getAll("X-Anti-Affinity")) {
+                for (String app : value.split(",")) {
+                    if (!app.isBlank()) {
+                        antiAffinity.add(app.trim());
                     }
-                    clientResp.status(creationResp.statusCode());
-                    Optional<String> creationRespContentType = creationResp.headers().firstValue("Content-Type");
-                    if (creationRespContentType.isPresent()) {
-                        clientResp.headers().add("Content-Type", creationRespContentType.get());
+                }
+            }
+            return new PlacementRequest(null, request.headers().getAll("X-Excluded-Runner"),
+                Runner.parseLabels(request.headers().getAll("X-Required-Label")),
+                Runner.parseLabels(request.headers().getAll("X-Preferred-Label")),
+                antiAffinity);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+    }
+
+    /**
+     * @return A request builder with the headers that every creation request to a runner has, but no URI or body
+     */
+    static HttpRequest.Builder creationTemplate(MuRequest request, String contentType) {
+        HttpRequest.Builder creationTemplate = HttpRequest.newBuilder();
+        ReverseProxy.setForwardedHeaders(request, creationTemplate, false, true);
+        creationTemplate.header("Accept", "*/*"); // for old apprunner instances
+        if (contentType != null) {
+            creationTemplate.header("Content-Type", contentType);
+        }
+        return creationTemplate;
+    }
+
+    /**
+     * Creates an app whose name has already been claimed, releasing the claim when done.
+     * @param request The client request, or null if it has already been responded to
+     * @param job The job to record progress against, or null if the client is waiting for the result
+     */
+    private CompletableFuture<CreationResponse> create(MuRequest request, HttpRequest.Builder creationTemplate, String createBody,
+                                                       String nameFromBody, PlacementRequest placement, CreationJob job) {
+        return releasingClaim(nameFromBody, () -> refreshStaleRunners(request)
+            .thenCompose(ignored -> createClaimed(creationTemplate, createBody, nameFromBody, placement, job, null)));
+    }
+
+    /**
+     * Claims a name for a creation so that concurrent creations of the same app cannot both go ahead. The claim
+     * is released when the creation finishes, after which the proxy map has the app if it was created.
+     * @return False if the app already exists or is being created
+     */
+    private boolean claim(String name) {
+        if (proxyMap.get(name) != null || !creating.add(name)) {
+            return false;
+        }
+        if (proxyMap.get(name) != null) {
+            creating.remove(name);
+            return false;
+        }
+        return true;
+    }
+
+    private CompletableFuture<CreationResponse> releasingClaim(String name, Supplier<CompletableFuture<CreationResponse>> creation) {
+        CompletableFuture<CreationResponse> started;
+        try {
+            started = creation.get();
+        } catch (RuntimeException e) {
+            started = CompletableFuture.failedFuture(e);
+        }
+        return started.whenComplete((result, error) -> creating.remove(name));
+    }
+
+    /**
+     * Reloads the apps of runners that the proxy map may be out of date for. The proxy map is kept current by events
+     * and background reconciliation, so normally nothing is loaded.
+     */
+    CompletableFuture<?> refreshStaleRunners(MuRequest request) {
+        List<Runner> stale = staleRunners();
+        return stale.isEmpty()
+            ? CompletableFuture.completedFuture(null)
+            : mapManager.loadAllAppNamesAsync(request, stale, MapManager.DEFAULT_DEADLINE);
+    }
+
+    /**
+     * Creates the app on the best runner that meets the placement constraints, trying other runners if it fails,
+     * unless the proxy map already has an app with that name or another creation of it is in progress.
+     * @param reserved A runner that already has a place reserved for the app, which is tried first and has its
+     *                 reservation released when the creation finishes, or null to pick a runner
+     */
+    CompletableFuture<CreationResponse> createIfNew(HttpRequest.Builder creationTemplate, String createBody,
+                                                    String nameFromBody, PlacementRequest placement, CreationJob job, Runner reserved) {
+        if (!claim(nameFromBody)) {
+            log.info("Was asked to create " + nameFromBody + " but it already exists or is being created");
+            if (reserved != null) {
+                reserved.releaseReservation();
+            }
+            return CompletableFuture.completedFuture(alreadyExists());
+        }
+        return releasingClaim(nameFromBody, () -> createClaimed(creationTemplate, createBody, nameFromBody, placement, job, reserved));
+    }
+
+    private CompletableFuture<CreationResponse> createClaimed(HttpRequest.Builder creationTemplate, String createBody, String nameFromBody,
+                                                              PlacementRequest placement, CreationJob job, Runner reserved) {
+        if (proxyMap.get(nameFromBody) != null) {
+            log.info("Was asked to create " + nameFromBody + " but it is already an existing app");
+            if (reserved != null) {
+                reserved.releaseReservation();
+            }
+            return CompletableFuture.completedFuture(alreadyExists());
+        }
+        log.info("Going to create " + nameFromBody);
+        PlacementRequest appPlacement = placement.forApp(nameFromBody);
+        if (reserved != null) {
+            return admitted(admission.allocateReserved(reserved), creationTemplate, createBody, appPlacement, new HashSet<>(), job, reserved);
+        }
+        return createOnNextRunner(creationTemplate, createBody, appPlacement, new HashSet<>(), job);
+    }
+
+    static CreationResponse alreadyExists() {
+        return new CreationResponse(409, ContentTypes.APPLICATION_JSON.toString(),
+            new JSONObject()
+                .put("message", "There is already an app with that ID")
+                .toString(4));
+    }
+
+    private List<Runner> staleRunners() {
+        long oldest = System.currentTimeMillis() - MAX_INDEX_AGE.toMillis();
+        List<Runner> stale = new ArrayList<>();
+        for (Runner runner : cluster.getAvailableRunners()) {
+            boolean pushed = appEventSubscriber != null && appEventSubscriber.isConnected(runner);
+            if (!pushed && mapManager.appsLoadedAt(runner) < oldest) {
+                stale.add(runner);
+            }
+        }
+        if (!stale.isEmpty()) {
+            log.info("Reloading apps from " + stale.size() + " runners before creating an app as they may be out of date");
+        }
+        return stale;
+    }
+
+    private CompletableFuture<CreationResponse> createOnNextRunner(HttpRequest.Builder creationTemplate, String createBody, PlacementRequest placement,
+                                                                   Set<CreationError> creationErrors, CreationJob job) {
+        return admitted(admission.allocate(placement), creationTemplate, createBody, placement, creationErrors, job, null);
+    }
+
+    /**
+     * @param reserved The runner the allocation was for, which has its reservation released if the allocation fails,
+     *                 or null if the allocation picks the runner
+     */
+    private CompletableFuture<CreationResponse> admitted(CompletableFuture<Optional<Runner>> allocation, HttpRequest.Builder creationTemplate,
+                                                         String createBody, PlacementRequest placement, Set<CreationError> creationErrors,
+                                                         CreationJob job, Runner reserved) {
+        return allocation
+            .handle((optTargetRunner, error) -> {
+                if (error != null) {
+                    if (reserved != null) {
+                        reserved.releaseReservation();
                     }
-                    if (creationResp.statusCode() == 201) {
-                        log.info("Created new app: " + content);
-                        JSONObject resp = new JSONObject(content);
-                        String appName = resp.getString("name");
-                        proxyMap.add(appName, targetAppRunner.resolve("/" + appName));
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    if (cause instanceof RejectedExecutionException) {
+                        log.warn("Rejecting app creation: " + cause.getMessage());
+                        return CompletableFuture.completedFuture(new CreationResponse(503, null, "Too many app creations are in progress. Please try again later."));
                     }
-                    finished = true;
-                    clientResp.write(content);
+                    return CompletableFuture.<CreationResponse>failedFuture(cause);
+                }
+                return createOnRunner(creationTemplate, createBody, placement, creationErrors, job, optTargetRunner);
+            })
+            .thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<CreationResponse> createOnRunner(HttpRequest.Builder creationTemplate, String createBody, PlacementRequest placement,
+                                                               Set<CreationError> creationErrors, CreationJob job, Optional<Runner> optTargetRunner) {
+        if (optTargetRunner.isEmpty()) {
+            if (creationErrors.size() == 1) {
+                CreationError creationError = creationErrors.stream().findAny().get();
+                return CompletableFuture.completedFuture(new CreationResponse(creationError.status, null, creationError.message));
+            }
+            String message = creationErrors.isEmpty()
+                ? "There are no App Runner instances with free capacity" + (placement.hasConstraints() ? " that meet the placement constraints" : "")
+                : "No available AppRunner instances available! Errors returned were: "
+                + creationErrors.stream().map(e -> e.message + " (" + e.status + ")").collect(Collectors.joining("; "));
+            log.error(message);
+            return CompletableFuture.completedFuture(new CreationResponse(503, null, message));
+        }
+
+        Runner targetRunner = optTargetRunner.get();
+        URI targetAppRunner = targetRunner.url.resolve("/api/v1/apps");
+        var creationReq = creationTemplate.copy()
+            .uri(targetAppRunner)
+            .method("POST", HttpRequest.BodyPublishers.ofString(createBody))
+            .build();
 
+        log.info("Sending " + creationReq.method() + " " + creationReq.uri() + " with " + creationReq.headers() + " and body " + createBody);
+        if (job != null) {
+            job.attempting(targetRunner.id);
+        }
+
+        return client.sendAsync(creationReq, HttpResponse.BodyHandlers.ofString())
+            .handle((creationResp, error) -> {
+                if (error != null) {
+                    admission.release(targetRunner);
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    creationErrors.add(new CreationError(0, "Error talking to " + targetRunner.id + ": " + cause));
+                    if (job != null) {
+                        job.attemptFailed(cause.toString());
+                    }
+                    log.warn("Error while calling POST " + targetAppRunner + " to create a new app. Will retry if" +
+                        " there are more runners. Error was " + cause.getClass().getName() + " " + cause.getMessage());
                 } else {
-                    finished = true;
-                    if (creationErrors.size() == 1) {
-                        CreationError creationError = creationErrors.stream().findAny().get();
-                        clientResp.status(creationError.status);
-                        clientResp.write(creationError.message);
+                    String content = creationResp.body();
+                    log.info("Received " + creationResp.statusCode() + " with headers " + creationResp.headers() + " and content " + content);
+                    if ((creationResp.statusCode() / 100) == 5) {
+                        admission.release(targetRunner);
+                        log.warn("Got a " + creationResp.statusCode() + " from " + targetRunner.id);
+                        creationErrors.add(new CreationError(creationResp.statusCode(), content));
+                        if (job != null) {
+                            job.attemptFailed(creationResp.statusCode() + " " + content);
+                        }
                     } else {
-                        String message = creationErrors.isEmpty()
-                            ? "There are no App Runner instances with free capacity"
-                            : "No available AppRunner instances available! Errors returned were: "
-                            + creationErrors.stream().map(e -> e.message + " (" + e.status + ")").collect(Collectors.joining("; "));
-                        log.error(message);
-                        clientResp.status(503);
-                        clientResp.write(message);
+                        log.info("Proxying app creation with " + creationResp);
+                        if (creationResp.statusCode() == 201) {
+                            log.info("Created new app: " + content);
+                            JSONObject resp = new JSONObject(content);
+                            String appName = resp.getString("name");
+                            proxyMap.add(appName, targetAppRunner.resolve("/" + appName));
+                            targetRunner.refreshRunnerCountCache(proxyMap.getAll());
+                        }
+                        admission.release(targetRunner);
+                        return CompletableFuture.completedFuture(new CreationResponse(creationResp.statusCode(),
+                            creationResp.headers().firstValue("Content-Type").orElse(null), content));
                     }
                 }
+                targetRunner.refreshRunnerCountCache(proxyMap.getAll());
+                return createOnNextRunner(creationTemplate, createBody, placement.excluding(targetRunner.id), creationErrors, job);
+            })
+            .thenCompose(Function.identity());
+    }
 
-            }
-        } catch (Exception e) {
-            String errorID = "ERR" + UUID.randomUUID();
-            log.error("Error creating an app. Error ID=" + errorID, e);
-            throw new ServerErrorException("Error while creating app. Error ID=" + errorID, 502);
+    static class CreationResponse {
+        public final int status;
+        public final String contentType;
+        public final String content;
+
+        CreationResponse(int status, String contentType, String content) {
+            this.status = status;
+            this.contentType = contentType;
+            this.content = content;
         }
     }
 
@@ -181,7 +425,4 @@ public class CreateAppHandler implements RouteHandler {
         }
     }
 
-    private static final class TargetServerErrorException extends RuntimeException {
-    }
-
 }
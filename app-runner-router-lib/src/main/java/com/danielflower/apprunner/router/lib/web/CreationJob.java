@@ -0,0 +1,108 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The progress and result of an app creation that was accepted with a 202 response.
+ */
+public class CreationJob {
+
+    public enum State {QUEUED, RUNNING, SUCCEEDED, FAILED}
+
+    public final String id = UUID.randomUUID().toString();
+    public final String appName;
+    public final long createdAt = System.currentTimeMillis();
+    private volatile State state = State.QUEUED;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private final List<JSONObject> attempts = new ArrayList<>();
+    private volatile int resultStatus;
+    private volatile String resultContentType;
+    private volatile String resultContent;
+    private volatile String error;
+
+    CreationJob(String appName) {
+        this.appName = appName;
+    }
+
+    public State state() {
+        return state;
+    }
+
+    public long finishedAt() {
+        return finishedAt;
+    }
+
+    public boolean isFinished() {
+        return state == State.SUCCEEDED || state == State.FAILED;
+    }
+
+    void started() {
+        startedAt = System.currentTimeMillis();
+        state = State.RUNNING;
+    }
+
+    synchronized void attempting(String runnerID) {
+        attempts.add(new JSONObject()
+            .put("runner", runnerID)
+            .put("startedAt", System.currentTimeMillis()));
+    }
+
+    synchronized void attemptFailed(String message) {
+        if (!attempts.isEmpty()) {
+            attempts.get(attempts.size() - 1).put("error", message);
+        }
+    }
+
+    void finished(int status, String contentType, String content) {
+        resultStatus = status;
+        resultContentType = contentType;
+        resultContent = content;
+        finishedAt = System.currentTimeMillis();
+        state = status / 100 == 2 ? State.SUCCEEDED : State.FAILED;
+    }
+
+    void failed(String message) {
+        error = message;
+        finishedAt = System.currentTimeMillis();
+        state = State.FAILED;
+    }
+
+    public synchronized JSONObject toJSON() {
+        JSONObject json = new JSONObject()
+            .put("id", id)
+            .put("url", "/api/v1/app-jobs/" + id)
+            .put("appName", appName)
+            .put("state", state.name().toLowerCase())
+            .put("createdAt", createdAt)
+            .put("attempts", new JSONArray(attempts));
+        if (startedAt > 0) {
+            json.put("startedAt", startedAt);
+        }
+        if (finishedAt > 0) {
+            json.put("finishedAt", finishedAt);
+        }
+        if (error != null) {
+            json.put("error", error);
+        }
+        if (resultStatus > 0) {
+            JSONObject result = new JSONObject().put("status", resultStatus);
+            if (resultContentType != null && resultContentType.contains("json") && resultContent != null) {
+                try {
+                    result.put("body", new JSONObject(resultContent));
+                } catch (Exception e) {
+                    result.put("body", resultContent);
+                }
+            } else {
+                result.put("body", resultContent);
+            }
+            json.put("result", result);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,97 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Runs app creations that were accepted with a 202 response on a bounded executor, and keeps each job in memory
+ * so that its status can be queried until some time after it finishes.
+ */
+public class CreationJobs {
+    private static final Logger log = LoggerFactory.getLogger(CreationJobs.class);
+
+    public static final int DEFAULT_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_QUEUED = 500;
+    public static final Duration DEFAULT_RETENTION = Duration.ofHours(1);
+
+    private final ThreadPoolExecutor executor;
+    private final Map<String, CreationJob> jobs = new ConcurrentHashMap<>();
+    private final long retentionMillis;
+
+    /**
+     * @param concurrency The number of creations that are run at the same time
+     * @param maxQueued The number of jobs that can wait to run before new jobs are rejected
+     * @param retention How long finished jobs can be queried for
+     */
+    public CreationJobs(int concurrency, int maxQueued, Duration retention) {
+        this.retentionMillis = retention.toMillis();
+        this.executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(maxQueued), r -> {
+            Thread thread = new Thread(r, "app-creation-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a creation.
+     * @param work Starts the creation for the given job, completing the returned future once the job has been
+     *             marked as finished or failed
+     * @return The queued job, or null if the queue is full
+     */
+    public CreationJob submit(String appName, Function<CreationJob, CompletableFuture<?>> work) {
+        removeExpired();
+        CreationJob job = new CreationJob(appName);
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> {
+                job.started();
+                try {
+                    work.apply(job).get();
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    log.warn("Error in app creation job " + job.id, e);
+                    if (!job.isFinished()) {
+                        job.failed("Error while creating app: " + e.getMessage());
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            return null;
+        }
+        return job;
+    }
+
+    public CreationJob get(String id) {
+        return jobs.get(id);
+    }
+
+    /**
+     * @return All jobs that have not expired, oldest first
+     */
+    public List<CreationJob> all() {
+        removeExpired();
+        List<CreationJob> all = new ArrayList<>(jobs.values());
+        all.sort(Comparator.comparingLong(job -> job.createdAt));
+        return all;
+    }
+
+    private void removeExpired() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        jobs.values().removeIf(job -> job.isFinished() && job.finishedAt() < cutoff);
+    }
+
+    public void stop() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,64 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import com.danielflower.apprunner.router.lib.mgmt.AppHibernator;
+import io.muserver.MuHandler;
+import io.muserver.MuRequest;
+import io.muserver.MuResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Records each request to an app and, if the app is hibernating, holds the request until the app has been started
+ * again. The request is then passed on to the reverse proxy.
+ * <p>
+ * Unlike the other handlers, a held request blocks its thread for up to the wake timeout, because the reverse proxy
+ * that handles it next cannot be given a request that has already been made asynchronous. The number of requests
+ * held at once is capped by {@link AppHibernator}; requests beyond the cap get a 503 straight away.
+ */
+public class HibernationHandler implements MuHandler {
+    private static final Logger log = LoggerFactory.getLogger(HibernationHandler.class);
+
+    private final AppHibernator hibernator;
+
+    public HibernationHandler(AppHibernator hibernator) {
+        this.hibernator = hibernator;
+    }
+
+    @Override
+    public boolean handle(MuRequest request, MuResponse response) throws Exception {
+        String path = request.relativePath();
+        if (path.startsWith("/api/")) {
+            return false;
+        }
+        int end = path.indexOf('/', 1);
+        String appName = end == -1 ? path.substring(1) : path.substring(1, end);
+        if (appName.isEmpty()) {
+            return false;
+        }
+        hibernator.touched(appName);
+        if (hibernator.isHibernating(appName)) {
+            try {
+                hibernator.awaitAwake(appName);
+            } catch (RejectedExecutionException e) {
+                response.status(503);
+                response.headers().set("Retry-After", "10");
+                response.write("Too many requests are waiting for apps to start. Please try again later.");
+                return true;
+            } catch (TimeoutException e) {
+                response.status(503);
+                response.headers().set("Retry-After", "10");
+                response.write(appName + " is still starting. Please try again later.");
+                return true;
+            } catch (Exception e) {
+                log.warn("Could not start " + appName + " for " + request, e);
+                response.status(503);
+                response.write(appName + " could not be started.");
+                return true;
+            }
+        }
+        return false;
+    }
+}
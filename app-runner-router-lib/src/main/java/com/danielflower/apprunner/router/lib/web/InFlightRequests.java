@@ -0,0 +1,121 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the requests currently being proxied to each app on each runner, so that an old target can be drained
+ * before it is removed. Targets can also be watched to count how many of their responses are server errors.
+ */
+public class InFlightRequests {
+
+    private static final long POLL_MILLIS = 50;
+
+    private final ConcurrentHashMap<String, Integer> counts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Outcomes> watched = new ConcurrentHashMap<>();
+
+    public void started(String appName, URI target) {
+        counts.merge(key(appName, target), 1, Integer::sum);
+    }
+
+    /**
+     * @param status The status code of the response, or 0 if there was none
+     */
+    public void finished(String appName, URI target, int status) {
+        String key = key(appName, target);
+        decrement(key);
+        Outcomes outcomes = watched.get(key);
+        if (outcomes != null) {
+            outcomes.record(status);
+        }
+    }
+
+    /**
+     * Stops counting a request that was started but then not sent to the target after all.
+     */
+    public void cancelled(String appName, URI target) {
+        decrement(key(appName, target));
+    }
+
+    private void decrement(String key) {
+        counts.computeIfPresent(key, (k, count) -> count <= 1 ? null : count - 1);
+    }
+
+    /**
+     * Starts counting the responses from the app on the target's runner, replacing any existing watch.
+     */
+    public Outcomes watch(String appName, URI target) {
+        Outcomes outcomes = new Outcomes();
+        watched.put(key(appName, target), outcomes);
+        return outcomes;
+    }
+
+    public void unwatch(String appName, URI target, Outcomes outcomes) {
+        watched.remove(key(appName, target), outcomes);
+    }
+
+    /**
+     * @return The number of requests to the app on the target's runner that have not completed
+     */
+    public int count(String appName, URI target) {
+        return counts.getOrDefault(key(appName, target), 0);
+    }
+
+    /**
+     * @return A future that completes with true when there are no requests in flight to the app on the target's
+     * runner, or false if there are still some when the timeout is reached
+     */
+    public CompletableFuture<Boolean> awaitDrained(String appName, URI target, Duration timeout) {
+        long giveUpAt = System.currentTimeMillis() + timeout.toMillis();
+        CompletableFuture<Boolean> drained = new CompletableFuture<>();
+        poll(appName, target, giveUpAt, drained);
+        return drained;
+    }
+
+    private void poll(String appName, URI target, long giveUpAt, CompletableFuture<Boolean> drained) {
+        if (count(appName, target) == 0) {
+            drained.complete(true);
+        } else if (System.currentTimeMillis() >= giveUpAt) {
+            drained.complete(false);
+        } else {
+            CompletableFuture.delayedExecutor(POLL_MILLIS, TimeUnit.MILLISECONDS)
+                .execute(() -> poll(appName, target, giveUpAt, drained));
+        }
+    }
+
+    private static String key(String appName, URI target) {
+        return appName + '@' + target.getAuthority();
+    }
+
+    /**
+     * The number of responses, and how many were server errors, since a target started being watched.
+     */
+    public static class Outcomes {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        private void record(int status) {
+            requests.incrementAndGet();
+            if (status == 0 || status >= 500) {
+                errors.incrementAndGet();
+            }
+        }
+
+        public long requests() {
+            return requests.get();
+        }
+
+        public long errors() {
+            return errors.get();
+        }
+
+        public double errorRate() {
+            long total = requests.get();
+            return total == 0 ? 0 : (double) errors.get() / total;
+        }
+    }
+}
@@ -4,14 +4,95 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ProxyMap {
     private static final Logger log = LoggerFactory.getLogger(ProxyMap.class);
     private final ConcurrentHashMap<String, URI> mapping = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, URI> pinned = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, TrafficSplit> splits = new ConcurrentHashMap<>();
+    private final Set<String> pinnedForSplits = ConcurrentHashMap.newKeySet();
 
+    /**
+     * Maps the app to the URL, unless the app is pinned to a different URL in which case this is ignored.
+     * The pin is checked while the app's mapping is locked, so a concurrent {@link #pin(String, URI)} always wins.
+     */
     public void add(String prefix, URI url) {
-        URI old = mapping.put(prefix, url);
+        URI[] old = new URI[1];
+        boolean[] ignored = new boolean[1];
+        mapping.compute(prefix, (key, existing) -> {
+            old[0] = existing;
+            URI pin = pinned.get(key);
+            ignored[0] = pin != null && !pin.equals(url);
+            return ignored[0] ? existing : url;
+        });
+        if (ignored[0]) {
+            log.debug("Not mapping " + prefix + " to " + url + " because it is pinned to " + pinned.get(prefix));
+            return;
+        }
+        logChange(prefix, url, old[0]);
+    }
+
+    /**
+     * Maps the app to the URL and ignores any other URL that is added for the app until it is unpinned. This is used
+     * while an app is on more than one runner, for example while it is being moved, so that loading the apps of
+     * either runner does not change where requests go.
+     */
+    public void pin(String prefix, URI url) {
+        pinnedForSplits.remove(prefix);
+        pinned.put(prefix, url); // before mapping it, so that any add that runs after this sees the pin
+        logChange(prefix, url, mapping.put(prefix, url));
+    }
+
+    public void unpin(String prefix) {
+        pinned.remove(prefix);
+    }
+
+    public boolean isPinned(String prefix) {
+        return pinned.containsKey(prefix);
+    }
+
+    /**
+     * Splits the app's web requests between the targets of the split, replacing any existing split. The app's own
+     * mapping is still used for everything else, such as API requests and app counts, and is pinned while the split
+     * is in place so that the other copies of the app do not replace it when their runners are loaded.
+     */
+    public void setSplit(String prefix, TrafficSplit split) {
+        URI url = mapping.get(prefix);
+        if (url == null) {
+            throw new IllegalArgumentException("There is no app called " + prefix);
+        }
+        if (!isPinned(prefix)) {
+            pin(prefix, url);
+            pinnedForSplits.add(prefix);
+        }
+        splits.put(prefix, split);
+        log.info("Set a traffic split for " + prefix);
+    }
+
+    /**
+     * @return The split for the app, or null if its web requests all go to its mapped URL
+     */
+    public TrafficSplit getSplit(String prefix) {
+        return splits.get(prefix);
+    }
+
+    public Map<String, TrafficSplit> getSplits() {
+        return splits;
+    }
+
+    public void removeSplit(String prefix) {
+        if (splits.remove(prefix) != null) {
+            log.info("Removed the split for " + prefix);
+        }
+        if (pinnedForSplits.remove(prefix)) {
+            unpin(prefix);
+        }
+    }
+
+    private static void logChange(String prefix, URI url, URI old) {
         if (old == null) {
             log.info(prefix + " maps to " + url);
         } else if (!old.toString().equals(url.toString())) {
@@ -20,6 +101,9 @@ public class ProxyMap {
     }
 
     public void remove(String prefix) {
+        pinned.remove(prefix);
+        splits.remove(prefix);
+        pinnedForSplits.remove(prefix);
         URI remove = mapping.remove(prefix);
         if (remove != null) {
             log.info("Removed " + prefix + " mapping to " + remove);
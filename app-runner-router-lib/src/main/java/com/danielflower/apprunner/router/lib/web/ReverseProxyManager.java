@@ -1,38 +1,64 @@
 package com.danielflower.apprunner.router.lib.web;
 
+import com.danielflower.apprunner.router.lib.mgmt.AppLocator;
 import com.danielflower.apprunner.router.lib.mgmt.Cluster;
 import com.danielflower.apprunner.router.lib.mgmt.Runner;
 import com.danielflower.apprunner.router.lib.monitoring.AppRequestListener;
+import com.danielflower.apprunner.router.lib.monitoring.AppTraffic;
 import com.danielflower.apprunner.router.lib.monitoring.RequestInfo;
 import io.muserver.Method;
 import io.muserver.MuRequest;
 import io.muserver.MuResponse;
 import io.muserver.Mutils;
 import io.muserver.murp.ProxyCompleteListener;
+import io.muserver.murp.ResponseInterceptor;
 import io.muserver.murp.UriMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class ReverseProxyManager implements UriMapper, ProxyCompleteListener {
+public class ReverseProxyManager implements UriMapper, ProxyCompleteListener, ResponseInterceptor {
     public static final Logger log = LoggerFactory.getLogger(ReverseProxyManager.class);
 
     private static final Pattern APP_WEB_REQUEST = Pattern.compile("/([^/?]+)(.*)");
     private static final Pattern APP_API_REQUEST = Pattern.compile("/api/v1/apps/([^/?]+)(.*)");
     private static final String REQUEST_INFO_NAME = "info";
+    private static final String IN_FLIGHT_NAME = "inFlight";
+    private static final String SPLIT_TARGET_NAME = "splitTarget";
+    private static final String NEW_STICKY_TARGET_NAME = "newStickyTarget";
 
     private final ProxyMap proxyMap;
     private final Cluster cluster;
     private final AppRequestListener appRequestListener;
+    private final AppLocator appLocator;
+    private final AppTraffic appTraffic;
+    private final InFlightRequests inFlightRequests;
+    private final TrafficShadower trafficShadower;
 
     public ReverseProxyManager(Cluster cluster, ProxyMap proxyMap, AppRequestListener appRequestListener) {
+        this(cluster, proxyMap, appRequestListener, null, null, null, null);
+    }
+
+    /**
+     * @param appLocator Used to look for apps that are not in the proxy map, or null to treat misses as not found
+     * @param appTraffic Where completed requests to apps are recorded, or null to not record them
+     * @param inFlightRequests Where requests to apps are counted until they complete, or null to not count them
+     * @param trafficShadower Used to mirror app requests to shadow copies of apps, or null to not mirror them
+     */
+    public ReverseProxyManager(Cluster cluster, ProxyMap proxyMap, AppRequestListener appRequestListener, AppLocator appLocator, AppTraffic appTraffic, InFlightRequests inFlightRequests, TrafficShadower trafficShadower) {
         this.cluster = cluster;
         this.proxyMap = proxyMap;
         this.appRequestListener = appRequestListener;
+        this.appLocator = appLocator;
+        this.appTraffic = appTraffic;
+        this.inFlightRequests = inFlightRequests;
+        this.trafficShadower = trafficShadower;
     }
 
     public URI mapFrom(MuRequest clientRequest) {
@@ -44,7 +70,7 @@ public class ReverseProxyManager implements UriMapper, ProxyCompleteListener {
         requestInfo.url = clientRequest.uri().toString();
 
         if (uri.startsWith("/api/")) {
-            URI target = apiTargetUri(uri, query);
+            URI target = apiTargetUri(clientRequest, uri, query);
             requestInfo.appName = "api";
             if (target != null) {
                 requestInfo.targetHost = target.getAuthority();
@@ -56,23 +82,80 @@ public class ReverseProxyManager implements UriMapper, ProxyCompleteListener {
             if (appMatcher.matches()) {
                 String prefix = appMatcher.group(1);
                 requestInfo.appName = prefix;
-                URI url = proxyMap.get(prefix);
+                URI url = lookup(prefix);
                 if (url != null) {
+                    url = track(clientRequest, prefix, url, true);
                     requestInfo.targetHost = url.getAuthority();
-                    URI newTarget = url.resolve("/" + prefix + appMatcher.group(2) + query);
+                    String pathAndQuery = "/" + prefix + appMatcher.group(2) + query;
+                    URI newTarget = url.resolve(pathAndQuery);
+                    if (trafficShadower != null) {
+                        trafficShadower.mirror(clientRequest, prefix, pathAndQuery);
+                    }
                     log.info("Proxying to " + newTarget);
                     return newTarget;
                 }
             }
         }
 
-        log.info("No proxy target configured for " + uri);
+        log.debug("No proxy target configured for " + uri);
         return null;
     }
 
-    private URI apiTargetUri(String uri, String query) {
+    private URI lookup(String appName) {
+        URI url = proxyMap.get(appName);
+        if (url == null && appLocator != null) {
+            url = appLocator.locate(appName);
+        }
+        return url;
+    }
+
+    /**
+     * Picks the target for the request, which is the app's mapped URL unless the app's web requests are split, and
+     * counts the request as in flight to it. If the app was moved to a different URL while doing this, the request is
+     * counted against and sent to the new URL instead, so that once a target has been switched away from, its count
+     * can only go down.
+     */
+    private URI track(MuRequest clientRequest, String appName, URI url, boolean splittable) {
+        while (true) {
+            URI target = url;
+            TrafficSplit split = splittable ? proxyMap.getSplit(appName) : null;
+            if (split != null) {
+                TrafficSplit.Target picked = split.sticky ? split.find(StickyCookies.token(clientRequest.headers().get("cookie"))) : null;
+                if (picked == null) {
+                    picked = split.pick();
+                    if (split.sticky) {
+                        clientRequest.attribute(NEW_STICKY_TARGET_NAME, picked);
+                    }
+                }
+                clientRequest.attribute(SPLIT_TARGET_NAME, picked);
+                target = picked.url;
+            }
+            if (inFlightRequests == null) {
+                return target;
+            }
+            inFlightRequests.started(appName, target);
+            URI current = proxyMap.get(appName);
+            if (current == null || current.equals(url)) {
+                clientRequest.attribute(IN_FLIGHT_NAME, new InFlight(appName, target));
+                return target;
+            }
+            inFlightRequests.cancelled(appName, target);
+            url = current;
+        }
+    }
+
+    private static class InFlight {
+        private final String appName;
+        private final URI target;
+        private InFlight(String appName, URI target) {
+            this.appName = appName;
+            this.target = target;
+        }
+    }
+
+    private URI apiTargetUri(MuRequest clientRequest, String uri, String query) {
         if (uri.equals("/api/v1/swagger.json") || uri.startsWith("/api/v1/system")) {
-            List<Runner> runners = cluster.getRunners();
+            List<Runner> runners = cluster.getAvailableRunners();
             if (runners.size() > 0) {
                 return runners.get(0).url.resolve(uri);
             }
@@ -80,9 +163,9 @@ public class ReverseProxyManager implements UriMapper, ProxyCompleteListener {
             Matcher appMatcher = APP_API_REQUEST.matcher(uri);
             if (appMatcher.matches()) {
                 String appName = appMatcher.group(1);
-                URI url = proxyMap.get(appName);
+                URI url = lookup(appName);
                 if (url != null) {
-                    return url.resolve(uri + query);
+                    return track(clientRequest, appName, url, false).resolve(uri + query);
                 }
             }
         }
@@ -109,25 +192,51 @@ public class ReverseProxyManager implements UriMapper, ProxyCompleteListener {
             && uri.startsWith(prefix) && uri.lastIndexOf('/') == (prefix.length() - 1);
     }
 
+    /**
+     * Sets the sticky cookie when a client of a sticky split was sent to a target it was not already stuck to.
+     */
+    @Override
+    public void intercept(MuRequest clientRequest, HttpRequest targetRequest, HttpResponse.ResponseInfo targetResponse, MuResponse clientResponse) {
+        TrafficSplit.Target target = (TrafficSplit.Target) clientRequest.attribute(SPLIT_TARGET_NAME);
+        if (target != null && target == clientRequest.attribute(NEW_STICKY_TARGET_NAME)) {
+            clientResponse.addCookie(StickyCookies.cookie(getInfo(clientRequest).appName, target));
+        }
+    }
+
     @Override
     public void onComplete(MuRequest clientRequest, MuResponse clientResponse, URI targetUri, long durationInMillis) throws Exception {
         int status = clientResponse.status();
+        TrafficSplit.Target splitTarget = (TrafficSplit.Target) clientRequest.attribute(SPLIT_TARGET_NAME);
+        if (splitTarget != null) {
+            splitTarget.record(status, durationInMillis);
+        }
+        InFlight inFlight = (InFlight) clientRequest.attribute(IN_FLIGHT_NAME);
+        if (inFlight != null) {
+            inFlightRequests.finished(inFlight.appName, inFlight.target, status);
+        }
         if (isAppDeletionPost(clientRequest) && status == 200) {
             String path = clientRequest.uri().getPath();
             String appName = path.substring(path.lastIndexOf('/') + 1);
             proxyMap.remove(appName);
+            if (appTraffic != null) {
+                appTraffic.remove(appName);
+            }
+            if (trafficShadower != null) {
+                trafficShadower.remove(appName);
+            }
             cluster.getRunnerByURL(targetUri).ifPresent(runner -> {
                 log.info("Decrementing app count for " + runner.id + " because " + appName + " was deleted.");
                 runner.refreshRunnerCountCache(proxyMap.getAll());
             });
         }
-        if (appRequestListener != null) {
-            RequestInfo info = getInfo(clientRequest);
-            if (info != null) {
-                info.endTime = System.currentTimeMillis();
-                info.responseStatus = status;
-                appRequestListener.onRequestComplete(info);
-            }
+        RequestInfo info = getInfo(clientRequest);
+        if (appTraffic != null && info != null && info.targetHost != null && !"api".equals(info.appName)) {
+            appTraffic.record(info.appName, durationInMillis);
+        }
+        if (appRequestListener != null && info != null) {
+            info.endTime = System.currentTimeMillis();
+            info.responseStatus = status;
+            appRequestListener.onRequestComplete(info);
         }
     }
 }
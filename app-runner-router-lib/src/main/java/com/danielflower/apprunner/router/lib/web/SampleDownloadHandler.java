@@ -0,0 +1,198 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import com.danielflower.apprunner.router.lib.mgmt.RunnerSystemCache;
+import com.danielflower.apprunner.router.lib.mgmt.SampleCache;
+import io.muserver.*;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Serves sample app zips from the {@link SampleCache}. It is expected to be in the <code>/api/v1/system/samples</code>
+ * context so that the relative path is <code>/{sampleID}.zip</code>, where the sample ID is matched ignoring case.
+ * <p>
+ * The response is written asynchronously once the sample is in the cache, with Content-Length, Last-Modified, an
+ * ETag based on the content of the zip, and support for single-range Range requests.
+ */
+public class SampleDownloadHandler implements MuHandler {
+    private static final Logger log = LoggerFactory.getLogger(SampleDownloadHandler.class);
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final RunnerSystemCache systemCache;
+    private final SampleCache sampleCache;
+
+    public SampleDownloadHandler(RunnerSystemCache systemCache, SampleCache sampleCache) {
+        this.systemCache = systemCache;
+        this.sampleCache = sampleCache;
+    }
+
+    @Override
+    public boolean handle(MuRequest request, MuResponse response) {
+        if (request.method() != Method.GET && request.method() != Method.HEAD) {
+            return false;
+        }
+        String name = request.relativePath().substring(1);
+        AsyncHandle asyncHandle = request.handleAsync();
+        systemCache.get()
+            .orTimeout(30, TimeUnit.SECONDS)
+            .thenCompose(snapshot -> {
+                CompletableFuture<SampleCache.CachedSample> sample = name.matches("[A-Za-z0-9._-]+\\.zip")
+                    ? sampleCache.get(name.substring(0, name.length() - 4), snapshot).orTimeout(60, TimeUnit.SECONDS)
+                    : CompletableFuture.completedFuture(null);
+                return sample.thenAccept(found -> {
+                    if (found == null) {
+                        notFound(request, asyncHandle, response, snapshot);
+                    } else {
+                        send(request, asyncHandle, response, found);
+                    }
+                });
+            })
+            .whenComplete((ignored, error) -> {
+                if (error != null) {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    log.warn("Could not serve sample " + name, cause);
+                    response.status(cause instanceof TimeoutException ? 504 : 500);
+                    response.contentType(ContentTypes.TEXT_PLAIN_UTF8);
+                    AsyncResponses.writeAndComplete(request, asyncHandle, response, "The sample could not be loaded");
+                }
+            });
+        return true;
+    }
+
+    private static void notFound(MuRequest request, AsyncHandle asyncHandle, MuResponse response, RunnerSystemCache.Snapshot snapshot) {
+        Set<String> names = new TreeSet<>();
+        for (JSONObject sampleJson : snapshot.samples) {
+            names.add(RunnerSystemCache.getSampleID(sampleJson));
+        }
+        response.status(404);
+        response.contentType(ContentTypes.TEXT_PLAIN_UTF8);
+        AsyncResponses.writeAndComplete(request, asyncHandle, response, "Invalid sample app name. Valid names: " + names);
+    }
+
+    private static void send(MuRequest request, AsyncHandle asyncHandle, MuResponse response, SampleCache.CachedSample sample) {
+        response.headers().set(HeaderNames.ETAG, sample.etag);
+        response.headers().set(HeaderNames.CACHE_CONTROL, "no-cache");
+        if (sample.etag.equals(request.headers().get(HeaderNames.IF_NONE_MATCH))) {
+            response.status(304);
+            asyncHandle.complete();
+            return;
+        }
+        long size;
+        FileChannel channel;
+        try {
+            size = Files.size(sample.file);
+            response.headers().set(HeaderNames.LAST_MODIFIED, Mutils.toHttpDate(new Date(Files.getLastModifiedTime(sample.file).toMillis())));
+            channel = request.method() == Method.HEAD ? null : FileChannel.open(sample.file, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        }
+        response.contentType("application/zip");
+        response.headers().set(HeaderNames.ACCEPT_RANGES, "bytes");
+        long start = 0;
+        long end = size - 1;
+        String range = request.headers().get(HeaderNames.RANGE);
+        if (range != null) {
+            long[] parsed = parseRange(range, size);
+            if (parsed == null) {
+                closeQuietly(channel);
+                response.status(416);
+                response.headers().set(HeaderNames.CONTENT_RANGE, "bytes */" + size);
+                asyncHandle.complete();
+                return;
+            }
+            if (parsed.length == 2) {
+                start = parsed[0];
+                end = parsed[1];
+                response.status(206);
+                response.headers().set(HeaderNames.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+            }
+        }
+        response.headers().set(HeaderNames.CONTENT_LENGTH, end - start + 1);
+        if (channel == null || end < start) {
+            closeQuietly(channel);
+            asyncHandle.complete();
+            return;
+        }
+        writeFrom(asyncHandle, channel, start, end);
+    }
+
+    private static void writeFrom(AsyncHandle asyncHandle, FileChannel channel, long position, long end) {
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, end - position + 1));
+        try {
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk, position + chunk.position()) < 0) {
+                    throw new IOException("The file ended early");
+                }
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            asyncHandle.complete(e);
+            return;
+        }
+        chunk.flip();
+        long next = position + chunk.remaining();
+        asyncHandle.write(chunk, error -> {
+            if (error != null) {
+                closeQuietly(channel);
+                asyncHandle.complete(error);
+            } else if (next > end) {
+                closeQuietly(channel);
+                asyncHandle.complete();
+            } else {
+                writeFrom(asyncHandle, channel, next, end);
+            }
+        });
+    }
+
+    /**
+     * @return The first and last byte of a single range, an empty array to ignore the header and send the whole file,
+     * or null if the range cannot be satisfied
+     */
+    static long[] parseRange(String header, long size) {
+        if (!header.startsWith("bytes=") || header.indexOf(',') != -1) {
+            return new long[0];
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return new long[0];
+        }
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size - 1 : Math.min(size - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            return start > end || start >= size ? null : new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
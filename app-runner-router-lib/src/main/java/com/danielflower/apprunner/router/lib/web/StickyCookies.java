@@ -0,0 +1,62 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import io.muserver.Cookie;
+import io.muserver.CookieBuilder;
+
+/**
+ * The cookie that keeps a client on the same target of a sticky {@link TrafficSplit}. The cookie is scoped to the
+ * app's path and holds the target's token in hex.
+ */
+class StickyCookies {
+
+    static final String NAME = "AppRunnerTarget";
+
+    /**
+     * Finds the sticky cookie in a <code>Cookie</code> request header. The header is scanned in place so that this
+     * does not allocate.
+     * @param cookieHeader The value of the request's cookie header, or null if it had none
+     * @return The target token in the cookie, or -1 if there is no valid sticky cookie
+     */
+    static int token(String cookieHeader) {
+        if (cookieHeader == null) {
+            return -1;
+        }
+        int length = cookieHeader.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (cookieHeader.charAt(i) == ' ' || cookieHeader.charAt(i) == ';')) {
+                i++;
+            }
+            if (cookieHeader.startsWith(NAME, i) && i + NAME.length() < length && cookieHeader.charAt(i + NAME.length()) == '=') {
+                return parseHex(cookieHeader, i + NAME.length() + 1);
+            }
+            while (i < length && cookieHeader.charAt(i) != ';') {
+                i++;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseHex(String value, int start) {
+        long token = 0;
+        int i = start;
+        for (; i < value.length() && value.charAt(i) != ';'; i++) {
+            int digit = Character.digit(value.charAt(i), 16);
+            if (digit < 0 || i - start >= 8) {
+                return -1;
+            }
+            token = token * 16 + digit;
+        }
+        return i == start || token > Integer.MAX_VALUE ? -1 : (int) token;
+    }
+
+    static Cookie cookie(String appName, TrafficSplit.Target target) {
+        return CookieBuilder.newCookie()
+            .withName(NAME)
+            .withValue(target.cookieValue)
+            .withPath("/" + appName)
+            .httpOnly(true)
+            .withSameSite("Lax")
+            .build();
+    }
+}
@@ -0,0 +1,126 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A copy of an app that is sent a fraction of the app's requests, with the responses thrown away, along with the
+ * stats of those mirrored requests.
+ * <p>
+ * Latencies are counted in fixed buckets so that recording one does not allocate, which means the reported
+ * percentiles are the upper bound of the bucket they fall in.
+ */
+public class TrafficShadow {
+
+    private static final long[] BUCKET_UPPER_MILLIS = {1, 2, 3, 5, 7, 10, 15, 20, 30, 50, 70, 100, 150, 200, 300, 500,
+        700, 1000, 1500, 2000, 3000, 5000, 7000, 10000, 15000, 20000, 30000, Long.MAX_VALUE};
+
+    public final String appName;
+    public final String runnerId;
+    public final URI url;
+    public final double fraction;
+    public final Set<String> methods;
+    public final long createdAt = System.currentTimeMillis();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKET_UPPER_MILLIS.length);
+
+    /**
+     * @param url The base URL of the shadow copy of the app, e.g. <code>http://runner2:8080/my-app</code>
+     * @param fraction The fraction of the app's requests to mirror, from 0 to 1
+     * @param methods The upper-case HTTP methods that may be mirrored
+     */
+    public TrafficShadow(String appName, String runnerId, URI url, double fraction, Set<String> methods) {
+        if (!(fraction >= 0 && fraction <= 1)) {
+            throw new IllegalArgumentException("The fraction must be between 0 and 1");
+        }
+        if (methods.isEmpty()) {
+            throw new IllegalArgumentException("At least one method must be mirrored");
+        }
+        this.appName = appName;
+        this.runnerId = runnerId;
+        this.url = url;
+        this.fraction = fraction;
+        this.methods = Set.copyOf(methods);
+    }
+
+    void sent() {
+        sent.incrementAndGet();
+    }
+
+    void dropped() {
+        dropped.incrementAndGet();
+    }
+
+    /**
+     * @param status The response status, or 0 if no response was received
+     */
+    void completed(int status, long durationMillis) {
+        if (status == 0 || status >= 500) {
+            errors.incrementAndGet();
+        }
+        int bucket = 0;
+        while (durationMillis > BUCKET_UPPER_MILLIS[bucket]) {
+            bucket++;
+        }
+        latencies.incrementAndGet(bucket);
+    }
+
+    /**
+     * @param percentile A value from 0 to 100
+     * @return The latency in millis that the given percentage of completed requests were at or under, or -1 if no
+     * requests have completed
+     */
+    public long latencyPercentile(double percentile) {
+        long[] counts = new long[latencies.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencies.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return BUCKET_UPPER_MILLIS[i];
+            }
+        }
+        return BUCKET_UPPER_MILLIS[BUCKET_UPPER_MILLIS.length - 1];
+    }
+
+    public long sentCount() {
+        return sent.get();
+    }
+
+    public JSONObject toJSON() {
+        JSONObject latency = new JSONObject();
+        if (latencyPercentile(50) >= 0) {
+            latency.put("p50", latencyPercentile(50))
+                .put("p90", latencyPercentile(90))
+                .put("p99", latencyPercentile(99))
+                .put("max", latencyPercentile(100));
+        }
+        return new JSONObject()
+            .put("appName", appName)
+            .put("url", "/api/v1/shadows/" + appName)
+            .put("runnerId", runnerId)
+            .put("target", url.toString())
+            .put("fraction", fraction)
+            .put("methods", new JSONArray(methods.stream().sorted().toArray()))
+            .put("createdAt", createdAt)
+            .put("sent", sent.get())
+            .put("dropped", dropped.get())
+            .put("errors", errors.get())
+            .put("latencyMillis", latency);
+    }
+}
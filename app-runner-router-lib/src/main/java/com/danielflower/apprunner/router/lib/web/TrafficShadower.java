@@ -0,0 +1,126 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import io.muserver.MuRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Mirrors a fraction of an app's web requests to a shadow copy of the app, for example to warm up a newly started
+ * copy before it is given real traffic. The shadow's responses are discarded.
+ * <p>
+ * Mirrored requests are sent asynchronously and are limited by their own concurrency cap: when the cap is reached,
+ * requests are not mirrored rather than queued, so a slow shadow can never hold up the requests it is copying.
+ * Requests with a body are never mirrored.
+ */
+public class TrafficShadower {
+    private static final Logger log = LoggerFactory.getLogger(TrafficShadower.class);
+
+    public static final int DEFAULT_MAX_CONCURRENT = 50;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+    private static final Set<String> UNCOPIED_HEADERS = Set.of("connection", "content-length", "expect", "host",
+        "upgrade", "keep-alive", "proxy-authorization", "proxy-connection", "te", "trailer", "transfer-encoding");
+
+    private final HttpClient client;
+    private final Semaphore permits;
+    private final Duration timeout;
+    private final Map<String, TrafficShadow> shadows = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConcurrent The most mirrored requests that can be in progress at once, across all apps
+     * @param timeout How long to wait for a shadow's response before counting it as an error
+     */
+    public TrafficShadower(HttpClient client, int maxConcurrent, Duration timeout) {
+        this.client = client;
+        this.permits = new Semaphore(maxConcurrent);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Starts mirroring requests for the shadow's app, replacing any existing shadow of the app.
+     */
+    public void set(TrafficShadow shadow) {
+        shadows.put(shadow.appName, shadow);
+        log.info("Mirroring " + (shadow.fraction * 100) + "% of " + shadow.methods + " requests for " + shadow.appName + " to " + shadow.url);
+    }
+
+    public TrafficShadow get(String appName) {
+        return shadows.get(appName);
+    }
+
+    public Map<String, TrafficShadow> all() {
+        return shadows;
+    }
+
+    /**
+     * Stops mirroring requests for the app.
+     * @return The removed shadow, or null if there was none
+     */
+    public TrafficShadow remove(String appName) {
+        TrafficShadow removed = shadows.remove(appName);
+        if (removed != null) {
+            log.info("Stopped mirroring requests for " + appName + " to " + removed.url);
+        }
+        return removed;
+    }
+
+    /**
+     * Possibly sends a copy of the request to the app's shadow, without waiting for it.
+     * @param pathAndQuery The raw path and query string of the request, starting with the app name
+     */
+    public void mirror(MuRequest request, String appName, String pathAndQuery) {
+        TrafficShadow shadow = shadows.get(appName);
+        if (shadow == null
+            || !shadow.methods.contains(request.method().name())
+            || ThreadLocalRandom.current().nextDouble() >= shadow.fraction
+            || hasBody(request)) {
+            return;
+        }
+        if (!permits.tryAcquire()) {
+            shadow.dropped();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try {
+            HttpRequest.Builder copy = HttpRequest.newBuilder(shadow.url.resolve(pathAndQuery))
+                .method(request.method().name(), HttpRequest.BodyPublishers.noBody())
+                .timeout(timeout);
+            for (Map.Entry<String, String> header : request.headers()) {
+                if (!UNCOPIED_HEADERS.contains(header.getKey().toLowerCase())) {
+                    try {
+                        copy.header(header.getKey(), header.getValue());
+                    } catch (IllegalArgumentException e) {
+                        log.debug("Not mirroring the " + header.getKey() + " header: " + e.getMessage());
+                    }
+                }
+            }
+            shadow.sent();
+            client.sendAsync(copy.build(), HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    permits.release();
+                    shadow.completed(error == null ? response.statusCode() : 0, System.currentTimeMillis() - start);
+                    if (error != null) {
+                        log.debug("Mirrored request to " + shadow.url + pathAndQuery + " failed: " + error.getMessage());
+                    }
+                });
+        } catch (Exception e) {
+            permits.release();
+            shadow.completed(0, System.currentTimeMillis() - start);
+            log.debug("Could not mirror " + pathAndQuery + " to " + shadow.url, e);
+        }
+    }
+
+    private static boolean hasBody(MuRequest request) {
+        return request.headers().getLong("content-length", 0) > 0 || request.headers().contains("transfer-encoding");
+    }
+}
@@ -0,0 +1,179 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Splits an app's web requests between several copies of the app by weight, for example 95/5 between the current
+ * copy and a canary, and keeps request stats for each copy so they can be compared.
+ * <p>
+ * A split is immutable apart from its stats, and picking a target does not allocate. Targets with a weight of 0 or
+ * whose runner's lease has expired are ejected: they are not picked, and sticky clients on them are moved elsewhere.
+ */
+public class TrafficSplit {
+
+    private final Target[] targets;
+    private final int[] cumulativeWeights;
+    private final int totalWeight;
+    public final boolean sticky;
+    public final long createdAt = System.currentTimeMillis();
+
+    /**
+     * @throws IllegalArgumentException If there are no targets, a weight is negative, or the weights add up to 0
+     */
+    public TrafficSplit(List<Target> targets) {
+        this(targets, false);
+    }
+
+    /**
+     * @param sticky If true, each client keeps being sent to the same target using a cookie set by the router
+     * @throws IllegalArgumentException If there are no targets, a weight is negative, or the weights add up to 0
+     */
+    public TrafficSplit(List<Target> targets, boolean sticky) {
+        if (targets.isEmpty()) {
+            throw new IllegalArgumentException("A split needs at least one target");
+        }
+        this.targets = targets.toArray(new Target[0]);
+        this.cumulativeWeights = new int[this.targets.length];
+        int total = 0;
+        for (int i = 0; i < this.targets.length; i++) {
+            if (this.targets[i].weight < 0) {
+                throw new IllegalArgumentException("Weights cannot be negative");
+            }
+            total += this.targets[i].weight;
+            cumulativeWeights[i] = total;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("At least one target must have a weight above 0");
+        }
+        this.totalWeight = total;
+        this.sticky = sticky;
+    }
+
+    /**
+     * @return A target chosen at random in proportion to the weights, or if that target is ejected then the first
+     * one that is not
+     */
+    public Target pick() {
+        int point = ThreadLocalRandom.current().nextInt(totalWeight);
+        Target picked = targets[targets.length - 1];
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (point < cumulativeWeights[i]) {
+                picked = targets[i];
+                break;
+            }
+        }
+        if (picked.isEjected()) {
+            for (Target target : targets) {
+                if (!target.isEjected()) {
+                    return target;
+                }
+            }
+        }
+        return picked;
+    }
+
+    /**
+     * @param token A token from {@link Target#token}, for example from a sticky cookie
+     * @return The target with the token, or null if there is none or it has been ejected
+     */
+    public Target find(int token) {
+        for (Target target : targets) {
+            if (target.token == token && !target.isEjected()) {
+                return target;
+            }
+        }
+        return null;
+    }
+
+    public JSONObject toJSON() {
+        JSONArray all = new JSONArray();
+        for (Target target : targets) {
+            all.put(target.toJSON().put("percentage", 100.0 * target.weight / totalWeight));
+        }
+        return new JSONObject()
+            .put("createdAt", createdAt)
+            .put("sticky", sticky)
+            .put("targets", all);
+    }
+
+    /**
+     * One copy of the app in a split, with the stats of the requests sent to it since the split was set.
+     */
+    public static class Target {
+        public final String runnerId;
+        public final URI url;
+        public final int weight;
+        /**
+         * Identifies the target in sticky cookies. It is derived from the URL so that it survives the split being
+         * replaced or the router restarting.
+         */
+        public final int token;
+        final String cookieValue;
+        private final Runner runner;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+
+        public Target(String runnerId, URI url, int weight) {
+            this(runnerId, url, weight, null);
+        }
+
+        /**
+         * @param runner The runner the target is on, used to eject the target if its lease expires, or null
+         */
+        public Target(String runnerId, URI url, int weight, Runner runner) {
+            this.runnerId = runnerId;
+            this.url = url;
+            this.weight = weight;
+            this.runner = runner;
+            this.token = url.toString().hashCode() & Integer.MAX_VALUE;
+            this.cookieValue = Integer.toHexString(token);
+        }
+
+        public boolean isEjected() {
+            return weight == 0 || (runner != null && !runner.isAvailable());
+        }
+
+        /**
+         * @param status The response status, or 0 if there was no response
+         */
+        void record(int status, long durationMillis) {
+            requests.incrementAndGet();
+            if (status == 0 || status >= 500) {
+                errors.incrementAndGet();
+            }
+            totalMillis.addAndGet(durationMillis);
+            maxMillis.accumulateAndGet(durationMillis, Math::max);
+        }
+
+        public long requests() {
+            return requests.get();
+        }
+
+        public long errors() {
+            return errors.get();
+        }
+
+        JSONObject toJSON() {
+            long count = requests.get();
+            return new JSONObject()
+                .put("runnerId", runnerId)
+                .put("url", url.toString())
+                .put("weight", weight)
+                .put("ejected", isEjected())
+                .put("requests", count)
+                .put("errors", errors.get())
+                .put("errorRate", count == 0 ? 0 : (double) errors.get() / count)
+                .put("meanLatencyMillis", count == 0 ? 0 : (double) totalMillis.get() / count)
+                .put("maxLatencyMillis", maxMillis.get());
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.danielflower.apprunner.router.lib.web.v1;
+
+import com.danielflower.apprunner.router.lib.web.CreationJob;
+import com.danielflower.apprunner.router.lib.web.CreationJobs;
+import io.muserver.rest.Description;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+
+@Path("/app-jobs")
+@Description(value = "App creation jobs", details = "When an app is created with a `POST` to `/api/v1/apps` with the " +
+    "`Prefer: respond-async` header, a `202` is returned straight away and the creation continues in the background. " +
+    "The `Location` header of that response points to a job in this resource, which can be polled to find out which " +
+    "runners were tried and what the result of the creation was. Finished jobs are kept for an hour.")
+public class AppJobResource {
+
+    private final CreationJobs creationJobs;
+
+    public AppJobResource(CreationJobs creationJobs) {
+        this.creationJobs = creationJobs;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets all the creation jobs that have not expired, oldest first")
+    public String all() {
+        JSONArray jobs = new JSONArray();
+        for (CreationJob job : creationJobs.all()) {
+            jobs.put(job.toJSON());
+        }
+        return new JSONObject().put("jobs", jobs).toString(4);
+    }
+
+    @GET
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets a creation job, where the state is one of queued, running, succeeded or failed")
+    public String get(@PathParam("id") String id) {
+        CreationJob job = creationJobs.get(id);
+        if (job == null) {
+            throw new NotFoundException("No creation job with ID " + id + " found");
+        }
+        return job.toJSON().toString(4);
+    }
+}
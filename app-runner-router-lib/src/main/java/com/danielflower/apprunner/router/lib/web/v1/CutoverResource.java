@@ -0,0 +1,94 @@
+package com.danielflower.apprunner.router.lib.web.v1;
+
+import com.danielflower.apprunner.router.lib.mgmt.AppCutover;
+import com.danielflower.apprunner.router.lib.mgmt.AppCutovers;
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import io.muserver.rest.Description;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import java.time.Duration;
+
+@Path("/cutovers")
+@Description(value = "App cutovers", details = "Switches an app's requests to a copy of the app on another runner in " +
+    "one step, for blue/green deployments. The new copy must already be deployed on that runner, for example with " +
+    "`/api/v1/runner-proxy/{runnerId}/api/v1/apps`. Requests in progress on the old copy are allowed to finish, " +
+    "and if too many of the new copy's responses are server errors while it is being watched, requests are switched " +
+    "back to the old copy.")
+public class CutoverResource {
+
+    private final Cluster cluster;
+    private final AppCutovers cutovers;
+
+    public CutoverResource(Cluster cluster, AppCutovers cutovers) {
+        this.cluster = cluster;
+        this.cutovers = cutovers;
+    }
+
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Description(value = "Starts a cutover", details = "Switches `appName` to its copy on `runnerId`, and watches the " +
+        "new copy for `watchSeconds`. If at least 20 responses have been received and more than `maxErrorRate` of them " +
+        "are `5xx` errors, the cutover is rolled back. If `deleteLosingCopy` is `true` then the copy that does not end up " +
+        "serving requests is deleted afterwards; otherwise both copies are kept and the app stays pinned to the winner. " +
+        "Returns a `202` with a `Location` header pointing to the cutover.")
+    public Response create(@FormParam("appName") String appName,
+                           @FormParam("runnerId") String runnerId,
+                           @FormParam("watchSeconds") @DefaultValue("30") int watchSeconds,
+                           @FormParam("maxErrorRate") @DefaultValue("0.1") double maxErrorRate,
+                           @FormParam("deleteLosingCopy") @DefaultValue("false") boolean deleteLosingCopy) {
+        if (appName == null || appName.isBlank()) {
+            throw new BadRequestException("No appName was specified");
+        }
+        if (runnerId == null || runnerId.isBlank()) {
+            throw new BadRequestException("No runnerId was specified");
+        }
+        if (watchSeconds < 0 || watchSeconds > 3600) {
+            throw new BadRequestException("watchSeconds must be between 0 and 3600");
+        }
+        if (!(maxErrorRate >= 0 && maxErrorRate <= 1)) {
+            throw new BadRequestException("maxErrorRate must be between 0 and 1");
+        }
+        Runner target = cluster.runner(runnerId)
+            .orElseThrow(() -> new BadRequestException("No runner with the ID " + runnerId + " exists"));
+        AppCutover cutover;
+        try {
+            cutover = cutovers.cutover(appName, target.url.resolve("/" + appName), Duration.ofSeconds(watchSeconds), maxErrorRate, deleteLosingCopy);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ClientErrorException(e.getMessage(), 409);
+        }
+        return Response.status(202)
+            .header("Location", "/api/v1/cutovers/" + cutover.id)
+            .entity(cutover.toJSON().toString(4))
+            .build();
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets the recent cutovers, newest first")
+    public String all() {
+        JSONArray all = new JSONArray();
+        for (AppCutover cutover : cutovers.all()) {
+            all.put(cutover.toJSON());
+        }
+        return new JSONObject().put("cutovers", all).toString(4);
+    }
+
+    @GET
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets a cutover, where the state is one of verifying, switched, succeeded, rolled_back or failed. " +
+        "`oldTargetFree` becomes true once no requests are in progress on the old copy.")
+    public String get(@PathParam("id") String id) {
+        return cutovers.get(id)
+            .orElseThrow(() -> new NotFoundException("No cutover with ID " + id + " found"))
+            .toJSON().toString(4);
+    }
+}
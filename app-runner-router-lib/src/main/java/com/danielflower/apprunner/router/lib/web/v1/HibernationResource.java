@@ -0,0 +1,36 @@
+package com.danielflower.apprunner.router.lib.web.v1;
+
+import com.danielflower.apprunner.router.lib.mgmt.AppHibernator;
+import io.muserver.rest.Description;
+import org.json.JSONObject;
+
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+
+@Path("/hibernation")
+@Description(value = "App hibernation", details = "When enabled with the `apprunner.hibernate.idle.minutes` setting, " +
+    "apps that have had no requests through the router for that long are stopped on their runner. The next request " +
+    "to a stopped app waits while the app is started again, and is then proxied as normal.")
+public class HibernationResource {
+
+    private final AppHibernator hibernator;
+
+    /**
+     * @param hibernator The hibernator, or null if hibernation is disabled
+     */
+    public HibernationResource(AppHibernator hibernator) {
+        this.hibernator = hibernator;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets the time of the last request to each app and whether it is hibernating")
+    public String get() {
+        if (hibernator == null) {
+            return new JSONObject().put("enabled", false).toString(4);
+        }
+        return hibernator.toJSON().put("enabled", true).toString(4);
+    }
+}
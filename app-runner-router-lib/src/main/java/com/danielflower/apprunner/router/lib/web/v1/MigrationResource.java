@@ -0,0 +1,79 @@
+package com.danielflower.apprunner.router.lib.web.v1;
+
+import com.danielflower.apprunner.router.lib.mgmt.AppMigration;
+import com.danielflower.apprunner.router.lib.mgmt.AppMigrator;
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import io.muserver.rest.Description;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+@Path("/migrations")
+@Description(value = "App migrations", details = "Moves apps from one runner to another without dropping requests. " +
+    "The app is created on the new runner from its git URL, deployed, and once it is available requests are switched " +
+    "to it with a cutover (see `/api/v1/cutovers`). Requests already in progress on the old runner are given up to a " +
+    "minute to finish before the old copy is deleted. If the new copy cannot be deployed, or returns too many errors " +
+    "after the switch, it is deleted and the app is left where it was.")
+public class MigrationResource {
+
+    private final Cluster cluster;
+    private final AppMigrator migrator;
+
+    public MigrationResource(Cluster cluster, AppMigrator migrator) {
+        this.cluster = cluster;
+        this.migrator = migrator;
+    }
+
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Description(value = "Starts moving an app to another runner", details = "Returns a `202` with a `Location` header " +
+        "pointing to the migration, which can be polled to follow its progress.")
+    public Response create(@FormParam("appName") String appName, @FormParam("runnerId") String runnerId) {
+        if (appName == null || appName.isBlank()) {
+            throw new BadRequestException("No appName was specified");
+        }
+        if (runnerId == null || runnerId.isBlank()) {
+            throw new BadRequestException("No runnerId was specified");
+        }
+        Runner target = cluster.runner(runnerId)
+            .orElseThrow(() -> new BadRequestException("No runner with the ID " + runnerId + " exists"));
+        AppMigration migration;
+        try {
+            migration = migrator.migrate(appName, target);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ClientErrorException(e.getMessage(), 409);
+        }
+        return Response.status(202)
+            .header("Location", "/api/v1/migrations/" + migration.id)
+            .entity(migration.toJSON().toString(4))
+            .build();
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets the recent migrations, newest first")
+    public String all() {
+        JSONArray migrations = new JSONArray();
+        for (AppMigration migration : migrator.all()) {
+            migrations.put(migration.toJSON());
+        }
+        return new JSONObject().put("migrations", migrations).toString(4);
+    }
+
+    @GET
+    @Path("/{id}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets a migration, where the state is one of queued, creating, deploying, cutting_over, succeeded or failed")
+    public String get(@PathParam("id") String id) {
+        return migrator.get(id)
+            .orElseThrow(() -> new NotFoundException("No migration with ID " + id + " found"))
+            .toJSON().toString(4);
+    }
+}
@@ -0,0 +1,69 @@
+package com.danielflower.apprunner.router.lib.web.v1;
+
+import com.danielflower.apprunner.router.lib.mgmt.AppMigration;
+import com.danielflower.apprunner.router.lib.mgmt.AppMigrator;
+import com.danielflower.apprunner.router.lib.mgmt.RebalancePlanner;
+import io.muserver.rest.Description;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+
+@Path("/placement")
+@Description(value = "App placement", details = "Information about how apps are spread across the runners, based on " +
+    "the traffic the router has proxied to each app recently. The load of an app is its request rate multiplied by " +
+    "its mean latency in seconds, which is the average number of its requests in progress at once.")
+public class PlacementResource {
+
+    private final RebalancePlanner planner;
+    private final AppMigrator migrator;
+
+    public PlacementResource(RebalancePlanner planner, AppMigrator migrator) {
+        this.planner = planner;
+        this.migrator = migrator;
+    }
+
+    @GET
+    @Path("/plan")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description(value = "Suggests app moves that would even out the traffic across runners", details = "Returns the " +
+        "current load of each runner and app, the suggested moves, and the load each runner would have after the " +
+        "moves. Nothing is moved.")
+    public String plan(@QueryParam("maxMoves") @DefaultValue("10") int maxMoves) {
+        if (maxMoves < 0 || maxMoves > 1000) {
+            throw new BadRequestException("maxMoves must be between 0 and 1000");
+        }
+        return planner.plan(maxMoves).toJSON().toString(4);
+    }
+
+    @POST
+    @Path("/rebalance")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description(value = "Moves apps to even out the traffic across runners", details = "Makes the same plan as " +
+        "`/plan` and starts moving the apps with live migrations, with no more than `concurrency` moves at a time. " +
+        "Returns a `202` with the plan and the migrations, which can be followed at `/api/v1/migrations`.")
+    public Response rebalance(@QueryParam("maxMoves") @DefaultValue("10") int maxMoves,
+                              @QueryParam("concurrency") @DefaultValue("1") int concurrency) {
+        if (maxMoves < 0 || maxMoves > 1000) {
+            throw new BadRequestException("maxMoves must be between 0 and 1000");
+        }
+        if (concurrency < 1 || concurrency > 20) {
+            throw new BadRequestException("concurrency must be between 1 and 20");
+        }
+        RebalancePlanner.Plan plan = planner.plan(maxMoves);
+        JSONArray migrations = new JSONArray();
+        for (AppMigration migration : migrator.migrateAll(plan.moves, concurrency)) {
+            migrations.put(migration.toJSON());
+        }
+        JSONObject result = plan.toJSON().put("migrations", migrations);
+        return Response.status(202).entity(result.toString(4)).build();
+    }
+}
@@ -4,8 +4,10 @@ import com.danielflower.apprunner.router.lib.RunnerUrlVerifier;
 import com.danielflower.apprunner.router.lib.mgmt.Cluster;
 import com.danielflower.apprunner.router.lib.mgmt.MapManager;
 import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import com.danielflower.apprunner.router.lib.mgmt.RunnerDrainer;
 import io.muserver.MuRequest;
 import io.muserver.rest.Description;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,7 +21,8 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.util.Optional;
+import java.time.Duration;
+import java.util.*;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
 
@@ -30,24 +33,40 @@ import static org.apache.commons.lang3.StringUtils.isBlank;
     "to worry about which runner will service the request. However if you want to target endpoints on a specific runner " +
     "you can prefix any URL available on the runner with `/api/v1/runner-proxy/{runnerId}`. For example, to add an app " +
     "to a runner with the ID `myspecialrunner` you can `POST` to `/api/v1/runner-proxy/myspecialrunner/api/v1/apps` and " +
-    "it will bypass the usual router processing.")
+    "it will bypass the usual router processing. Runners can be given labels such as `zone=eu-1,hardware=fast` with the " +
+    "`labels` form field, and app creations can then use the `X-Required-Label`, `X-Preferred-Label` and " +
+    "`X-Anti-Affinity` headers to control which runner the app is placed on. Before removing a runner it can be " +
+    "drained, which stops new apps being placed on it and can move its apps to other runners while they keep serving " +
+    "requests.")
 public class RunnerResource {
     public static final Logger log = LoggerFactory.getLogger(RunnerResource.class);
 
     private final Cluster cluster;
     private final MapManager mapManager;
     private final RunnerUrlVerifier runnerUrlVerifier;
+    private final RunnerDrainer drainer;
 
-    public RunnerResource(Cluster cluster, MapManager mapManager, RunnerUrlVerifier runnerUrlVerifier) {
+    public RunnerResource(Cluster cluster, MapManager mapManager, RunnerUrlVerifier runnerUrlVerifier, RunnerDrainer drainer) {
         this.cluster = cluster;
         this.mapManager = mapManager;
         this.runnerUrlVerifier = runnerUrlVerifier;
+        this.drainer = drainer;
     }
 
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     public String all(@Context UriInfo uriInfo) {
-        return cluster.toJSON().toString(4);
+        JSONArray all = new JSONArray();
+        for (Runner runner : cluster.getRunners()) {
+            all.put(toJSON(runner));
+        }
+        return new JSONObject().put("runners", all).toString(4);
+    }
+
+    private JSONObject toJSON(Runner runner) {
+        JSONObject json = runner.toJSON();
+        drainer.get(runner.id).ifPresent(drain -> json.put("drain", drain.toJSON()));
+        return json;
     }
 
     @GET
@@ -56,7 +75,7 @@ public class RunnerResource {
     public Response getRunner(@Context UriInfo uriInfo, @PathParam("id") String id) {
         Optional<Runner> app = cluster.runner(id);
         if (app.isPresent()) {
-            return Response.ok(app.get().toJSON().toString(4)).build();
+            return Response.ok(toJSON(app.get()).toString(4)).build();
         } else {
             throw new NotFoundException("No runner with ID " + id + " found");
         }
@@ -107,7 +126,9 @@ public class RunnerResource {
                            @Context UriInfo uriInfo,
                            @FormParam("id") String id,
                            @FormParam("url") String url,
-                           @FormParam("maxApps") int maxApps) {
+                           @FormParam("maxApps") int maxApps,
+                           @FormParam("weight") @DefaultValue("1") double weight,
+                           @FormParam("labels") String labelsValue) {
 
         if (isBlank(id)) {
             return Response.status(400).entity("No runner ID was specified").build();
@@ -118,6 +139,15 @@ public class RunnerResource {
         if (maxApps < 0) {
             return Response.status(400).entity("The max apps value must be at least 0").build();
         }
+        if (!(weight > 0)) {
+            return Response.status(400).entity("The weight must be greater than 0").build();
+        }
+        Map<String, String> labels;
+        try {
+            labels = Runner.parseLabels(Collections.singletonList(labelsValue));
+        } catch (IllegalArgumentException e) {
+            return Response.status(400).entity(e.getMessage()).build();
+        }
         runnerUrlVerifier.verify(url);
 
         try {
@@ -128,7 +158,7 @@ public class RunnerResource {
                     .header("Location", resourceLocation)
                     .entity("A runner with the ID " + id + " already exists. To update this runner, instead make a PUT request to " + resourceLocation).build();
             }
-            Runner runner = new Runner(id, URI.create(url), maxApps);
+            Runner runner = new Runner(id, URI.create(url), maxApps, weight, labels);
             log.info("Creating " + runner.toJSON().toString());
             cluster.addRunner(clientRequest, runner);
             return Response.status(201)
@@ -149,7 +179,9 @@ public class RunnerResource {
                            @Context UriInfo uriInfo,
                            @PathParam("id") String id,
                            @FormParam("url") String url,
-                           @FormParam("maxApps") int maxApps) {
+                           @FormParam("maxApps") int maxApps,
+                           @FormParam("weight") @DefaultValue("1") double weight,
+                           @FormParam("labels") String labelsValue) {
 
         if (isBlank(url)) {
             return Response.status(400).entity("No runner URL was specified").build();
@@ -157,16 +189,29 @@ public class RunnerResource {
         if (maxApps < 0) {
             return Response.status(400).entity("The max apps value must be at least 0").build();
         }
+        if (!(weight > 0)) {
+            return Response.status(400).entity("The weight must be greater than 0").build();
+        }
+        Map<String, String> labels;
+        try {
+            labels = Runner.parseLabels(Collections.singletonList(labelsValue));
+        } catch (IllegalArgumentException e) {
+            return Response.status(400).entity(e.getMessage()).build();
+        }
         runnerUrlVerifier.verify(url);
 
         try {
             String resourceLocation = uriInfo.getRequestUri().toString();
-            if (!cluster.runner(id).isPresent()) {
+            Optional<Runner> existing = cluster.runner(id);
+            if (!existing.isPresent()) {
                 return Response
                     .status(404)
                     .entity("No runner with the ID " + id + " exists").build();
             }
-            Runner runner = new Runner(id, URI.create(url), maxApps);
+            Runner runner = new Runner(id, URI.create(url), maxApps, weight, labels);
+            runner.setDraining(existing.get().isDraining());
+            runner.copyLeaseFrom(existing.get());
+            runner.shareReservationsWith(existing.get());
             log.info("Updating " + runner.toJSON().toString());
             cluster.deleteRunner(runner);
             cluster.addRunner(clientRequest, runner);
@@ -180,6 +225,134 @@ public class RunnerResource {
         }
     }
 
+    @POST
+    @Path("/{id}/heartbeat")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_JSON)
+    @Description(value = "Records a heartbeat from a runner", details = "Runners call this periodically with a JSON body such as " +
+        "`{ \"url\": \"http://runner:8080\", \"maxApps\": 50, \"weight\": 1, \"labels\": { \"zone\": \"eu-1\" }, \"appsDigest\": \"abc123\", \"load\": { \"cpu\": 0.4, \"memory\": 0.6, \"loadAverage\": 1.5 }, \"leaseSeconds\": 30 }`. " +
+        "Unknown runners are registered. Each heartbeat extends the runner's lease; if no heartbeat is received before " +
+        "the lease expires then the runner is no longer routed to or placed on until it sends another heartbeat. " +
+        "When the apps digest changes the runner's apps are reloaded. Changes to the URL, max apps, weight or labels " +
+        "of a registered runner are applied when the next heartbeat with them arrives.")
+    public Response heartbeat(@Context MuRequest clientRequest, @PathParam("id") String id, String body) {
+        JSONObject heartbeat;
+        try {
+            heartbeat = new JSONObject(body);
+        } catch (Exception e) {
+            return Response.status(400).entity("The heartbeat body must be a JSON object").build();
+        }
+        long leaseSeconds = Math.max(5, Math.min(300, heartbeat.optLong("leaseSeconds", Runner.DEFAULT_LEASE.getSeconds())));
+        try {
+            Optional<Runner> existing = cluster.runner(id);
+            Runner runner;
+            try {
+                runner = fromHeartbeat(id, heartbeat, existing.orElse(null));
+            } catch (WebApplicationException e) {
+                return Response.status(e.getResponse().getStatus()).entity(e.getMessage()).build();
+            }
+            boolean urlChanged = false;
+            if (existing.isPresent() && runner != existing.get()) {
+                // the runner's settings changed, for example because it was restarted with new labels
+                urlChanged = !runner.url.equals(existing.get().url);
+                log.info("Updating " + id + " from its heartbeat to " + runner.toConfigJSON());
+                cluster.replaceRunner(existing.get(), runner);
+            }
+            boolean reload = runner.renewLease(Duration.ofSeconds(leaseSeconds), heartbeat.optString("appsDigest", null), heartbeat.optJSONObject("load")) || urlChanged;
+            if (!existing.isPresent()) {
+                // the lease is renewed first so that the runner is saved as one that expires
+                log.info("Registering " + id + " from its first heartbeat");
+                cluster.addRunner(clientRequest, runner);
+            } else if (reload) {
+                mapManager.loadRunnerAppNamesAsync(null, runner)
+                    .whenComplete((names, error) -> {
+                        if (error == null) {
+                            cluster.refreshRunnerCountCache(mapManager.getCurrentMapping());
+                        } else {
+                            log.warn("Could not reload the apps of " + id + " after its heartbeat", error);
+                        }
+                    });
+            }
+            return Response.ok(runner.toJSON().toString(4)).build();
+        } catch (Exception e) {
+            log.error("Error while processing heartbeat from " + id, e);
+            return Response.serverError().entity("Error while processing heartbeat: " + e.getMessage()).build();
+        }
+    }
+
+    /**
+     * Gets the runner described by a heartbeat. Settings missing from the heartbeat keep their existing values.
+     * @return The existing runner if none of its settings changed, otherwise a new runner with the settings
+     * @throws NotFoundException if there is no existing runner and no URL to register it with
+     * @throws BadRequestException if a setting is invalid
+     */
+    private Runner fromHeartbeat(String id, JSONObject heartbeat, Runner existing) {
+        String url = heartbeat.optString("url", existing == null ? null : existing.url.toString());
+        if (isBlank(url)) {
+            throw new NotFoundException("No runner with the ID " + id + " exists, and no URL was given to register it");
+        }
+        int maxApps = heartbeat.optInt("maxApps", existing == null ? -1 : existing.maxApps);
+        if (maxApps < 0) {
+            throw new BadRequestException("The max apps value must be at least 0");
+        }
+        double weight = heartbeat.optDouble("weight", existing == null ? 1.0 : existing.weight);
+        if (!(weight > 0)) {
+            throw new BadRequestException("The weight must be greater than 0");
+        }
+        Map<String, String> labels;
+        JSONObject labelsJSON = heartbeat.optJSONObject("labels");
+        if (labelsJSON == null) {
+            labels = existing == null ? Map.of() : existing.labels;
+        } else {
+            List<String> labelValues = new ArrayList<>();
+            for (String key : labelsJSON.keySet()) {
+                labelValues.add(key + "=" + labelsJSON.get(key));
+            }
+            try {
+                labels = Runner.parseLabels(labelValues);
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException(e.getMessage());
+            }
+        }
+        if (existing != null && existing.url.toString().equals(url) && existing.maxApps == maxApps
+            && existing.weight == weight && existing.labels.equals(labels)) {
+            return existing;
+        }
+        if (existing == null || !existing.url.toString().equals(url)) {
+            runnerUrlVerifier.verify(url);
+        }
+        return new Runner(id, URI.create(url), maxApps, weight, labels);
+    }
+
+    @PUT
+    @Path("/{id}/drain")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Description(value = "Starts draining a runner", details = "No new apps are placed on a draining runner, but its " +
+        "apps are still routed to. If `migrateApps` is `true` then its apps are also moved to other runners with live " +
+        "migrations, `concurrency` at a time. The progress is shown in the `drain` field of the runner.")
+    public Response drain(@PathParam("id") String id,
+                          @FormParam("migrateApps") @DefaultValue("false") boolean migrateApps,
+                          @FormParam("concurrency") @DefaultValue("1") int concurrency) throws IOException {
+        if (concurrency < 1 || concurrency > 20) {
+            return Response.status(400).entity("The concurrency must be between 1 and 20").build();
+        }
+        Runner runner = getRunner(id);
+        drainer.start(runner, migrateApps, concurrency);
+        return Response.ok(toJSON(runner).toString(4)).build();
+    }
+
+    @DELETE
+    @Path("/{id}/drain")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description(value = "Stops draining a runner", details = "New apps can be placed on the runner again. App moves " +
+        "already in progress are completed but no more are started.")
+    public Response undrain(@PathParam("id") String id) throws IOException {
+        Runner runner = getRunner(id);
+        drainer.stop(runner);
+        return Response.ok(toJSON(runner).toString(4)).build();
+    }
+
     public static String urlEncode(String value) {
         try {
             return URLEncoder.encode(value, "UTF-8");
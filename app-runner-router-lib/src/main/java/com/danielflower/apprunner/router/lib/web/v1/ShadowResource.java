@@ -0,0 +1,112 @@
+package com.danielflower.apprunner.router.lib.web.v1;
+
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import com.danielflower.apprunner.router.lib.web.TrafficShadow;
+import com.danielflower.apprunner.router.lib.web.TrafficShadower;
+import io.muserver.rest.Description;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+@Path("/shadows")
+@Description(value = "Traffic shadows", details = "Mirrors a fraction of an app's web requests to a copy of the app on " +
+    "another runner and throws away the responses, so that a newly started copy can warm up before it is given real " +
+    "traffic, for example before a cutover. The copy must already be deployed on that runner. Mirrored requests never " +
+    "delay the real ones: when too many are in progress, requests are simply not mirrored. Requests with a body are " +
+    "not mirrored. Latency percentiles of the mirrored requests show when the copy is warm.")
+public class ShadowResource {
+
+    private final Cluster cluster;
+    private final ProxyMap proxyMap;
+    private final TrafficShadower shadower;
+
+    public ShadowResource(Cluster cluster, ProxyMap proxyMap, TrafficShadower shadower) {
+        this.cluster = cluster;
+        this.proxyMap = proxyMap;
+        this.shadower = shadower;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets all the shadows with the stats of their mirrored requests")
+    public String all() {
+        JSONArray all = new JSONArray();
+        for (Map.Entry<String, TrafficShadow> entry : new TreeMap<>(shadower.all()).entrySet()) {
+            all.put(entry.getValue().toJSON());
+        }
+        return new JSONObject().put("shadows", all).toString(4);
+    }
+
+    @GET
+    @Path("/{appName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets the shadow of an app with the stats of its mirrored requests")
+    public String get(@PathParam("appName") String appName) {
+        TrafficShadow shadow = shadower.get(appName);
+        if (shadow == null) {
+            throw new NotFoundException("No shadow for " + appName + " found");
+        }
+        return shadow.toJSON().toString(4);
+    }
+
+    @PUT
+    @Path("/{appName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Description(value = "Starts mirroring an app's requests", details = "Mirrors `fraction` (from 0 to 1) of the " +
+        "app's requests to its copy on `runnerId`. By default only `GET`, `HEAD` and `OPTIONS` requests are mirrored; " +
+        "`methods` is a comma separated list to change this. Replaces any existing shadow of the app and resets its stats.")
+    public String set(@PathParam("appName") String appName,
+                      @FormParam("runnerId") String runnerId,
+                      @FormParam("fraction") @DefaultValue("0.1") double fraction,
+                      @FormParam("methods") @DefaultValue("GET,HEAD,OPTIONS") String methods) {
+        if (runnerId == null || runnerId.isBlank()) {
+            throw new BadRequestException("No runnerId was specified");
+        }
+        URI current = proxyMap.get(appName);
+        if (current == null) {
+            throw new NotFoundException("No app called " + appName + " exists");
+        }
+        Runner runner = cluster.runner(runnerId)
+            .orElseThrow(() -> new BadRequestException("No runner with the ID " + runnerId + " exists"));
+        URI url = runner.url.resolve("/" + appName);
+        if (url.equals(current)) {
+            throw new BadRequestException("Requests for " + appName + " are already sent to " + runnerId);
+        }
+        Set<String> methodSet = new HashSet<>();
+        for (String method : methods.split(",")) {
+            if (!method.isBlank()) {
+                methodSet.add(method.trim().toUpperCase());
+            }
+        }
+        TrafficShadow shadow;
+        try {
+            shadow = new TrafficShadow(appName, runnerId, url, fraction, methodSet);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        shadower.set(shadow);
+        return shadow.toJSON().toString(4);
+    }
+
+    @DELETE
+    @Path("/{appName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Stops mirroring an app's requests, returning the final stats")
+    public String delete(@PathParam("appName") String appName) {
+        TrafficShadow removed = shadower.remove(appName);
+        if (removed == null) {
+            throw new NotFoundException("No shadow for " + appName + " found");
+        }
+        return removed.toJSON().toString(4);
+    }
+}
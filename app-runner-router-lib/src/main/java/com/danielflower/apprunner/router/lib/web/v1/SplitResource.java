@@ -0,0 +1,126 @@
+package com.danielflower.apprunner.router.lib.web.v1;
+
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import com.danielflower.apprunner.router.lib.web.TrafficSplit;
+import io.muserver.rest.Description;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.MediaType;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+@Path("/splits")
+@Description(value = "Traffic splits", details = "Sends a percentage of an app's web requests to other copies of the " +
+    "app, for canary releases. Each copy must already be deployed on its runner, for example with " +
+    "`/api/v1/runner-proxy/{runnerId}/api/v1/apps`. Requests to the app's API are not split. Request counts, error " +
+    "rates and latencies are kept for each copy so that a canary can be compared with the current copy. To promote " +
+    "a canary, start a cutover to its runner and then delete the split.")
+public class SplitResource {
+
+    private final Cluster cluster;
+    private final ProxyMap proxyMap;
+
+    public SplitResource(Cluster cluster, ProxyMap proxyMap) {
+        this.cluster = cluster;
+        this.proxyMap = proxyMap;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets all the splits with the stats of each target")
+    public String all() {
+        JSONArray all = new JSONArray();
+        for (Map.Entry<String, TrafficSplit> entry : new TreeMap<>(proxyMap.getSplits()).entrySet()) {
+            all.put(toJSON(entry.getKey(), entry.getValue()));
+        }
+        return new JSONObject().put("splits", all).toString(4);
+    }
+
+    @GET
+    @Path("/{appName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Gets the split for an app with the stats of each target")
+    public String get(@PathParam("appName") String appName) {
+        TrafficSplit split = proxyMap.getSplit(appName);
+        if (split == null) {
+            throw new NotFoundException("No split for " + appName + " found");
+        }
+        return toJSON(appName, split).toString(4);
+    }
+
+    @PUT
+    @Path("/{appName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Consumes(MediaType.APPLICATION_FORM_URLENCODED)
+    @Description(value = "Sets the split for an app", details = "`targets` is a comma separated list of runner IDs and " +
+        "weights, for example `runner1=95,runner2=5`. The weights do not need to add up to 100. If `sticky` is `true` " +
+        "then the router sets a cookie so that each client keeps going to the same copy, which suits apps with in-memory " +
+        "sessions or caches; clients are moved to another copy if theirs is removed from the split, given a weight of " +
+        "`0`, or its runner's lease expires. Setting a split replaces any existing split for the app and resets its stats.")
+    public String set(@PathParam("appName") String appName,
+                      @FormParam("targets") String targets,
+                      @FormParam("sticky") @DefaultValue("false") boolean sticky) {
+        if (targets == null || targets.isBlank()) {
+            throw new BadRequestException("No targets were specified");
+        }
+        if (proxyMap.get(appName) == null) {
+            throw new NotFoundException("No app called " + appName + " exists");
+        }
+        List<TrafficSplit.Target> parsed = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        for (String target : targets.split(",")) {
+            String[] bits = target.trim().split("=");
+            if (bits.length != 2) {
+                throw new BadRequestException("Targets must be in the format runnerId=weight");
+            }
+            String runnerId = bits[0].trim();
+            Runner runner = cluster.runner(runnerId)
+                .orElseThrow(() -> new BadRequestException("No runner with the ID " + runnerId + " exists"));
+            if (!seen.add(runnerId)) {
+                throw new BadRequestException("The runner " + runnerId + " is in the targets more than once");
+            }
+            int weight;
+            try {
+                weight = Integer.parseInt(bits[1].trim());
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("The weight for " + runnerId + " is not a whole number");
+            }
+            parsed.add(new TrafficSplit.Target(runnerId, runner.url.resolve("/" + appName), weight, runner));
+        }
+        TrafficSplit split;
+        try {
+            split = new TrafficSplit(parsed, sticky);
+            proxyMap.setSplit(appName, split);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException(e.getMessage());
+        }
+        return toJSON(appName, split).toString(4);
+    }
+
+    @DELETE
+    @Path("/{appName}")
+    @Produces(MediaType.APPLICATION_JSON)
+    @Description("Removes the split for an app so that all its requests go to its mapped copy again, returning the final stats")
+    public String delete(@PathParam("appName") String appName) {
+        TrafficSplit split = proxyMap.getSplit(appName);
+        if (split == null) {
+            throw new NotFoundException("No split for " + appName + " found");
+        }
+        proxyMap.removeSplit(appName);
+        return toJSON(appName, split).toString(4);
+    }
+
+    private static JSONObject toJSON(String appName, TrafficSplit split) {
+        return split.toJSON()
+            .put("appName", appName)
+            .put("url", "/api/v1/splits/" + appName);
+    }
+}
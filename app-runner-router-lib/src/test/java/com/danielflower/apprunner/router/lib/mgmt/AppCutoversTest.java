@@ -0,0 +1,94 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.InFlightRequests;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class AppCutoversTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
+    private final AppCutovers cutovers = new AppCutovers(proxyMap, HttpClient.newHttpClient(), inFlightRequests,
+        Duration.ofSeconds(10), Duration.ZERO, 0.1, 5, Duration.ofMillis(10), null);
+    private final StubRunner blue = StubRunner.start("blue");
+    private final StubRunner green = StubRunner.start("green");
+    private final URI blueUrl = blue.url().resolve("/app1");
+    private final URI greenUrl = green.url().resolve("/app1");
+
+    public AppCutoversTest() {
+        blue.addApp("app1");
+        green.addApp("app1");
+        proxyMap.add("app1", blueUrl);
+    }
+
+    @After
+    public void stop() {
+        blue.close();
+        green.close();
+    }
+
+    @Test
+    public void theOldCopyIsOnlyFreeOnceItsRequestsHaveFinished() throws Exception {
+        inFlightRequests.started("app1", blueUrl);
+        AppCutover cutover = cutovers.cutover("app1", greenUrl, Duration.ZERO, 0.1, false);
+        while (cutover.state() == AppCutover.State.VERIFYING) {
+            Thread.sleep(5);
+        }
+        assertThat(proxyMap.get("app1"), is(greenUrl));
+        Thread.sleep(100);
+        assertThat(cutover.oldTargetFree(), is(false));
+
+        inFlightRequests.finished("app1", blueUrl, 200);
+        cutover.whenFinished().get(10, TimeUnit.SECONDS);
+        assertThat(cutover.state(), is(AppCutover.State.SUCCEEDED));
+        assertThat(cutover.oldTargetFree(), is(true));
+        assertThat("both copies are kept", blue.hasApp("app1") && green.hasApp("app1"), is(true));
+        proxyMap.add("app1", blueUrl);
+        assertThat("the app stays pinned to the new copy", proxyMap.get("app1"), is(greenUrl));
+    }
+
+    @Test
+    public void theCutoverIsRolledBackIfTheNewCopyReturnsTooManyErrors() throws Exception {
+        AppCutover cutover = cutovers.cutover("app1", greenUrl, Duration.ofSeconds(10), 0.5, true);
+        while (cutover.state() == AppCutover.State.VERIFYING) {
+            Thread.sleep(5);
+        }
+        inFlightRequests.started("app1", greenUrl);
+        for (int i = 0; i < 5; i++) {
+            inFlightRequests.started("app1", greenUrl);
+            inFlightRequests.finished("app1", greenUrl, i < 2 ? 200 : 502);
+        }
+        while (cutover.state() != AppCutover.State.ROLLED_BACK) {
+            Thread.sleep(5);
+        }
+        assertThat(proxyMap.get("app1"), is(blueUrl));
+        Thread.sleep(100);
+        assertThat("the losing copy is kept until its requests finish", green.hasApp("app1"), is(true));
+
+        inFlightRequests.finished("app1", greenUrl, 200);
+        cutover.whenFinished().get(10, TimeUnit.SECONDS);
+        assertThat(cutover.state(), is(AppCutover.State.ROLLED_BACK));
+        assertThat("the losing copy is deleted", green.hasApp("app1"), is(false));
+        assertThat(proxyMap.isPinned("app1"), is(false));
+    }
+
+    @Test
+    public void requestsAreNotSwitchedToACopyThatIsNotAvailable() throws Exception {
+        green.removeApp("app1");
+        AppCutover cutover = cutovers.cutover("app1", greenUrl, Duration.ZERO, 0.1, false);
+        cutover.whenFinished().get(10, TimeUnit.SECONDS);
+        assertThat(cutover.state(), is(AppCutover.State.FAILED));
+        assertThat(proxyMap.get("app1"), is(blueUrl));
+        assertThat(proxyMap.isPinned("app1"), is(false));
+    }
+}
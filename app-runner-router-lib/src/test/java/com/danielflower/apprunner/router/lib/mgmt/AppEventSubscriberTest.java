@@ -0,0 +1,102 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static scaffolding.Photocopier.projectRoot;
+
+public class AppEventSubscriberTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+    private final StubRunner runner = StubRunner.start("runner");
+    private final Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+    private final AppEventSubscriber subscriber = new AppEventSubscriber(cluster, mapManager, proxyMap, httpClient, null, Duration.ofSeconds(30));
+
+    public AppEventSubscriberTest() throws Exception {
+        cluster.addRunner(null, runner.toRunner(10));
+    }
+
+    @After
+    public void stop() {
+        subscriber.stop();
+        runner.close();
+    }
+
+    @Test
+    public void appChangesArePushedToTheProxyMap() throws Exception {
+        runner.setEventsEnabled(true);
+        long beforeStarting = System.currentTimeMillis();
+        subscriber.start();
+        // wait for the resync after connecting to finish so that it cannot overwrite the pushed changes
+        waitFor(() -> subscriber.allConnected(cluster.getRunners()) && runner.eventSubscribers() == 1
+            && mapManager.appsLoadedAt(cluster.getRunners().get(0)) >= beforeStarting);
+        int appsRequestsAfterConnecting = runner.appsRequests();
+
+        runner.addApp("app1");
+        waitFor(() -> proxyMap.get("app1") != null);
+        runner.removeApp("app1");
+        waitFor(() -> proxyMap.get("app1") == null);
+        assertThat(runner.appsRequests(), is(appsRequestsAfterConnecting));
+    }
+
+    @Test
+    public void aGapInEventIDsCausesAFullReload() throws Exception {
+        runner.setEventsEnabled(true);
+        long beforeStarting = System.currentTimeMillis();
+        subscriber.start();
+        waitFor(() -> runner.eventSubscribers() == 1 && mapManager.appsLoadedAt(cluster.getRunners().get(0)) >= beforeStarting);
+        runner.addApp("app1");
+        waitFor(() -> proxyMap.get("app1") != null);
+        int appsRequestsBefore = runner.appsRequests();
+
+        runner.addAppWithLostEvent("lost");
+        runner.addApp("app2");
+        // only a reload after the gap can find the app whose event was lost
+        waitFor(() -> proxyMap.get("lost") != null);
+        assertThat(runner.appsRequests() > appsRequestsBefore, is(true));
+        assertThat(proxyMap.get("app2") != null, is(true));
+    }
+
+    @Test
+    public void closedStreamsAreReconnected() throws Exception {
+        runner.setEventsEnabled(true);
+        subscriber.start();
+        waitFor(() -> runner.eventSubscribers() == 1);
+
+        runner.closeEventStreams();
+        waitFor(() -> !subscriber.allConnected(cluster.getRunners()));
+        long disconnectedAt = System.currentTimeMillis();
+        waitFor(() -> runner.eventSubscribers() == 1 && subscriber.allConnected(cluster.getRunners())
+            && mapManager.appsLoadedAt(cluster.getRunners().get(0)) >= disconnectedAt);
+        runner.addApp("app1");
+        waitFor(() -> proxyMap.get("app1") != null);
+    }
+
+    @Test
+    public void runnersWithoutEventStreamsAreNotConnected() throws Exception {
+        subscriber.start();
+        Thread.sleep(300);
+        List<Runner> runners = cluster.getRunners();
+        assertThat(subscriber.allConnected(runners), is(false));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 250 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(20);
+        }
+        assertThat(condition.getAsBoolean(), is(true));
+    }
+}
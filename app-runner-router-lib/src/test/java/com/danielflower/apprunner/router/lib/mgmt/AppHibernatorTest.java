@@ -0,0 +1,153 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static scaffolding.Photocopier.projectRoot;
+
+public class AppHibernatorTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final StubRunner runner = StubRunner.start("one");
+    private final File stateFile = new File(projectRoot(), "target/hibernation/" + UUID.randomUUID() + "/hibernating.json");
+    private final AppHibernator hibernator = create();
+
+    public AppHibernatorTest() {
+        for (String app : new String[]{"sleepy", "busy"}) {
+            runner.addApp(app);
+            proxyMap.add(app, runner.url().resolve("/" + app));
+        }
+    }
+
+    @After
+    public void stop() {
+        hibernator.stop();
+        runner.close();
+    }
+
+    @Test
+    public void idleAppsAreStoppedAndStartedAgainOnTheNextRequest() throws Exception {
+        hibernator.hibernateIdleApps();
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(40);
+            hibernator.touched("busy");
+        }
+        hibernator.hibernateIdleApps();
+
+        assertThat(hibernator.isHibernating("sleepy"), is(true));
+        assertThat(hibernator.isHibernating("busy"), is(false));
+        waitUntil(() -> !runner.isAvailable("sleepy"));
+        assertThat(runner.isAvailable("busy"), is(true));
+
+        hibernator.awaitAwake("sleepy");
+        assertThat(hibernator.isHibernating("sleepy"), is(false));
+        assertThat(runner.isAvailable("sleepy"), is(true));
+    }
+
+    @Test
+    public void hibernatingAppsAreStillStartedOnDemandAfterARestart() throws Exception {
+        hibernator.hibernateIdleApps();
+        Thread.sleep(150);
+        hibernator.touched("busy");
+        hibernator.hibernateIdleApps();
+        waitUntil(() -> !runner.isAvailable("sleepy"));
+        hibernator.stop();
+
+        AppHibernator restarted = create();
+        try {
+            assertThat(restarted.isHibernating("sleepy"), is(true));
+            assertThat(restarted.isHibernating("busy"), is(false));
+            restarted.awaitAwake("sleepy");
+            assertThat(runner.isAvailable("sleepy"), is(true));
+            assertThat(create().isHibernating("sleepy"), is(false));
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    public void hibernationsAreForgottenWhenTheAppIsMovedElsewhere() throws Exception {
+        hibernator.hibernateIdleApps();
+        Thread.sleep(150);
+        hibernator.touched("sleepy");
+        hibernator.hibernateIdleApps();
+        waitUntil(() -> !runner.isAvailable("busy"));
+        assertThat(hibernator.isHibernating("busy"), is(true));
+
+        proxyMap.add("busy", URI.create("http://localhost:1/busy"));
+        hibernator.awaitAwake("busy");
+        assertThat(hibernator.isHibernating("busy"), is(false));
+        assertThat("the copy on the old runner is not started", runner.isAvailable("busy"), is(false));
+        assertThat(create().isHibernating("busy"), is(false));
+    }
+
+    @Test
+    public void pinnedAppsAreNotStopped() throws Exception {
+        proxyMap.pin("sleepy", runner.url().resolve("/sleepy"));
+        hibernator.hibernateIdleApps();
+        Thread.sleep(150);
+        hibernator.hibernateIdleApps();
+        assertThat(hibernator.isHibernating("sleepy"), is(false));
+        assertThat(runner.isAvailable("sleepy"), is(true));
+    }
+
+    @Test
+    public void requestsAreRejectedWhenTooManyAreWaiting() throws Exception {
+        hibernator.hibernateIdleApps();
+        Thread.sleep(150);
+        hibernator.hibernateIdleApps();
+        waitUntil(() -> !runner.isAvailable("sleepy"));
+
+        runner.setDelay(500);
+        CompletableFuture<Void> first = CompletableFuture.runAsync(() -> {
+            try {
+                hibernator.awaitAwake("sleepy");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        waitUntil(() -> hibernator.toJSON().getInt("waitingRequests") == 1);
+        try {
+            hibernator.awaitAwake("sleepy");
+            fail("Should have been rejected");
+        } catch (RejectedExecutionException expected) {
+        }
+        first.get();
+        assertThat(runner.isAvailable("sleepy"), is(true));
+    }
+
+    private AppHibernator create() {
+        try {
+            return new AppHibernator(proxyMap, HttpClient.newHttpClient(), null,
+                Duration.ofMillis(100), Duration.ofSeconds(10), 1, Duration.ofMillis(20), stateFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long giveUpAt = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > giveUpAt) {
+                fail("Timed out waiting");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.nullValue;
+import static scaffolding.Photocopier.projectRoot;
+
+public class AppLocatorTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+    private final StubRunner one = StubRunner.start("one");
+    private final StubRunner two = StubRunner.start("two");
+    private final Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+    private final AppLocator locator = new AppLocator(cluster, proxyMap, httpClient, Duration.ofSeconds(2), Duration.ofSeconds(30), 2, 5);
+
+    public AppLocatorTest() throws Exception {
+        cluster.addRunner(null, one.toRunner(10));
+        cluster.addRunner(null, two.toRunner(10));
+    }
+
+    @After
+    public void stop() {
+        one.close();
+        two.close();
+    }
+
+    @Test
+    public void appsAddedDirectlyOnARunnerAreFoundAndAddedToTheProxyMap() throws Exception {
+        two.addApp("app1");
+        two.setDelay(200);
+        List<CompletableFuture<URI>> lookups = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            lookups.add(CompletableFuture.supplyAsync(() -> locator.locate("app1")));
+        }
+        for (CompletableFuture<URI> lookup : lookups) {
+            assertThat(lookup.get(), is(two.url().resolve("/app1")));
+        }
+        assertThat(proxyMap.get("app1"), is(two.url().resolve("/app1")));
+        assertThat("concurrent lookups are coalesced", two.appRequests(), is(1));
+        assertThat(cluster.runner("two").get().numberOfApps(), is(1));
+    }
+
+    @Test
+    public void namesNoRunnerHasAreRememberedForAWhile() {
+        assertThat(locator.locate("nothing"), is(nullValue()));
+        assertThat(locator.locate("nothing"), is(nullValue()));
+        assertThat(one.appRequests(), is(1));
+        assertThat(two.appRequests(), is(1));
+
+        locator.locate("nothing2");
+        locator.locate("nothing3");
+        assertThat("the negative cache is bounded", locator.missingCount(), is(2));
+        locator.locate("nothing");
+        assertThat(one.appRequests(), is(4));
+    }
+
+    @Test
+    public void namesAreNotRememberedAsMissingIfARunnerCouldNotAnswer() {
+        two.setHealthy(false);
+        two.addApp("app1");
+        assertThat(locator.locate("app1"), is(nullValue()));
+        assertThat(locator.missingCount(), is(0));
+        two.setHealthy(true);
+        assertThat(locator.locate("app1"), is(two.url().resolve("/app1")));
+    }
+
+    @Test
+    public void missesAreNotLookedUpWhenTooManyRequestsAreWaiting() throws Exception {
+        AppLocator capped = new AppLocator(cluster, proxyMap, httpClient, Duration.ofSeconds(2), Duration.ofSeconds(30), 2, 1);
+        two.addApp("app1");
+        two.setDelay(500);
+        CompletableFuture<URI> first = CompletableFuture.supplyAsync(() -> capped.locate("app1"));
+        Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        assertThat(capped.locate("app2"), is(nullValue()));
+        assertThat(System.currentTimeMillis() - start < 300, is(true));
+        assertThat(first.get(), is(two.url().resolve("/app1")));
+        assertThat("the rejected name was not looked up or remembered", capped.missingCount(), is(0));
+    }
+
+    @Test
+    public void invalidAppNamesAreNotLookedUp() {
+        assertThat(locator.locate("wp-login.php"), is(nullValue()));
+        assertThat(one.appRequests(), is(0));
+    }
+}
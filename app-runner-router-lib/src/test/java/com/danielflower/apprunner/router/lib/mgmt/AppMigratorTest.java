@@ -0,0 +1,150 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.InFlightRequests;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static scaffolding.Photocopier.projectRoot;
+
+public class AppMigratorTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final InFlightRequests inFlightRequests = new InFlightRequests();
+    private final StubRunner one = StubRunner.start("one");
+    private final StubRunner two = StubRunner.start("two");
+    private final Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"),
+        new ClusterQueryingMapManager(proxyMap, httpClient));
+    private final AppHibernator hibernator = new AppHibernator(proxyMap, httpClient, inFlightRequests, Duration.ofMillis(100),
+        Duration.ofSeconds(10), 10, Duration.ofMillis(20), null);
+    private final AppCutovers cutovers = new AppCutovers(proxyMap, httpClient, inFlightRequests, Duration.ofSeconds(10),
+        Duration.ZERO, 0.1, 20, Duration.ofMillis(20), hibernator);
+    private final AppMigrator migrator = new AppMigrator(cluster, proxyMap, httpClient, cutovers, Duration.ofSeconds(10), Duration.ofMillis(20), hibernator);
+    private final URI oldUrl = one.url().resolve("/app1");
+
+    public AppMigratorTest() throws Exception {
+        cluster.addRunner(null, one.toRunner(10));
+        cluster.addRunner(null, two.toRunner(10));
+        one.addApp("app1");
+        proxyMap.add("app1", oldUrl);
+    }
+
+    @After
+    public void stop() {
+        hibernator.stop();
+        one.close();
+        two.close();
+    }
+
+    @Test
+    public void appsAreSwitchedOnceDeployedAndTheOldCopyIsDeletedAfterItsRequestsFinish() throws Exception {
+        inFlightRequests.started("app1", oldUrl);
+        AppMigration migration = migrator.migrate("app1", cluster.runner("two").get());
+
+        eventually(() -> two.url().resolve("/app1").equals(proxyMap.get("app1")));
+        assertThat(migration.state(), is(AppMigration.State.CUTTING_OVER));
+        assertThat("reloading the old runner does not switch back", reloadOld(), is(two.url().resolve("/app1")));
+        assertThat(one.hasApp("app1"), is(true));
+
+        inFlightRequests.finished("app1", oldUrl, 200);
+        migration.whenFinished().get(10, TimeUnit.SECONDS);
+        assertThat(migration.state(), is(AppMigration.State.SUCCEEDED));
+        assertThat(one.hasApp("app1"), is(false));
+        assertThat(two.hasApp("app1"), is(true));
+        assertThat(proxyMap.isPinned("app1"), is(false));
+        assertThat(cluster.runner("one").get().numberOfApps(), is(0));
+        assertThat(cluster.runner("two").get().numberOfAppsIncludingReserved(), is(1));
+    }
+
+    @Test
+    public void hibernatingAppsAreStartedBeforeBeingMovedAndCanBeRequestedAfterwards() throws Exception {
+        hibernator.hibernateIdleApps();
+        Thread.sleep(150);
+        hibernator.hibernateIdleApps();
+        eventually(() -> !one.isAvailable("app1"));
+        assertThat(hibernator.isHibernating("app1"), is(true));
+
+        AppMigration migration = migrator.migrate("app1", cluster.runner("two").get());
+        migration.whenFinished().get(10, TimeUnit.SECONDS);
+        assertThat(migration.state(), is(AppMigration.State.SUCCEEDED));
+        assertThat(hibernator.isHibernating("app1"), is(false));
+
+        hibernator.awaitAwake("app1");
+        assertThat(proxyMap.get("app1"), is(two.url().resolve("/app1")));
+        assertThat(two.isAvailable("app1"), is(true));
+    }
+
+    @Test
+    public void appsStayWhereTheyWereIfTheNewCopyCannotBeDeployed() throws Exception {
+        two.setFailDeployments(true);
+        AppMigration migration = migrator.migrate("app1", cluster.runner("two").get());
+        migration.whenFinished().get(10, TimeUnit.SECONDS);
+
+        assertThat(migration.state(), is(AppMigration.State.FAILED));
+        assertThat(proxyMap.get("app1"), is(oldUrl));
+        assertThat(proxyMap.isPinned("app1"), is(false));
+        assertThat(one.hasApp("app1"), is(true));
+        eventually(() -> !two.hasApp("app1"));
+        assertThat(cluster.runner("two").get().reservedApps(), is(0));
+    }
+
+    @Test
+    public void anAppCanOnlyBeMovedOnceAtATime() throws Exception {
+        two.setDelay(200);
+        AppMigration migration = migrator.migrate("app1", cluster.runner("two").get());
+        try {
+            migrator.migrate("app1", cluster.runner("two").get());
+            fail("Should not be able to move an app that is already moving");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage(), is("app1 is already being moved"));
+        }
+        migration.whenFinished().get(10, TimeUnit.SECONDS);
+        assertThat(migrator.all().size(), is(1));
+    }
+
+    @Test
+    public void reservedTargetsKeepTheirPlaceUntilTheMoveFinishes() throws Exception {
+        Runner target = cluster.runner("two").get();
+        assertThat(target.tryReserve(), is(true));
+        AppMigration migration = migrator.migrateReserved("app1", target);
+        assertThat("no second reservation is made", target.reservedApps(), is(1));
+        migration.whenFinished().get(10, TimeUnit.SECONDS);
+        assertThat(target.reservedApps(), is(0));
+
+        assertThat(target.tryReserve(), is(true));
+        try {
+            migrator.migrateReserved("no-such-app", target);
+            fail("Should not be able to move an app that does not exist");
+        } catch (IllegalArgumentException e) {
+            assertThat("the reservation is released if the move cannot start", target.reservedApps(), is(0));
+        }
+    }
+
+    private URI reloadOld() {
+        proxyMap.add("app1", oldUrl);
+        return proxyMap.get("app1");
+    }
+
+    private static void eventually(BooleanSupplier condition) throws InterruptedException {
+        long giveUpAt = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > giveUpAt) {
+                fail("Timed out waiting for condition");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+
+public class AppNameReaderTest {
+
+    @Test
+    public void namesAreReadAndEverythingElseIsSkipped() {
+        String json = "{ \"appCount\": 2, \"errors\": [], \"meta\": { \"name\": \"not-an-app\", \"nested\": [1, 2.5e3, true, null, {\"a\": \"b\"}] },\n" +
+            "  \"apps\": [\n" +
+            "    { \"url\": \"http://localhost/app1/\", \"build\": { \"name\": \"ignored\", \"log\": \"line1\\nline \\\"2\\\" \\u00e9\" }, \"name\": \"app1\", \"running\": true },\n" +
+            "    { \"name\": \"app-\\u00e9\", \"contributors\": [\"x\", \"y\"] },\n" +
+            "    { \"noName\": null }\n" +
+            "  ],\n" +
+            "  \"trailer\": -1 }";
+        assertThat(read(json), contains("app1", "app-\u00e9"));
+    }
+
+    @Test
+    public void emptyAppListsAreSupported() {
+        assertThat(read("{\"apps\":[]}"), empty());
+        assertThat(read("{}"), empty());
+    }
+
+    @Test(expected = JSONException.class)
+    public void invalidJsonIsRejected() {
+        read("{\"apps\": [ {\"name\": \"app1\" ");
+    }
+
+    private static List<String> read(String json) {
+        return AppNameReader.readNames(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+}
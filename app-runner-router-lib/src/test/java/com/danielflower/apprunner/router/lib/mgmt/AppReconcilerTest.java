@@ -0,0 +1,66 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static scaffolding.Photocopier.projectRoot;
+
+public class AppReconcilerTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, HttpClient.newHttpClient());
+    private final StubRunner runner = StubRunner.start("runner");
+    private final Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+    private final AppReconciler reconciler = new AppReconciler(cluster, mapManager, Duration.ofMillis(50), Duration.ofMillis(200));
+
+    public AppReconcilerTest() throws Exception {
+        cluster.addRunner(null, runner.toRunner(10));
+    }
+
+    @After
+    public void stop() {
+        reconciler.stop();
+        runner.close();
+    }
+
+    @Test
+    public void appChangesOnRunnersAreAppliedToTheProxyMapWithoutClientCalls() throws Exception {
+        reconciler.start();
+
+        runner.addApp("app1");
+        waitFor(() -> cluster.runner("runner").get().numberOfApps() == 1);
+        assertThat(proxyMap.get("app1"), is(runner.url().resolve("/app1")));
+
+        runner.removeApp("app1");
+        waitFor(() -> proxyMap.get("app1") == null);
+    }
+
+    @Test
+    public void unchangedRunnersAreAnsweredWithNotModifiedAndPolledLessOften() throws Exception {
+        runner.addApp("app1");
+        reconciler.start();
+        Thread.sleep(1000);
+        int requests = runner.appsRequests();
+        assertThat(runner.notModifiedResponses(), greaterThan(0));
+        assertThat(runner.notModifiedResponses(), is(requests - 2)); // one from adding the runner, one for the first poll
+        assertThat("backs off from 50ms towards 200ms", requests, lessThan(12));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.getAsBoolean(); i++) {
+            Thread.sleep(20);
+        }
+        assertThat(condition.getAsBoolean(), is(true));
+    }
+}
@@ -0,0 +1,93 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ClusterQueryingMapManagerTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, HttpClient.newHttpClient());
+    private final StubRunner fast = StubRunner.start("fast");
+    private final StubRunner slow = StubRunner.start("slow");
+
+    @After
+    public void stop() {
+        fast.close();
+        slow.close();
+    }
+
+    @Test
+    public void appsFromAllRunnersAreAddedToTheProxyMap() throws Exception {
+        fast.addApp("app1");
+        slow.addApp("app2");
+        List<Runner> runners = asList(fast.toRunner(10), slow.toRunner(10));
+
+        MapManager.Result result = mapManager.loadAllAppsAsync(null, runners, Duration.ofSeconds(10)).get(10, TimeUnit.SECONDS);
+
+        assertThat(result.errors, is(empty()));
+        assertThat(result.appsJsonFromEachRunner, hasSize(2));
+        assertThat(result.appsJsonFromEachRunner.get(0).getString("appRunnerInstanceId"), is("fast"));
+        assertThat(proxyMap.get("app1"), is(fast.url().resolve("/app1")));
+        assertThat(proxyMap.get("app2"), is(slow.url().resolve("/app2")));
+    }
+
+    @Test
+    public void runnersThatMissTheDeadlineAreReportedAsErrorsWithoutHoldingUpTheOthers() throws Exception {
+        fast.addApp("app1");
+        slow.addApp("app2");
+        slow.setDelay(5000);
+        List<Runner> runners = asList(slow.toRunner(10), fast.toRunner(10));
+
+        long start = System.currentTimeMillis();
+        MapManager.Result result = mapManager.loadAllAppsAsync(null, runners, Duration.ofMillis(300)).get(10, TimeUnit.SECONDS);
+
+        assertThat(System.currentTimeMillis() - start, lessThan(4000L));
+        assertThat(result.appsJsonFromEachRunner, hasSize(1));
+        assertThat(result.appsJsonFromEachRunner.get(0).getString("appRunnerInstanceId"), is("fast"));
+        assertThat(result.errors, contains("slow: Timed out after 300ms"));
+        assertThat(proxyMap.get("app1"), is(notNullValue()));
+    }
+
+    @Test
+    public void appsThatAreNoLongerOnARunnerAreRemovedFromTheProxyMap() throws Exception {
+        fast.addApp("app1");
+        fast.addApp("app2");
+        Runner runner = fast.toRunner(10);
+        mapManager.loadRunner(null, runner);
+        assertThat(proxyMap.getAll().keySet(), containsInAnyOrder("app1", "app2"));
+
+        fast.removeApp("app1");
+        mapManager.loadRunnerAsync(null, runner).get(10, TimeUnit.SECONDS);
+        assertThat(proxyMap.getAll().keySet(), contains("app2"));
+    }
+
+    @Test
+    public void theNamesOnlyPathUpdatesTheProxyMapWithoutReturningAppJson() throws Exception {
+        fast.addApp("app1");
+        slow.addApp("app2");
+        List<Runner> runners = asList(fast.toRunner(10), slow.toRunner(10));
+
+        MapManager.Result result = mapManager.loadAllAppNamesAsync(null, runners, Duration.ofSeconds(10)).get(10, TimeUnit.SECONDS);
+
+        assertThat(result.errors, is(empty()));
+        assertThat(result.appsJsonFromEachRunner, is(empty()));
+        assertThat(proxyMap.get("app1"), is(fast.url().resolve("/app1")));
+        assertThat(proxyMap.get("app2"), is(slow.url().resolve("/app2")));
+
+        slow.removeApp("app2");
+        assertThat(mapManager.loadRunnerAppNames(null, runners.get(1)), is(empty()));
+        assertThat(proxyMap.getAll().keySet(), contains("app1"));
+    }
+}
@@ -2,6 +2,9 @@ package com.danielflower.apprunner.router.lib.mgmt;
 
 import com.danielflower.apprunner.router.lib.web.ProxyMap;
 import io.muserver.MuRequest;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.jmock.Expectations;
 import org.jmock.integration.junit4.JUnitRuleMockery;
 import org.junit.Before;
@@ -11,9 +14,9 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
-import java.util.Collection;
-import java.util.Optional;
-import java.util.UUID;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Collections.emptyList;
@@ -42,7 +45,7 @@ public class ClusterTest {
     @Before
     public void allowStuff() throws Exception {
         context.checking(new Expectations() {{
-            allowing(mapManager).loadRunner(with(any(MuRequest.class)), with(any(Runner.class)));
+            allowing(mapManager).loadRunnerAppNames(with(any(MuRequest.class)), with(any(Runner.class)));
             allowing(mapManager).removeRunner(with(instanceOne));
             allowing(mapManager).getCurrentMapping();will(returnValue(new ConcurrentHashMap<String, URI>()));
         }});
@@ -73,7 +76,7 @@ public class ClusterTest {
         ProxyMap proxyMap = new ProxyMap();
 
         // no runners, so no allocation
-        assertThat(cluster.allocateRunner(proxyMap.getAll(), excludeNone), equalTo(Optional.empty()));
+        assertThat(cluster.allocateRunner(excludeNone), equalTo(Optional.empty()));
 
         // Add two runners to the cluster
         cluster.addRunner(clientRequest, instanceOne);
@@ -81,12 +84,13 @@ public class ClusterTest {
 
         // Add an app to runner 1
         proxyMap.add("blah", instanceOne.url.resolve("/blah/"));
+        cluster.refreshRunnerCountCache(proxyMap.getAll());
 
         // If we exclude runner 2, then it won't be picked even though it has greater capacity
-        assertThat(cluster.allocateRunner(proxyMap.getAll(), singletonList(instanceTwo.id)).get(), is(instanceOne));
+        assertThat(cluster.allocateRunner(singletonList(instanceTwo.id)).get(), is(instanceOne));
 
         // When allocating without exclusion, runner 2 should be allocated
-        assertThat(cluster.allocateRunner(proxyMap.getAll(), excludeNone).get(), is(instanceTwo));
+        assertThat(cluster.allocateRunner(excludeNone).get(), is(instanceTwo));
     }
 
     @Test
@@ -96,10 +100,70 @@ public class ClusterTest {
         cluster.addRunner(clientRequest, new Runner("one", URI.create("http://localhost:8081"), 1));
         cluster.addRunner(clientRequest, new Runner("two", URI.create("http://localhost:8082"), 2));
 
-        proxyMap.add("blah", cluster.allocateRunner(proxyMap.getAll(), excludeNone).get().url.resolve("/blah"));
-        proxyMap.add("blah2", cluster.allocateRunner(proxyMap.getAll(), excludeNone).get().url.resolve("/blah2"));
-        proxyMap.add("blah3", cluster.allocateRunner(proxyMap.getAll(), excludeNone).get().url.resolve("/blah3"));
-        assertThat(cluster.allocateRunner(proxyMap.getAll(), excludeNone), equalTo(Optional.empty()));
+        proxyMap.add("blah", cluster.allocateRunner(excludeNone).get().url.resolve("/blah"));
+        proxyMap.add("blah2", cluster.allocateRunner(excludeNone).get().url.resolve("/blah2"));
+        proxyMap.add("blah3", cluster.allocateRunner(excludeNone).get().url.resolve("/blah3"));
+        assertThat(cluster.allocateRunner(excludeNone), equalTo(Optional.empty()));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void labelsAndAntiAffinityConstrainPlacement() throws Exception {
+        Runner fastEu = new Runner("fast-eu", URI.create("http://localhost:8091"), 10, 1.0, Map.of("zone", "eu", "hardware", "fast"));
+        Runner slowEu = new Runner("slow-eu", URI.create("http://localhost:8092"), 10, 1.0, Map.of("zone", "eu", "hardware", "slow"));
+        Runner fastUs = new Runner("fast-us", URI.create("http://localhost:8093"), 10, 1.0, Map.of("zone", "us", "hardware", "fast"));
+        FileUtils.writeStringToFile(configFile, new JSONObject().put("runners", new JSONArray()
+            .put(fastEu.toJSON()).put(slowEu.toJSON()).put(fastUs.toJSON())).toString(), StandardCharsets.UTF_8);
+        ProxyMap proxyMap = new ProxyMap();
+        Cluster labelled = Cluster.load(configFile, new ClusterQueryingMapManager(proxyMap, HttpClient.newHttpClient()));
+        assertThat(labelled.runner("fast-eu").get().labels, equalTo(Map.of("zone", "eu", "hardware", "fast")));
+
+        proxyMap.add("busy", fastEu.url.resolve("/busy"));
+        labelled.refreshRunnerCountCache(proxyMap.getAll());
+
+        PlacementRequest fastInEu = new PlacementRequest("app", emptyList(), Map.of("zone", "eu", "hardware", "fast"), Map.of(), Set.of());
+        assertThat(labelled.eligibleRunners(fastInEu), contains(fastEu));
+
+        PlacementRequest preferFastInEu = new PlacementRequest("app", emptyList(), Map.of("zone", "eu"), Map.of("hardware", "fast"), Set.of());
+        Runner chosen = labelled.allocateRunner(preferFastInEu, Integer.MAX_VALUE).get();
+        assertThat("preferred labels beat having fewer apps", chosen, is(fastEu));
+        chosen.releaseReservation();
+
+        PlacementRequest awayFromBusy = new PlacementRequest("app", emptyList(), Map.of(), Map.of("hardware", "fast"), Set.of("busy"));
+        assertThat(labelled.eligibleRunners(awayFromBusy), contains(slowEu, fastUs));
+        assertThat(labelled.allocateRunner(awayFromBusy, Integer.MAX_VALUE).get(), is(fastUs));
+
+        assertThat(labelled.hasCapacity(new PlacementRequest("app", emptyList(), Map.of("zone", "asia"), Map.of(), Set.of())), is(false));
+    }
+
+    @Test
+    public void replacedRunnersKeepTheirStateAndAreReindexed() throws Exception {
+        cluster.addRunner(clientRequest, instanceOne);
+        cluster.setDraining(instanceOne, true);
+        Runner labelled = new Runner("one", URI.create("http://localhost:8080"), 5, 1.0, Map.of("zone", "eu"));
+        cluster.replaceRunner(instanceOne, labelled);
+        assertThat(cluster.getRunners().size(), is(1));
+        assertThat(cluster.runner("one").get().maxApps, is(5));
+        assertThat(cluster.runner("one").get().isDraining(), is(true));
+
+        cluster.setDraining(labelled, false);
+        PlacementRequest inEu = new PlacementRequest("app", emptyList(), Map.of("zone", "eu"), Map.of(), Set.of());
+        assertThat(cluster.eligibleRunners(inEu), contains(labelled));
+        assertThat(Cluster.load(configFile, mapManager).runner("one").get().labels, equalTo(Map.of("zone", "eu")));
+    }
+
+    @Test
+    public void replacedRunnersKeepTheReservationsOfCreationsInProgress() throws Exception {
+        cluster.addRunner(clientRequest, instanceOne);
+        assertThat(instanceOne.tryReserve(), is(true));
+        assertThat(instanceOne.tryReserve(), is(true));
+        Runner replacement = new Runner("one", URI.create("http://localhost:8080"), 3);
+        cluster.replaceRunner(instanceOne, replacement);
+        assertThat(replacement.reservedApps(), is(2));
+        assertThat(replacement.tryReserve(), is(true));
+        assertThat(replacement.hasCapacity(), is(false));
+
+        instanceOne.releaseReservation();
+        assertThat("releasing on the replaced runner frees the place", replacement.reservedApps(), is(2));
+        assertThat(replacement.hasCapacity(), is(true));
+    }
+}
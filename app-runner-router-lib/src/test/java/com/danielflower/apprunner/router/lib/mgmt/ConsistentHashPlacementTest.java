@@ -0,0 +1,103 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ConsistentHashPlacementTest {
+
+    private final ConsistentHashPlacement placement = new ConsistentHashPlacement(ConsistentHashPlacement.DEFAULT_BALANCE_FACTOR);
+
+    @Test
+    public void theSameRunnerIsPickedRegardlessOfOrderOrRouter() {
+        List<Runner> runners = runners(5, 1.0);
+        List<Runner> reversed = new ArrayList<>(runners);
+        Collections.reverse(reversed);
+        ConsistentHashPlacement another = new ConsistentHashPlacement(ConsistentHashPlacement.DEFAULT_BALANCE_FACTOR);
+        for (int i = 0; i < 50; i++) {
+            PlacementRequest request = PlacementRequest.ANYWHERE.forApp("app-" + i);
+            assertThat(another.rank(request, reversed).get(0), is(placement.rank(request, runners).get(0)));
+        }
+    }
+
+    @Test
+    public void changingMembershipOnlyMovesTheAppsOfThatRunner() {
+        List<Runner> runners = runners(10, 1.0);
+        Map<String, String> before = firstChoices(runners, 1000);
+
+        List<Runner> withoutOne = new ArrayList<>(runners);
+        Runner removed = withoutOne.remove(3);
+        Map<String, String> afterRemoval = firstChoices(withoutOne, 1000);
+        for (String app : before.keySet()) {
+            if (!before.get(app).equals(removed.id)) {
+                assertThat(app, afterRemoval.get(app), is(before.get(app)));
+            }
+        }
+
+        List<Runner> withExtra = new ArrayList<>(runners);
+        withExtra.add(new Runner("runner-new", URI.create("http://localhost:9999"), 1000));
+        Map<String, String> afterAdding = firstChoices(withExtra, 1000);
+        int moved = 0;
+        for (String app : before.keySet()) {
+            if (!afterAdding.get(app).equals(before.get(app))) {
+                assertThat(afterAdding.get(app), is("runner-new"));
+                moved++;
+            }
+        }
+        assertThat("about a 11th of the apps move", moved, is(both(greaterThan(50)).and(lessThan(130))));
+    }
+
+    @Test
+    public void runnersWithMoreThanTheirShareAreTriedLast() {
+        List<Runner> runners = runners(4, 1.0);
+        PlacementRequest request = PlacementRequest.ANYWHERE.forApp("some-app");
+        Runner favourite = placement.rank(request, runners).get(0);
+        for (int i = 0; i < 3; i++) {
+            favourite.tryReserve();
+        }
+        List<Runner> ranked = placement.rank(request, runners);
+        assertThat(ranked.get(0), is(not(favourite)));
+        assertThat(ranked.get(3), is(favourite));
+    }
+
+    @Test
+    public void heavierRunnersGetProportionallyMoreApps() {
+        List<Runner> runners = new ArrayList<>(runners(2, 1.0));
+        runners.add(new Runner("heavy", URI.create("http://localhost:9000"), 1000, 2.0));
+        Map<String, Integer> counts = new HashMap<>();
+        for (String runner : firstChoices(runners, 4000).values()) {
+            counts.merge(runner, 1, Integer::sum);
+        }
+        assertThat(counts.get("heavy"), is(both(greaterThan(1800)).and(lessThan(2200))));
+    }
+
+    @Test
+    public void appsWithoutNamesGoToTheRunnerWithFewestApps() {
+        List<Runner> runners = runners(3, 1.0);
+        runners.get(0).tryReserve();
+        runners.get(2).tryReserve();
+        assertThat(placement.rank(PlacementRequest.ANYWHERE, runners).get(0), is(runners.get(1)));
+    }
+
+    private Map<String, String> firstChoices(List<Runner> runners, int apps) {
+        Map<String, String> choices = new HashMap<>();
+        for (int i = 0; i < apps; i++) {
+            String app = "app-" + i;
+            choices.put(app, placement.rank(PlacementRequest.ANYWHERE.forApp(app), runners).get(0).id);
+        }
+        return choices;
+    }
+
+    private static List<Runner> runners(int count, double weight) {
+        List<Runner> runners = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            runners.add(new Runner("runner-" + i, URI.create("http://localhost:" + (8000 + i)), 1000, weight));
+        }
+        return runners;
+    }
+}
@@ -0,0 +1,119 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import static java.util.Collections.emptyList;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static scaffolding.Photocopier.projectRoot;
+
+public class CreationAdmissionTest {
+
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(new ProxyMap(), HttpClient.newHttpClient());
+    private final StubRunner one = StubRunner.start("one");
+    private final StubRunner two = StubRunner.start("two");
+    private final Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+
+    public CreationAdmissionTest() throws Exception {
+        cluster.addRunner(null, one.toRunner(10));
+        cluster.addRunner(null, two.toRunner(10));
+    }
+
+    @After
+    public void stop() {
+        one.close();
+        two.close();
+    }
+
+    @Test
+    public void creationsBeyondTheLimitsWaitTheirTurnInOrder() throws Exception {
+        CreationAdmission admission = new CreationAdmission(cluster, 1, 10, 10);
+        Runner first = admission.allocate(emptyList()).get().get();
+        Runner second = admission.allocate(emptyList()).get().get();
+        assertThat("in-progress creations spread across runners", first.equals(second), is(false));
+
+        CompletableFuture<Optional<Runner>> third = admission.allocate(emptyList());
+        CompletableFuture<Optional<Runner>> fourth = admission.allocate(emptyList());
+        assertThat(third.isDone(), is(false));
+        assertThat(admission.queued(), is(2));
+
+        admission.release(second);
+        assertThat(third.get().get(), is(second));
+        assertThat(fourth.isDone(), is(false));
+        admission.release(first);
+        assertThat(fourth.get().get(), is(first));
+        assertThat(admission.inProgress(), is(2));
+    }
+
+    @Test
+    public void theClusterLimitAppliesAcrossRunners() throws Exception {
+        CreationAdmission admission = new CreationAdmission(cluster, 5, 1, 10);
+        Runner first = admission.allocate(emptyList()).get().get();
+        CompletableFuture<Optional<Runner>> second = admission.allocate(emptyList());
+        assertThat(second.isDone(), is(false));
+        admission.release(first);
+        assertThat(second.get().isPresent(), is(true));
+    }
+
+    @Test
+    public void reservedRunnersStillWaitForThePerRunnerLimit() throws Exception {
+        CreationAdmission admission = new CreationAdmission(cluster, 1, 10, 10);
+        Runner first = admission.allocate(emptyList()).get().get();
+        Runner reserved = cluster.allocateRunner(PlacementRequest.excluding(List.of(first.id)), Integer.MAX_VALUE).get();
+        Runner planned = cluster.allocateRunner(PlacementRequest.excluding(List.of(first.id)), Integer.MAX_VALUE).get();
+        assertThat(admission.allocateReserved(reserved).get().get(), is(reserved));
+        assertThat(admission.inProgressOn(reserved.id), is(1));
+
+        CompletableFuture<Optional<Runner>> waiting = admission.allocateReserved(planned);
+        assertThat("a reservation does not get around the per-runner limit", waiting.isDone(), is(false));
+        admission.release(first);
+        assertThat(waiting.isDone(), is(false));
+        admission.release(reserved);
+        assertThat(waiting.get().get(), is(planned));
+        admission.release(planned);
+        assertThat(planned.reservedApps(), is(0));
+        assertThat(admission.inProgress(), is(0));
+        assertThat(admission.inProgressOn(planned.id), is(0));
+    }
+
+    @Test
+    public void reservedRunnersWaitForTheClusterLimit() throws Exception {
+        CreationAdmission admission = new CreationAdmission(cluster, 5, 1, 10);
+        Runner first = admission.allocate(emptyList()).get().get();
+        Runner planned = cluster.allocateRunner(PlacementRequest.excluding(List.of(first.id)), Integer.MAX_VALUE).get();
+        CompletableFuture<Optional<Runner>> waiting = admission.allocateReserved(planned);
+        assertThat(waiting.isDone(), is(false));
+        admission.release(first);
+        assertThat(waiting.get().get(), is(planned));
+        admission.release(planned);
+    }
+
+    @Test
+    public void creationsWithNoRunnerToGoToAreNotQueued() throws Exception {
+        CreationAdmission admission = new CreationAdmission(cluster, 1, 10, 1);
+        assertThat(admission.allocate(List.of("one", "two")).get().isPresent(), is(false));
+
+        admission.allocate(emptyList()).get();
+        admission.allocate(emptyList()).get();
+        admission.allocate(emptyList());
+        try {
+            admission.allocate(emptyList()).get();
+            throw new AssertionError("Should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+public class ResourceAwarePlacementTest {
+
+    private final Runner small = new Runner("small", URI.create("http://localhost:8001"), 100);
+    private final Runner big = new Runner("big", URI.create("http://localhost:8002"), 100);
+    private final Runner weighted = new Runner("weighted", URI.create("http://localhost:8003"), 100, 3.0);
+    private final AtomicReference<RunnerSystemCache.Snapshot> snapshot = new AtomicReference<>();
+    private final ResourceAwarePlacement placement = new ResourceAwarePlacement(snapshot::get);
+
+    @Test
+    public void runnersWithMoreCpusGetProportionallyMoreApps() {
+        snapshot.set(snapshotOf(system(small, 2), system(big, 6)));
+        List<Runner> runners = List.of(small, big);
+        for (int i = 0; i < 8; i++) {
+            Runner chosen = placement.rank(PlacementRequest.ANYWHERE, runners).get(0);
+            assertThat(chosen.tryReserve(), is(true));
+        }
+        assertThat(small.reservedApps(), is(2));
+        assertThat(big.reservedApps(), is(6));
+    }
+
+    @Test
+    public void weightsMultiplyTheCapacityOfARunner() {
+        snapshot.set(snapshotOf(system(small, 2), system(weighted, 2)));
+        for (int i = 0; i < 4; i++) {
+            placement.rank(PlacementRequest.ANYWHERE, List.of(small, weighted)).get(0).tryReserve();
+        }
+        assertThat(small.reservedApps(), is(1));
+        assertThat(weighted.reservedApps(), is(3));
+    }
+
+    @Test
+    public void busyHostsAreAvoided() {
+        snapshot.set(snapshotOf(system(small, 4), system(big, 4)));
+        big.renewLease(Duration.ofSeconds(30), null, new JSONObject().put("cpu", 0.9));
+        assertThat(placement.rank(PlacementRequest.ANYWHERE, List.of(big, small)), contains(small, big));
+
+        small.renewLease(Duration.ofSeconds(30), null, new JSONObject().put("memory", 0.2).put("loadAverage", 3.8));
+        big.renewLease(Duration.ofSeconds(30), null, new JSONObject().put("cpu", 0.1));
+        assertThat(placement.rank(PlacementRequest.ANYWHERE, List.of(small, big)), contains(big, small));
+    }
+
+    @Test
+    public void runnersWithUnknownCpuCountsAreTreatedAsAverage() {
+        Runner unknown = new Runner("unknown", URI.create("http://localhost:8004"), 100);
+        snapshot.set(snapshotOf(system(small, 2), system(big, 6)));
+        for (int i = 0; i < 3; i++) {
+            small.tryReserve();
+            big.tryReserve();
+        }
+        assertThat("assumed to have the average of 4 cpus", placement.rank(PlacementRequest.ANYWHERE, List.of(small, big, unknown)).get(0), is(unknown));
+
+        snapshot.set(null);
+        assertThat("with no system info at all it is by app count", placement.rank(PlacementRequest.ANYWHERE, List.of(small, big, unknown)).get(0), is(unknown));
+    }
+
+    private static RunnerSystemCache.RunnerSystem system(Runner runner, int numCpus) {
+        JSONObject system = new JSONObject()
+            .put("appRunnerStarted", true)
+            .put("samples", new JSONArray())
+            .put("os", new JSONObject().put("numCpus", numCpus));
+        long now = System.currentTimeMillis();
+        return new RunnerSystemCache.RunnerSystem(runner, system, null, now, now);
+    }
+
+    private static RunnerSystemCache.Snapshot snapshotOf(RunnerSystemCache.RunnerSystem... systems) {
+        return new RunnerSystemCache.Snapshot(new ArrayList<>(List.of(systems)));
+    }
+}
@@ -0,0 +1,84 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.InFlightRequests;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
+import static scaffolding.Photocopier.projectRoot;
+
+public class RunnerDrainerTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final StubRunner one = StubRunner.start("one");
+    private final StubRunner two = StubRunner.start("two");
+    private final File config = new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json");
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+    private final Cluster cluster = Cluster.load(config, mapManager);
+    private final AppCutovers cutovers = new AppCutovers(proxyMap, httpClient, new InFlightRequests(), Duration.ofSeconds(10),
+        Duration.ZERO, 0.1, 20, Duration.ofMillis(20), null);
+    private final AppMigrator migrator = new AppMigrator(cluster, proxyMap, httpClient, cutovers, Duration.ofSeconds(10), Duration.ofMillis(20), null);
+    private final RunnerDrainer drainer = new RunnerDrainer(cluster, proxyMap, migrator);
+
+    public RunnerDrainerTest() throws Exception {
+        for (int i = 0; i < 5; i++) {
+            one.addApp("app" + i);
+        }
+        cluster.addRunner(null, one.toRunner(10));
+        cluster.addRunner(null, two.toRunner(10));
+    }
+
+    @After
+    public void stop() {
+        one.close();
+        two.close();
+    }
+
+    @Test
+    public void drainingRunnersGetNoNewAppsButKeepTheirRoutes() throws Exception {
+        Runner runner = cluster.runner("one").get();
+        drainer.start(runner, false, 1);
+
+        assertThat(cluster.allocateRunner(PlacementRequest.ANYWHERE, Integer.MAX_VALUE).get().id, is("two"));
+        assertThat(runner.tryReserve(), is(false));
+        assertThat(proxyMap.get("app0"), is(one.url().resolve("/app0")));
+        assertThat("draining is saved", Cluster.load(config, mapManager).runner("one").get().isDraining(), is(true));
+
+        drainer.stop(runner);
+        assertThat(runner.tryReserve(), is(true));
+        runner.releaseReservation();
+    }
+
+    @Test
+    public void appsCanBeMovedOffADrainingRunner() throws Exception {
+        Runner runner = cluster.runner("one").get();
+        RunnerDrainer.Drain drain = drainer.start(runner, true, 2);
+
+        long giveUpAt = System.currentTimeMillis() + 10000;
+        while (!drain.toJSON().getBoolean("complete")) {
+            if (System.currentTimeMillis() > giveUpAt) {
+                fail("Drain did not complete: " + drain.toJSON());
+            }
+            Thread.sleep(20);
+        }
+        JSONObject progress = drain.toJSON();
+        assertThat(progress.getInt("appsMoved"), is(5));
+        assertThat(progress.getJSONObject("failures").length(), is(0));
+        for (int i = 0; i < 5; i++) {
+            assertThat(proxyMap.get("app" + i), is(two.url().resolve("/app" + i)));
+            assertThat(one.hasApp("app" + i), is(false));
+        }
+        assertThat(cluster.runner("two").get().reservedApps(), is(0));
+    }
+}
@@ -0,0 +1,66 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.UUID;
+
+import static java.util.Collections.emptyList;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static scaffolding.Photocopier.projectRoot;
+
+public class RunnerLeaseMonitorTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, HttpClient.newHttpClient());
+    private final StubRunner stub = StubRunner.start("leased");
+    private final Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+    private final RunnerLeaseMonitor monitor = new RunnerLeaseMonitor(cluster, mapManager);
+
+    public RunnerLeaseMonitorTest() throws Exception {
+        stub.addApp("app1");
+    }
+
+    @After
+    public void stop() {
+        stub.close();
+    }
+
+    @Test
+    public void runnersWithExpiredLeasesAreNotRoutedToOrPlacedOn() throws Exception {
+        Runner runner = stub.toRunner(10);
+        cluster.addRunner(null, runner);
+        assertThat(runner.renewLease(Duration.ofMillis(100), "digest1", new JSONObject().put("cpu", 0.5)), is(true));
+        assertThat(runner.toJSON().getJSONObject("lease").getBoolean("available"), is(true));
+        assertThat(proxyMap.get("app1"), is(notNullValue()));
+
+        Thread.sleep(150);
+        monitor.expireLeases();
+        assertThat(proxyMap.get("app1"), is(nullValue()));
+        assertThat(cluster.getAvailableRunners(), is(empty()));
+        assertThat(cluster.allocateRunner(emptyList()).isPresent(), is(false));
+
+        assertThat("apps need reloading after an expiry", runner.renewLease(Duration.ofSeconds(30), "digest1", null), is(true));
+        assertThat(cluster.getAvailableRunners(), contains(runner));
+        assertThat("same digest", runner.renewLease(Duration.ofSeconds(30), "digest1", null), is(false));
+        assertThat("new digest", runner.renewLease(Duration.ofSeconds(30), "digest2", null), is(true));
+    }
+
+    @Test
+    public void runnersWithoutLeasesNeverExpire() throws Exception {
+        Runner runner = stub.toRunner(10);
+        cluster.addRunner(null, runner);
+        monitor.expireLeases();
+        assertThat(cluster.getAvailableRunners(), contains(runner));
+        assertThat(proxyMap.get("app1"), is(notNullValue()));
+        assertThat(runner.toJSON().has("lease"), is(false));
+    }
+}
@@ -0,0 +1,85 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static scaffolding.Photocopier.projectRoot;
+
+public class RunnerSystemCacheTest {
+
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(new ProxyMap(), HttpClient.newHttpClient());
+    private final StubRunner fast = StubRunner.start("fast");
+    private final StubRunner slow = StubRunner.start("slow");
+    private final Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+    private final RunnerSystemCache cache = new RunnerSystemCache(cluster, mapManager, Duration.ofMinutes(1), Duration.ofMillis(300));
+
+    public RunnerSystemCacheTest() throws Exception {
+        fast.addPublicKey("key1");
+        fast.addSample("maven", new byte[]{1});
+        slow.addPublicKey("key1");
+        slow.addPublicKey("key2");
+        slow.addSample("maven", new byte[]{2});
+        slow.addSample("nodejs", new byte[]{3});
+        cluster.addRunner(null, fast.toRunner(10));
+        cluster.addRunner(null, slow.toRunner(10));
+    }
+
+    @After
+    public void stop() {
+        cache.stop();
+        fast.close();
+        slow.close();
+    }
+
+    @Test
+    public void systemInfoIsAggregatedAcrossRunners() throws Exception {
+        RunnerSystemCache.Snapshot snapshot = cache.get().get(10, TimeUnit.SECONDS);
+        assertThat(snapshot.allStarted, is(true));
+        assertThat(snapshot.publicKeys.toList(), contains("key1", "key2"));
+        assertThat(snapshot.samples, hasSize(2));
+        assertThat(snapshot.runner("fast").lastSuccessAt, is(notNullValue()));
+        assertThat(snapshot.runner("fast").toJSON().has("systemRefreshedAt"), is(true));
+    }
+
+    @Test
+    public void cachedValuesAreReturnedWithoutCallingTheRunnersAgain() throws Exception {
+        RunnerSystemCache.Snapshot first = cache.get().get(10, TimeUnit.SECONDS);
+        RunnerSystemCache.Snapshot second = cache.get().get(10, TimeUnit.SECONDS);
+        assertThat(second, sameInstance(first));
+        assertThat(fast.systemRequests(), is(1));
+    }
+
+    @Test
+    public void aSlowRunnerIsReportedAsAnErrorOnceTheDeadlinePasses() throws Exception {
+        slow.setDelay(5000);
+        long start = System.currentTimeMillis();
+        RunnerSystemCache.Snapshot snapshot = cache.get().get(10, TimeUnit.SECONDS);
+        assertThat(System.currentTimeMillis() - start, lessThan(4000L));
+        assertThat(snapshot.allStarted, is(false));
+        assertThat(snapshot.runner("slow").error, is("ERROR: Timed out after 300ms"));
+        assertThat(snapshot.runner("fast").error, is(nullValue()));
+        assertThat(snapshot.publicKeys.toList(), contains("key1"));
+    }
+
+    @Test
+    public void addingARunnerCausesTheNextCallToRefresh() throws Exception {
+        cache.get().get(10, TimeUnit.SECONDS);
+        try (StubRunner another = StubRunner.start("another")) {
+            cluster.addRunner(null, another.toRunner(10));
+            RunnerSystemCache.Snapshot snapshot = cache.get().get(10, TimeUnit.SECONDS);
+            assertThat(snapshot.runners, hasSize(3));
+            assertThat(another.systemRequests(), is(1));
+        }
+    }
+}
@@ -6,7 +6,14 @@ import org.skyscreamer.jsonassert.JSONAssert;
 import org.skyscreamer.jsonassert.JSONCompareMode;
 
 import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 
@@ -25,6 +32,71 @@ public class RunnerTest {
 
     @Test
     public void runnersCanBeRoundTripped() {
-        assertThat(Runner.fromJSON(runner.toJSON()), equalTo(runner));
+        assertThat(Runner.fromJSON(runner.toConfigJSON()), equalTo(runner));
+    }
+
+    @Test
+    public void heartbeatRunnersAreRestoredAsExpiredAndTheirLeaseIsNotSaved() {
+        Runner beating = new Runner("beating", URI.create("http://localhost:8233"), 3);
+        beating.renewLease(Duration.ofSeconds(30), "abc", new JSONObject().put("cpu", 0.5));
+        JSONObject config = beating.toConfigJSON();
+        assertThat(config.has("lease"), is(false));
+        assertThat(config.has("appCount"), is(false));
+        assertThat(config.has("reservedApps"), is(false));
+
+        Runner restored = Runner.fromJSON(config);
+        assertThat(restored.isHeartbeatManaged(), is(true));
+        assertThat(restored.isAvailable(), is(false));
+        assertThat(restored.renewLease(Duration.ofSeconds(30), "abc", null), is(true));
+        assertThat(restored.isAvailable(), is(true));
+
+        assertThat(Runner.fromJSON(runner.toConfigJSON()).isAvailable(), is(true));
+    }
+
+    @Test
+    public void labelsCanBeParsedAndRoundTripped() {
+        Map<String, String> labels = Runner.parseLabels(List.of("zone=eu-1, hardware=fast", "jdk=21"));
+        assertThat(labels, equalTo(Map.of("zone", "eu-1", "hardware", "fast", "jdk", "21")));
+        Runner labelled = new Runner("labelled", URI.create("http://localhost:8233"), 3, 2.5, labels);
+        Runner copy = Runner.fromJSON(labelled.toConfigJSON());
+        assertThat(copy.labels, equalTo(labels));
+        assertThat(copy.weight, is(2.5));
+        for (String invalid : List.of("zone", "zone=", "zo ne=eu", "zone=eu/1")) {
+            try {
+                Runner.parseLabels(List.of(invalid));
+                throw new AssertionError("Should not have parsed " + invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void concurrentReservationsNeverExceedCapacity() throws Exception {
+        Runner big = new Runner("big", URI.create("http://localhost:8233"), 50);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        AtomicInteger reserved = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                if (big.tryReserve()) {
+                    reserved.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertThat(reserved.get(), is(50));
+        assertThat(big.hasCapacity(), is(false));
+
+        big.releaseReservation();
+        assertThat(big.numberOfAppsIncludingReserved(), is(49));
+        assertThat(big.tryReserve(), is(true));
     }
 }
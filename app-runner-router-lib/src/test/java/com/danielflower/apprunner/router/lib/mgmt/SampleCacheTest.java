@@ -0,0 +1,85 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+import static scaffolding.Photocopier.projectRoot;
+
+public class SampleCacheTest {
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(new ProxyMap(), httpClient);
+    private final File dir = new File(projectRoot(), "target/clusters/" + UUID.randomUUID());
+    private final StubRunner runner = StubRunner.start("runner");
+    private final Cluster cluster = Cluster.load(new File(dir, "cluster.json"), mapManager);
+    private final RunnerSystemCache systemCache = new RunnerSystemCache(cluster, mapManager, Duration.ofMinutes(1), Duration.ofSeconds(5));
+
+    public SampleCacheTest() throws Exception {
+        runner.addSample("maven", new byte[]{1, 2, 3});
+        cluster.addRunner(null, runner.toRunner(10));
+    }
+
+    @After
+    public void stop() {
+        runner.close();
+    }
+
+    @Test
+    public void samplesAreOnlyDownloadedOncePerRunnerVersion() throws Exception {
+        SampleCache cache = new SampleCache(new File(dir, "samples"), httpClient, Duration.ofMinutes(10));
+
+        SampleCache.CachedSample first = get(cache, "maven");
+        SampleCache.CachedSample second = get(cache, "maven");
+        assertThat(runner.sampleRequests(), is(1));
+        assertThat(second.etag, is(first.etag));
+        assertThat(Files.readAllBytes(first.file), is(new byte[]{1, 2, 3}));
+        assertThat(first.runnerVersion, is("1.0.0"));
+
+        runner.setVersion("1.0.1");
+        runner.addSample("maven", new byte[]{4});
+        systemCache.refresh().get(10, TimeUnit.SECONDS);
+        SampleCache.CachedSample upgraded = get(cache, "maven");
+        assertThat(runner.sampleRequests(), is(2));
+        assertThat(upgraded.etag, not(first.etag));
+        assertThat(Files.readAllBytes(upgraded.file), is(new byte[]{4}));
+        assertThat("the copies for the old version are deleted", Files.exists(first.file.getParent()), is(false));
+        assertThat(Files.exists(upgraded.file), is(true));
+    }
+
+    @Test
+    public void cachedFilesAreRevalidatedInTheBackground() throws Exception {
+        SampleCache cache = new SampleCache(new File(dir, "samples"), httpClient, Duration.ZERO);
+        SampleCache.CachedSample first = get(cache, "maven");
+
+        runner.addSample("maven", new byte[]{5});
+        Thread.sleep(5);
+        assertThat(get(cache, "maven"), sameInstance(first));
+        for (int i = 0; i < 100 && Files.readAllBytes(first.file).length != 1; i++) {
+            Thread.sleep(20);
+        }
+        assertThat(Files.readAllBytes(first.file), is(new byte[]{5}));
+    }
+
+    @Test
+    public void unknownSamplesReturnNull() throws Exception {
+        SampleCache cache = new SampleCache(new File(dir, "samples"), httpClient, Duration.ofMinutes(10));
+        assertThat(get(cache, "cobol"), is(nullValue()));
+        assertThat(runner.sampleRequests(), is(0));
+    }
+
+    private SampleCache.CachedSample get(SampleCache cache, String sampleID) throws Exception {
+        return cache.get(sampleID, systemCache.get().get(10, TimeUnit.SECONDS)).get(10, TimeUnit.SECONDS);
+    }
+}
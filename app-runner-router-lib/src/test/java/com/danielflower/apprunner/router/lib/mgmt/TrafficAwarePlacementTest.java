@@ -0,0 +1,78 @@
+package com.danielflower.apprunner.router.lib.mgmt;
+
+import com.danielflower.apprunner.router.lib.monitoring.AppTraffic;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import org.apache.commons.io.FileUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.closeTo;
+import static scaffolding.Photocopier.projectRoot;
+
+public class TrafficAwarePlacementTest {
+
+    private final Runner one = new Runner("one", URI.create("http://localhost:8001"), 10);
+    private final Runner two = new Runner("two", URI.create("http://localhost:8002"), 10);
+    private final Runner three = new Runner("three", URI.create("http://localhost:8003"), 10);
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final AppTraffic traffic = new AppTraffic(Duration.ofMinutes(10));
+
+    @Test
+    public void withNoTrafficTheBaseRankingIsUsed() {
+        TrafficAwarePlacement placement = new TrafficAwarePlacement(PlacementStrategy.LEAST_APPS, proxyMap, traffic, 1);
+        one.tryReserve();
+        assertThat(placement.rank(PlacementRequest.ANYWHERE, List.of(one, two, three)), contains(two, three, one));
+    }
+
+    @Test
+    public void runnersWithHotAppsAreAvoidedAndBusyRunnersAreRankedLower() {
+        host("hot", one, 200, 1000);
+        host("warm", two, 150, 1000);
+        host("cold", three, 5, 10);
+        three.tryReserve();
+        three.tryReserve();
+        TrafficAwarePlacement placement = new TrafficAwarePlacement(PlacementStrategy.LEAST_APPS, proxyMap, traffic, 1);
+        assertThat("two has fewer apps but serves far more traffic than three", placement.rank(PlacementRequest.ANYWHERE, List.of(one, two, three)), contains(three, two, one));
+    }
+
+    @Test
+    public void thePlannerSuggestsMovesThatEvenOutTheLoad() throws Exception {
+        host("a", one, 100, 100);
+        host("b", one, 90, 100);
+        host("c", one, 60, 100);
+        host("d", two, 50, 100);
+        File config = new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json");
+        FileUtils.writeStringToFile(config, new JSONObject().put("runners", new JSONArray().put(one.toJSON()).put(two.toJSON())).toString(), StandardCharsets.UTF_8);
+        Cluster cluster = Cluster.load(config, null);
+        cluster.refreshRunnerCountCache(proxyMap.getAll());
+
+        RebalancePlanner.Plan plan = new RebalancePlanner(cluster, proxyMap, traffic).plan(10);
+        assertThat(plan.moves.size(), is(1));
+        RebalancePlanner.Move move = plan.moves.get(0);
+        assertThat(move.fromRunnerId, is("one"));
+        assertThat(move.toRunnerId, is("two"));
+        assertThat(move.appName, is("a"));
+
+        JSONArray runners = plan.toJSON().getJSONArray("runners");
+        assertThat(runners.getJSONObject(0).getDouble("loadAfterMoves"), closeTo(runners.getJSONObject(1).getDouble("loadAfterMoves"), 0.01));
+        assertThat(new RebalancePlanner(cluster, proxyMap, traffic).plan(0).moves.size(), is(0));
+    }
+
+    private void host(String app, Runner runner, int requests, long latencyMillis) {
+        proxyMap.add(app, runner.url.resolve("/" + app));
+        for (int i = 0; i < requests; i++) {
+            traffic.record(app, latencyMillis);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.danielflower.apprunner.router.lib.monitoring;
+
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+
+public class AppTrafficTest {
+
+    private final AppTraffic traffic = new AppTraffic(Duration.ofSeconds(10));
+
+    @Test
+    public void steadyTrafficSettlesAtItsRateAndLatency() {
+        long now = 0;
+        for (int i = 0; i < 2000; i++) {
+            now += 100;
+            traffic.record("app", i % 2 == 0 ? 20 : 40, now);
+        }
+        AppTraffic.AppLoad load = traffic.snapshot(now).get("app");
+        assertThat(load.requestsPerSecond, closeTo(10, 0.5));
+        assertThat(load.meanLatencyMillis, closeTo(30, 0.5));
+        assertThat(load.load(), closeTo(0.3, 0.02));
+    }
+
+    @Test
+    public void oldTrafficCountsForLessAndIsEventuallyForgotten() {
+        for (int i = 0; i < 100; i++) {
+            traffic.record("app", 10, 0);
+        }
+        double initial = traffic.snapshot(0).get("app").requestsPerSecond;
+        assertThat(traffic.snapshot(10000).get("app").requestsPerSecond, closeTo(initial / 2, 0.001));
+        assertThat(traffic.snapshot(20000).get("app").requestsPerSecond, closeTo(initial / 4, 0.001));
+
+        Map<String, AppTraffic.AppLoad> muchLater = traffic.snapshot(200000);
+        assertThat(muchLater.containsKey("app"), is(false));
+    }
+}
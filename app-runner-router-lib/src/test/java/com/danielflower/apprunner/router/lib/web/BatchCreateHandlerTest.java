@@ -0,0 +1,118 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.ClusterQueryingMapManager;
+import com.danielflower.apprunner.router.lib.mgmt.CreationAdmission;
+import io.muserver.Method;
+import io.muserver.MuServer;
+import io.muserver.MuServerBuilder;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.notNullValue;
+import static scaffolding.Photocopier.projectRoot;
+
+public class BatchCreateHandlerTest {
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final StubRunner one = StubRunner.start("one");
+    private final StubRunner two = StubRunner.start("two");
+    private final ProxyMap proxyMap = new ProxyMap();
+    private MuServer server;
+
+    @After
+    public void stop() {
+        if (server != null) {
+            server.stop();
+        }
+        one.close();
+        two.close();
+    }
+
+    @Test
+    public void appsArePlannedThenCreatedInParallelWithAResultForEach() throws Exception {
+        one.addApp("existing");
+        one.setDelay(100);
+        two.setDelay(100);
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+        Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+        cluster.addRunner(null, one.toRunner(2));
+        cluster.addRunner(null, two.toRunner(2));
+        CreateAppHandler createAppHandler = new CreateAppHandler(proxyMap, mapManager, cluster, httpClient, null, null, new CreationAdmission(cluster, 2, 10, 10));
+        server = MuServerBuilder.httpServer()
+            .addHandler(Method.POST, "/api/v1/app-batches", new BatchCreateHandler(createAppHandler, proxyMap, cluster, 4))
+            .start();
+
+        JSONArray apps = new JSONArray();
+        for (String name : new String[]{"a", "b", "a", "existing", "c", "d"}) {
+            apps.put(new JSONObject().put("appName", name).put("gitUrl", "https://example.org/" + name + ".git"));
+        }
+        HttpResponse<String> resp = post(new JSONObject().put("apps", apps).toString());
+        assertThat(resp.statusCode(), is(200));
+        JSONArray results = new JSONObject(resp.body()).getJSONArray("results");
+        int[] expected = {201, 201, 409, 409, 201, 503};
+        for (int i = 0; i < expected.length; i++) {
+            assertThat(results.getJSONObject(i).toString(), results.getJSONObject(i).getInt("status"), is(expected[i]));
+        }
+        assertThat(results.getJSONObject(0).getJSONObject("body").getString("name"), is("a"));
+        assertThat(proxyMap.get("c"), is(notNullValue()));
+        assertThat(cluster.runner("one").get().numberOfApps(), is(2));
+        assertThat(cluster.runner("two").get().numberOfApps(), is(2));
+        assertThat("the planned reservations are released", cluster.runner("one").get().reservedApps() + cluster.runner("two").get().reservedApps(), is(0));
+    }
+
+    @Test
+    public void batchesKeepToThePerRunnerCreationLimit() throws Exception {
+        one.setDelay(100);
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+        Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+        cluster.addRunner(null, one.toRunner(10));
+        CreationAdmission admission = new CreationAdmission(cluster, 2, 10, 10);
+        CreateAppHandler createAppHandler = new CreateAppHandler(proxyMap, mapManager, cluster, httpClient, null, null, admission);
+        server = MuServerBuilder.httpServer()
+            .addHandler(Method.POST, "/api/v1/app-batches", new BatchCreateHandler(createAppHandler, proxyMap, cluster, 8))
+            .start();
+
+        JSONArray apps = new JSONArray();
+        for (int i = 0; i < 6; i++) {
+            apps.put(new JSONObject().put("appName", "app" + i).put("gitUrl", "https://example.org/app" + i + ".git"));
+        }
+        HttpResponse<String> resp = post(new JSONObject().put("apps", apps).toString());
+        assertThat(resp.statusCode(), is(200));
+        for (Object result : new JSONObject(resp.body()).getJSONArray("results")) {
+            assertThat(result.toString(), ((JSONObject) result).getInt("status"), is(201));
+        }
+        assertThat(one.maxConcurrentCreations(), is(2));
+        assertThat(admission.inProgressOn("one"), is(0));
+    }
+
+    @Test
+    public void invalidBatchesAreRejected() throws Exception {
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+        Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+        CreateAppHandler createAppHandler = new CreateAppHandler(proxyMap, mapManager, cluster, httpClient, null, null, new CreationAdmission(cluster, 2, 10, 10));
+        server = MuServerBuilder.httpServer()
+            .addHandler(Method.POST, "/api/v1/app-batches", new BatchCreateHandler(createAppHandler, proxyMap, cluster, 4))
+            .start();
+        assertThat(post("not json").statusCode(), is(400));
+        assertThat(post("{\"apps\":[{\"description\":\"no name\"}]}").statusCode(), is(400));
+    }
+
+    private HttpResponse<String> post(String body) throws Exception {
+        return httpClient.send(HttpRequest.newBuilder(server.uri().resolve("/api/v1/app-batches"))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -1,12 +1,56 @@
 package com.danielflower.apprunner.router.lib.web;
 
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.ClusterQueryingMapManager;
+import com.danielflower.apprunner.router.lib.mgmt.CreationAdmission;
+import com.danielflower.apprunner.router.lib.web.v1.AppJobResource;
+import io.muserver.Method;
+import io.muserver.MuServer;
+import io.muserver.MuServerBuilder;
+import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Test;
+import scaffolding.StubRunner;
 
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static io.muserver.ContextHandlerBuilder.context;
+import static io.muserver.rest.RestHandlerBuilder.restHandler;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
+import static scaffolding.Photocopier.projectRoot;
 
 public class CreateAppHandlerTest {
 
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private StubRunner runner;
+    private MuServer server;
+    private CreationJobs creationJobs;
+
+    @After
+    public void stop() {
+        if (creationJobs != null) {
+            creationJobs.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+        if (runner != null) {
+            runner.close();
+        }
+    }
+
     @Test
     public void canGetAppName() {
         String rawBody = "gitUrl=file%3A%2FD%3A%2Fcode%2Fapp-runner-router%2Ftarget%2Fsamples%2F2bfa1222-b0ac-4e38-ab10-6b3d8815b499%2Fmaven%2F&appName=app%201";
@@ -27,4 +71,122 @@ public class CreateAppHandlerTest {
         String name = CreateAppHandler.getNameFromBody(rawBody);
         assertThat(name, equalTo("maven"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void runnersWithRecentlyLoadedAppsAreNotQueriedBeforeCreating() throws Exception {
+        runner = StubRunner.start("runner");
+        runner.addApp("existing");
+        ProxyMap proxyMap = new ProxyMap();
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+        Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+        cluster.addRunner(null, runner.toRunner(10));
+        server = MuServerBuilder.httpServer()
+            .addHandler(Method.POST, "/api/v1/apps", new CreateAppHandler(proxyMap, mapManager, cluster, httpClient, null, null, new CreationAdmission(cluster, 2, 10, 10)))
+            .start();
+        int appsRequests = runner.appsRequests();
+
+        assertThat(create("new-app").statusCode(), is(201));
+        assertThat(proxyMap.get("new-app"), is(runner.url().resolve("/new-app")));
+        assertThat(cluster.runner("runner").get().numberOfApps(), is(2));
+        assertThat(create("existing").statusCode(), is(409));
+        assertThat(runner.appsRequests(), is(appsRequests));
+    }
+
+    @Test
+    public void creationsCanBeRunAsJobs() throws Exception {
+        runner = StubRunner.start("runner");
+        runner.setDelay(200);
+        ProxyMap proxyMap = new ProxyMap();
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+        Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+        cluster.addRunner(null, runner.toRunner(10));
+        creationJobs = new CreationJobs(2, 10, Duration.ofMinutes(1));
+        server = MuServerBuilder.httpServer()
+            .addHandler(Method.POST, "/api/v1/apps", new CreateAppHandler(proxyMap, mapManager, cluster, httpClient, null, creationJobs, new CreationAdmission(cluster, 2, 10, 10)))
+            .addHandler(context("/api/v1").addHandler(restHandler(new AppJobResource(creationJobs))))
+            .start();
+
+        HttpResponse<String> accepted = create("new-app", "respond-async");
+        assertThat(accepted.statusCode(), is(202));
+        assertThat(accepted.headers().firstValue("Preference-Applied").orElse(null), is("respond-async"));
+        String location = accepted.headers().firstValue("Location").orElseThrow();
+        assertThat(new JSONObject(accepted.body()).getString("appName"), is("new-app"));
+
+        JSONObject job = null;
+        for (int i = 0; i < 100; i++) {
+            job = new JSONObject(httpClient.send(HttpRequest.newBuilder(URI.create(location)).build(), HttpResponse.BodyHandlers.ofString()).body());
+            if (job.getString("state").equals("succeeded")) {
+                break;
+            }
+            Thread.sleep(20);
+        }
+        assertThat(job.getString("state"), is("succeeded"));
+        assertThat(job.getJSONObject("result").getInt("status"), is(201));
+        assertThat(job.getJSONArray("attempts").getJSONObject(0).getString("runner"), is("runner"));
+        assertThat(proxyMap.get("new-app"), is(runner.url().resolve("/new-app")));
+
+        assertThat(create("new-app", "respond-async").statusCode(), is(409));
+    }
+
+    @Test
+    public void concurrentCreationsOfTheSameAppOnlyCreateItOnce() throws Exception {
+        runner = StubRunner.start("runner");
+        runner.setDelay(200);
+        ProxyMap proxyMap = new ProxyMap();
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+        Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+        cluster.addRunner(null, runner.toRunner(10));
+        server = MuServerBuilder.httpServer()
+            .addHandler(Method.POST, "/api/v1/apps", new CreateAppHandler(proxyMap, mapManager, cluster, httpClient, null, null, new CreationAdmission(cluster, 2, 10, 10)))
+            .start();
+
+        CompletableFuture<HttpResponse<String>> first = CompletableFuture.supplyAsync(() -> createUnchecked("new-app"));
+        CompletableFuture<HttpResponse<String>> second = CompletableFuture.supplyAsync(() -> createUnchecked("new-app"));
+        List<Integer> statuses = List.of(first.get(10, TimeUnit.SECONDS).statusCode(), second.get(10, TimeUnit.SECONDS).statusCode());
+        assertThat(statuses, containsInAnyOrder(201, 409));
+    }
+
+    @Test
+    public void creationsWithoutANameAreBadRequests() throws Exception {
+        runner = StubRunner.start("runner");
+        ProxyMap proxyMap = new ProxyMap();
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(proxyMap, httpClient);
+        Cluster cluster = Cluster.load(new File(projectRoot(), "target/clusters/" + UUID.randomUUID() + "/cluster.json"), mapManager);
+        cluster.addRunner(null, runner.toRunner(10));
+        server = MuServerBuilder.httpServer()
+            .addHandler(Method.POST, "/api/v1/apps", new CreateAppHandler(proxyMap, mapManager, cluster, httpClient, null, null, new CreationAdmission(cluster, 2, 10, 10)))
+            .start();
+
+        for (String body : List.of("", "description=nothing", "gitUrl=")) {
+            HttpResponse<String> resp = httpClient.send(HttpRequest.newBuilder(server.uri().resolve("/api/v1/apps"))
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build(), HttpResponse.BodyHandlers.ofString());
+            assertThat(body, resp.statusCode(), is(400));
+        }
+        assertThat(proxyMap.getAll().isEmpty(), is(true));
+    }
+
+    private HttpResponse<String> createUnchecked(String appName) {
+        try {
+            return create(appName);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private HttpResponse<String> create(String appName) throws Exception {
+        return create(appName, null);
+    }
+
+    private HttpResponse<String> create(String appName, String prefer) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(server.uri().resolve("/api/v1/apps"));
+        if (prefer != null) {
+            request.header("Prefer", prefer);
+        }
+        return httpClient.send(request
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString("appName=" + appName + "&gitUrl=x"))
+            .build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
@@ -0,0 +1,58 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ProxyMapTest {
+
+    private final ProxyMap proxyMap = new ProxyMap();
+    private final URI one = URI.create("http://localhost:8081/app");
+    private final URI two = URI.create("http://localhost:8082/app");
+
+    @Test
+    public void addsDoNotReplacePinnedMappings() {
+        proxyMap.add("app", one);
+        proxyMap.pin("app", two);
+        proxyMap.add("app", one);
+        assertThat(proxyMap.get("app"), is(two));
+        proxyMap.unpin("app");
+        proxyMap.add("app", one);
+        assertThat(proxyMap.get("app"), is(one));
+    }
+
+    @Test
+    public void addsThatRaceWithAPinNeverWin() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        for (int i = 0; i < 200; i++) {
+            proxyMap.remove("app");
+            proxyMap.add("app", one);
+            AtomicBoolean stop = new AtomicBoolean(false);
+            CountDownLatch started = new CountDownLatch(4);
+            List<Future<?>> adders = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                adders.add(executor.submit(() -> {
+                    started.countDown();
+                    while (!stop.get()) {
+                        proxyMap.add("app", one);
+                    }
+                }));
+            }
+            started.await();
+            proxyMap.pin("app", two);
+            stop.set(true);
+            for (Future<?> adder : adders) {
+                adder.get(10, TimeUnit.SECONDS);
+            }
+            assertThat(proxyMap.get("app"), is(two));
+        }
+        executor.shutdownNow();
+    }
+}
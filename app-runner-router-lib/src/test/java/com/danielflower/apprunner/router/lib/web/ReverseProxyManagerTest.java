@@ -7,15 +7,19 @@ import io.muserver.*;
 import org.jmock.integration.junit4.JUnitRuleMockery;
 import org.junit.Rule;
 import org.junit.Test;
+import scaffolding.StubRunner;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -70,11 +74,72 @@ public class ReverseProxyManagerTest {
         assertThat(info.url, equalTo("http://localhost/my-app/some/thing?blah=ha"));
     }
 
+    @Test
+    public void appWebRequestsFollowTheSplitButApiRequestsDoNot() {
+        proxyMap.add("my-app", URI.create("http://localhost:12345/my-app"));
+        TrafficSplit.Target canary = new TrafficSplit.Target("canary", URI.create("http://localhost:23456/my-app"), 1);
+        proxyMap.setSplit("my-app", new TrafficSplit(List.of(
+            new TrafficSplit.Target("current", URI.create("http://localhost:12345/my-app"), 0), canary)));
+
+        assertThat(reverseProxyManager.mapFrom(request("/my-app/some/thing?blah=ha")), is(URI.create("http://localhost:23456/my-app/some/thing?blah=ha")));
+        assertThat(reverseProxyManager.mapFrom(request("/api/v1/apps/my-app")), is(URI.create("http://localhost:12345/api/v1/apps/my-app")));
+
+        proxyMap.add("my-app", URI.create("http://localhost:34567/my-app"));
+        assertThat("the app is pinned while split", proxyMap.get("my-app"), is(URI.create("http://localhost:12345/my-app")));
+
+        proxyMap.removeSplit("my-app");
+        assertThat(reverseProxyManager.mapFrom(request("/my-app/some/thing")), is(URI.create("http://localhost:12345/my-app/some/thing")));
+        assertThat(proxyMap.isPinned("my-app"), is(false));
+    }
+
+    @Test
+    public void appWebRequestsCanBeMirroredToAShadowWithoutChangingTheTarget() throws Exception {
+        try (StubRunner shadowRunner = StubRunner.start("shadow")) {
+            shadowRunner.addApp("my-app");
+            TrafficShadower shadower = new TrafficShadower(HttpClient.newHttpClient(), 10, Duration.ofSeconds(10));
+            ReverseProxyManager manager = new ReverseProxyManager(cluster, proxyMap, null, null, null, null, shadower);
+            proxyMap.add("my-app", URI.create("http://localhost:12345/my-app"));
+            TrafficShadow shadow = new TrafficShadow("my-app", "shadow", shadowRunner.url().resolve("/my-app"), 1.0, Set.of("GET"));
+            shadower.set(shadow);
+
+            assertThat(manager.mapFrom(request("/my-app/some/thing")), is(URI.create("http://localhost:12345/my-app/some/thing")));
+            long giveUpAt = System.currentTimeMillis() + 10000;
+            while (shadow.latencyPercentile(50) < 0 && System.currentTimeMillis() < giveUpAt) {
+                Thread.sleep(10);
+            }
+            assertThat(shadowRunner.webRequests(), is(1));
+            assertThat(shadow.toJSON().getLong("errors"), is(0L));
+            assertThat(shadow.toJSON().getJSONObject("latencyMillis").has("p99"), is(true));
+        }
+    }
+
+    @Test
+    public void stickySplitsKeepClientsOnTheirTargetUntilItIsEjected() {
+        URI one = URI.create("http://localhost:12345/my-app");
+        URI two = URI.create("http://localhost:23456/my-app");
+        proxyMap.add("my-app", one);
+        TrafficSplit.Target target = new TrafficSplit.Target("two", two, 1);
+        proxyMap.setSplit("my-app", new TrafficSplit(List.of(new TrafficSplit.Target("one", one, 1), target), true));
+
+        for (int i = 0; i < 20; i++) {
+            MuRequest request = request("/my-app/page");
+            request.headers().set("cookie", "theme=dark; " + StickyCookies.NAME + "=" + target.cookieValue);
+            assertThat(reverseProxyManager.mapFrom(request), is(URI.create("http://localhost:23456/my-app/page")));
+        }
+
+        proxyMap.setSplit("my-app", new TrafficSplit(List.of(new TrafficSplit.Target("one", one, 1),
+            new TrafficSplit.Target("two", two, 0)), true));
+        MuRequest request = request("/my-app/page");
+        request.headers().set("cookie", StickyCookies.NAME + "=" + target.cookieValue);
+        assertThat(reverseProxyManager.mapFrom(request), is(URI.create("http://localhost:12345/my-app/page")));
+    }
+
     private MuRequest request(String path) {
         URI url = URI.create("http://localhost" + path);
         return new MuRequest() {
 
             private final Map<String, Object> attrs = new LinkedHashMap<>();
+            private final Headers headers = Headers.http1Headers();
 
             @Override
             public String contentType() {
@@ -103,7 +168,7 @@ public class ReverseProxyManagerTest {
 
             @Override
             public Headers headers() {
-                return null;
+                return headers;
             }
 
             @Override
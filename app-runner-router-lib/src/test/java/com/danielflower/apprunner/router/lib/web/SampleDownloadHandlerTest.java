@@ -0,0 +1,97 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import com.danielflower.apprunner.router.lib.mgmt.Cluster;
+import com.danielflower.apprunner.router.lib.mgmt.ClusterQueryingMapManager;
+import com.danielflower.apprunner.router.lib.mgmt.RunnerSystemCache;
+import com.danielflower.apprunner.router.lib.mgmt.SampleCache;
+import io.muserver.MuServer;
+import io.muserver.MuServerBuilder;
+import org.junit.After;
+import org.junit.Test;
+import scaffolding.StubRunner;
+
+import java.io.File;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.UUID;
+
+import static io.muserver.ContextHandlerBuilder.context;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static scaffolding.Photocopier.projectRoot;
+
+public class SampleDownloadHandlerTest {
+
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+    private final StubRunner runner = StubRunner.start("runner");
+    private MuServer server;
+
+    @After
+    public void stop() {
+        if (server != null) {
+            server.stop();
+        }
+        runner.close();
+    }
+
+    private void startServer() throws Exception {
+        File dir = new File(projectRoot(), "target/clusters/" + UUID.randomUUID());
+        ClusterQueryingMapManager mapManager = new ClusterQueryingMapManager(new ProxyMap(), httpClient);
+        Cluster cluster = Cluster.load(new File(dir, "cluster.json"), mapManager);
+        cluster.addRunner(null, runner.toRunner(10));
+        RunnerSystemCache systemCache = new RunnerSystemCache(cluster, mapManager, Duration.ofMinutes(1), Duration.ofSeconds(5));
+        SampleCache sampleCache = new SampleCache(new File(dir, "samples"), httpClient, Duration.ofMinutes(10));
+        server = MuServerBuilder.httpServer()
+            .addHandler(context("/api/v1/system/samples")
+                .addHandler(new SampleDownloadHandler(systemCache, sampleCache)))
+            .start();
+    }
+
+    @Test
+    public void zipsAreServedWithETagsAndRangeSupport() throws Exception {
+        runner.addSample("maven", "0123456789".getBytes());
+        startServer();
+
+        HttpResponse<String> full = get(HttpRequest.newBuilder(server.uri().resolve("/api/v1/system/samples/maven.zip")));
+        assertThat(full.statusCode(), is(200));
+        assertThat(full.body(), is("0123456789"));
+        assertThat(full.headers().firstValue("content-type").orElse(null), is("application/zip"));
+        assertThat(full.headers().firstValue("content-length").orElse(null), is("10"));
+        String etag = full.headers().firstValue("etag").orElseThrow();
+
+        HttpResponse<String> notModified = get(HttpRequest.newBuilder(server.uri().resolve("/api/v1/system/samples/maven.zip"))
+            .header("If-None-Match", etag));
+        assertThat(notModified.statusCode(), is(304));
+
+        HttpResponse<String> partial = get(HttpRequest.newBuilder(server.uri().resolve("/api/v1/system/samples/maven.zip"))
+            .header("Range", "bytes=2-4"));
+        assertThat(partial.statusCode(), is(206));
+        assertThat(partial.body(), is("234"));
+        assertThat(runner.sampleRequests(), is(1));
+    }
+
+    @Test
+    public void sampleNamesAreMatchedIgnoringCase() throws Exception {
+        runner.addSample("maven", "0123456789".getBytes());
+        startServer();
+        HttpResponse<String> resp = get(HttpRequest.newBuilder(server.uri().resolve("/api/v1/system/samples/Maven.zip")));
+        assertThat(resp.statusCode(), is(200));
+        assertThat(resp.body(), is("0123456789"));
+    }
+
+    @Test
+    public void unknownSamplesAre404s() throws Exception {
+        runner.addSample("maven", new byte[]{1});
+        startServer();
+        HttpResponse<String> resp = get(HttpRequest.newBuilder(server.uri().resolve("/api/v1/system/samples/cobol.zip")));
+        assertThat(resp.statusCode(), is(404));
+        assertThat(resp.body(), containsString("[maven]"));
+    }
+
+    private HttpResponse<String> get(HttpRequest.Builder request) throws Exception {
+        return httpClient.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+}
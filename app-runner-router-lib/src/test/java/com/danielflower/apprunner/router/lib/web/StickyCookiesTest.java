@@ -0,0 +1,32 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import org.junit.Test;
+
+import java.net.URI;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class StickyCookiesTest {
+
+    @Test
+    public void tokensAreReadFromAnywhereInTheHeader() {
+        TrafficSplit.Target target = new TrafficSplit.Target("one", URI.create("http://localhost:12345/my-app"), 1);
+        String value = StickyCookies.cookie("my-app", target).value();
+        assertThat(StickyCookies.token(StickyCookies.NAME + "=" + value), is(target.token));
+        assertThat(StickyCookies.token("a=b; " + StickyCookies.NAME + "=" + value + "; c=d"), is(target.token));
+        assertThat(StickyCookies.token("a=b;" + StickyCookies.NAME + "=" + value), is(target.token));
+    }
+
+    @Test
+    public void invalidOrMissingCookiesGiveMinusOne() {
+        assertThat(StickyCookies.token(null), is(-1));
+        assertThat(StickyCookies.token("a=b"), is(-1));
+        assertThat(StickyCookies.token("X" + StickyCookies.NAME + "=1f"), is(-1));
+        assertThat(StickyCookies.token(StickyCookies.NAME + "="), is(-1));
+        assertThat(StickyCookies.token(StickyCookies.NAME + "=xyz"), is(-1));
+        assertThat(StickyCookies.token(StickyCookies.NAME + "=fffffffff"), is(-1));
+        assertThat(StickyCookies.token(StickyCookies.NAME + "=ffffffff"), is(-1));
+        assertThat(StickyCookies.token(StickyCookies.NAME + "=7fffffff"), is(Integer.MAX_VALUE));
+    }
+}
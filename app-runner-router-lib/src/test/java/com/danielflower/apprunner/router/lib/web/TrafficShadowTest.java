@@ -0,0 +1,32 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TrafficShadowTest {
+
+    private final TrafficShadow shadow = new TrafficShadow("app", "two", URI.create("http://two/app"), 0.5, Set.of("GET"));
+
+    @Test
+    public void latencyPercentilesAreTheUpperBoundOfTheirBucket() {
+        assertThat(shadow.latencyPercentile(50), is(-1L));
+        for (int i = 0; i < 90; i++) {
+            shadow.completed(200, 4);
+        }
+        for (int i = 0; i < 9; i++) {
+            shadow.completed(200, 120);
+        }
+        shadow.completed(503, 2500);
+
+        assertThat(shadow.latencyPercentile(50), is(5L));
+        assertThat(shadow.latencyPercentile(90), is(5L));
+        assertThat(shadow.latencyPercentile(99), is(150L));
+        assertThat(shadow.latencyPercentile(100), is(3000L));
+        assertThat(shadow.toJSON().getLong("errors"), is(1L));
+    }
+}
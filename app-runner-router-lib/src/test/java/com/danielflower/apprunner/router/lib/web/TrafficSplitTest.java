@@ -0,0 +1,49 @@
+package com.danielflower.apprunner.router.lib.web;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class TrafficSplitTest {
+
+    private final TrafficSplit.Target current = new TrafficSplit.Target("one", URI.create("http://one/app"), 95);
+    private final TrafficSplit.Target canary = new TrafficSplit.Target("two", URI.create("http://two/app"), 5);
+    private final TrafficSplit split = new TrafficSplit(List.of(current, canary));
+
+    @Test
+    public void targetsArePickedInProportionToTheirWeights() {
+        int canaryPicks = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (split.pick() == canary) {
+                canaryPicks++;
+            }
+        }
+        assertThat(canaryPicks, is(both(greaterThan(4000)).and(lessThan(6000))));
+    }
+
+    @Test
+    public void statsAreKeptForEachTarget() {
+        canary.record(200, 10);
+        canary.record(502, 30);
+        canary.record(0, 20);
+        current.record(200, 5);
+
+        JSONObject json = split.toJSON().getJSONArray("targets").getJSONObject(1);
+        assertThat(json.getString("runnerId"), is("two"));
+        assertThat(json.getDouble("percentage"), is(5.0));
+        assertThat(json.getLong("requests"), is(3L));
+        assertThat(json.getLong("errors"), is(2L));
+        assertThat(json.getDouble("meanLatencyMillis"), is(20.0));
+        assertThat(json.getLong("maxLatencyMillis"), is(30L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void weightsMustAddUpToMoreThanZero() {
+        new TrafficSplit(List.of(new TrafficSplit.Target("one", URI.create("http://one/app"), 0)));
+    }
+}
@@ -0,0 +1,145 @@
+package manual;
+
+import com.danielflower.apprunner.router.lib.VirtualThreads;
+import com.danielflower.apprunner.router.lib.mgmt.ClusterQueryingMapManager;
+import com.danielflower.apprunner.router.lib.mgmt.MapManager;
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import com.danielflower.apprunner.router.lib.web.ProxyMap;
+import scaffolding.StubRunner;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the ways the router can fan a call out to many runners: blocking calls on the thread pools the router
+ * used to have (a cached pool for app lookups and a fixed pool of 2 for system lookups), blocking calls on virtual
+ * threads (JDK 21 or later only), and the asynchronous client used by {@link ClusterQueryingMapManager}.
+ * <p>
+ * For each approach it prints the wall time per fan-out, the peak number of live platform threads, and the peak
+ * heap usage while running. Usage: <code>FanOutBenchmark [runnerCount] [runnerLatencyMillis] [rounds]</code>
+ */
+public class FanOutBenchmark {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int runnerCount = args.length > 0 ? Integer.parseInt(args[0]) : 300;
+        long latencyMillis = args.length > 1 ? Long.parseLong(args[1]) : 100;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        try (StubRunner stub = StubRunner.start("stub")) {
+            stub.addApp("some-app");
+            stub.setDelay(latencyMillis);
+            List<Runner> runners = new ArrayList<>();
+            for (int i = 0; i < runnerCount; i++) {
+                runners.add(new Runner("runner-" + i, stub.url(), 100));
+            }
+            System.out.println("Fanning out to " + runnerCount + " runners that each take " + latencyMillis + "ms to respond, " + rounds + " rounds each");
+            System.out.printf("%-40s %12s %12s %12s %14s %14s%n", "approach", "min ms", "avg ms", "max ms", "peak threads", "peak heap MB");
+
+            benchmarkBlocking("blocking on cached thread pool", Executors::newCachedThreadPool, runners, rounds);
+            benchmarkBlocking("blocking on fixed pool of 2", () -> Executors.newFixedThreadPool(2), runners, rounds);
+            if (VirtualThreads.newVirtualThreadPerTaskExecutor().isPresent()) {
+                benchmarkBlocking("blocking on virtual threads",
+                    () -> VirtualThreads.newVirtualThreadPerTaskExecutor().get(), runners, rounds);
+            } else {
+                System.out.println("(skipping virtual threads as they need Java 21 or later; this is " + Runtime.version() + ")");
+            }
+            benchmarkAsync("async client, default executor", Optional.empty(), runners, rounds);
+            Optional<ExecutorService> virtual = VirtualThreads.newVirtualThreadPerTaskExecutor();
+            if (virtual.isPresent()) {
+                benchmarkAsync("async client, virtual thread executor", virtual, runners, rounds);
+            }
+        }
+    }
+
+    private interface ExecutorFactory {
+        ExecutorService create();
+    }
+
+    private interface FanOut {
+        void run() throws Exception;
+    }
+
+    private static void benchmarkBlocking(String name, ExecutorFactory executorFactory, List<Runner> runners, int rounds) throws Exception {
+        HttpClient client = HttpClient.newHttpClient();
+        ExecutorService executor = executorFactory.create();
+        try {
+            measure(name, rounds, () -> {
+                List<Future<HttpResponse<String>>> futures = new ArrayList<>();
+                for (Runner runner : runners) {
+                    HttpRequest request = HttpRequest.newBuilder(runner.url.resolve("/api/v1/apps"))
+                        .timeout(Duration.ofMinutes(2)).build();
+                    futures.add(executor.submit(() -> client.send(request, HttpResponse.BodyHandlers.ofString())));
+                }
+                for (Future<HttpResponse<String>> future : futures) {
+                    future.get();
+                }
+            });
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void benchmarkAsync(String name, Optional<ExecutorService> executor, List<Runner> runners, int rounds) throws Exception {
+        HttpClient.Builder builder = HttpClient.newBuilder();
+        executor.ifPresent(builder::executor);
+        MapManager mapManager = new ClusterQueryingMapManager(new ProxyMap(), builder.build());
+        try {
+            measure(name, rounds, () -> {
+                MapManager.Result result = mapManager.loadAllAppsAsync(null, runners, Duration.ofMinutes(2)).get();
+                if (!result.errors.isEmpty()) {
+                    throw new RuntimeException("Errors from runners: " + result.errors);
+                }
+            });
+        } finally {
+            executor.ifPresent(ExecutorService::shutdownNow);
+        }
+    }
+
+    private static void measure(String name, int rounds, FanOut fanOut) throws Exception {
+        fanOut.run(); // warm up connections and JIT
+        System.gc();
+        threads.resetPeakThreadCount();
+        AtomicLong peakHeap = new AtomicLong();
+        Thread sampler = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+        sampler.setDaemon(true);
+        sampler.start();
+
+        long min = Long.MAX_VALUE, max = 0, total = 0;
+        for (int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            fanOut.run();
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            min = Math.min(min, millis);
+            max = Math.max(max, millis);
+            total += millis;
+        }
+        sampler.interrupt();
+        sampler.join();
+        System.out.printf("%-40s %12d %12d %12d %14d %14d%n", name, min, total / rounds, max,
+            threads.getPeakThreadCount(), peakHeap.get() / (1024 * 1024));
+    }
+}
@@ -0,0 +1,116 @@
+package manual;
+
+import com.danielflower.apprunner.router.lib.mgmt.ConsistentHashPlacement;
+import com.danielflower.apprunner.router.lib.mgmt.PlacementRequest;
+import com.danielflower.apprunner.router.lib.mgmt.PlacementStrategy;
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+
+import java.net.URI;
+import java.util.*;
+
+/**
+ * Simulates placing apps on a cluster with the different placement strategies, without any HTTP.
+ * <p>
+ * For each strategy it prints how evenly the apps are spread (the most and fewest apps on a runner compared to the
+ * average) and how many apps would be placed differently if the cluster had one more runner or one fewer runner,
+ * compared to the ideal of only the apps on that runner. Usage:
+ * <code>PlacementSimulation [runnerCount] [appCount] [maxAppsPerRunner]</code>
+ */
+public class PlacementSimulation {
+
+    public static void main(String[] args) {
+        int runnerCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int appCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        int maxApps = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        System.out.println("Placing " + appCount + " apps on " + runnerCount + " runners that can each have " + maxApps + " apps");
+
+        Map<String, PlacementStrategy> strategies = new LinkedHashMap<>();
+        strategies.put("least apps", PlacementStrategy.LEAST_APPS);
+        strategies.put("rendezvous hash (unbounded)", new ConsistentHashPlacement(1000));
+        strategies.put("rendezvous hash (bounded, 0.25)", new ConsistentHashPlacement(ConsistentHashPlacement.DEFAULT_BALANCE_FACTOR));
+        strategies.put("rendezvous hash (bounded, 0.1)", new ConsistentHashPlacement(0.1));
+
+        List<String> apps = new ArrayList<>();
+        for (int i = 0; i < appCount; i++) {
+            apps.add("app-" + UUID.nameUUIDFromBytes(("app" + i).getBytes()));
+        }
+
+        for (Map.Entry<String, PlacementStrategy> entry : strategies.entrySet()) {
+            PlacementStrategy strategy = entry.getValue();
+            Map<String, String> placed = place(strategy, ids(0, runnerCount), maxApps, apps);
+            Map<String, String> withOneMore = place(strategy, ids(0, runnerCount + 1), maxApps, apps);
+            Map<String, String> withOneLess = place(strategy, ids(1, runnerCount), maxApps, apps);
+
+            System.out.println();
+            System.out.println(entry.getKey());
+            System.out.println("  spread:             " + spread(placed, runnerCount));
+            System.out.printf("  adding a runner:    %d apps moved (ideal %d)%n", moved(placed, withOneMore), appCount / (runnerCount + 1));
+            System.out.printf("  removing a runner:  %d apps moved (ideal %d)%n", moved(placed, withOneLess), count(placed, "runner-0"));
+        }
+    }
+
+    /**
+     * Places the apps one at a time in order, as a router would as creation requests arrive.
+     */
+    private static Map<String, String> place(PlacementStrategy strategy, List<String> runnerIds, int maxApps, List<String> apps) {
+        List<Runner> runners = new ArrayList<>();
+        for (int i = 0; i < runnerIds.size(); i++) {
+            runners.add(new Runner(runnerIds.get(i), URI.create("http://runner-" + i + ":8080"), maxApps));
+        }
+        Map<String, String> placed = new HashMap<>();
+        for (String app : apps) {
+            List<Runner> candidates = new ArrayList<>();
+            for (Runner runner : runners) {
+                if (runner.hasCapacity()) {
+                    candidates.add(runner);
+                }
+            }
+            for (Runner runner : strategy.rank(PlacementRequest.ANYWHERE.forApp(app), candidates)) {
+                if (runner.tryReserve()) {
+                    placed.put(app, runner.id);
+                    break;
+                }
+            }
+        }
+        return placed;
+    }
+
+    private static List<String> ids(int from, int to) {
+        List<String> ids = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            ids.add("runner-" + i);
+        }
+        return ids;
+    }
+
+    private static String spread(Map<String, String> placed, int runnerCount) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (String runner : placed.values()) {
+            counts.merge(runner, 1, Integer::sum);
+        }
+        double average = (double) placed.size() / runnerCount;
+        int max = counts.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+        int min = counts.size() < runnerCount ? 0 : counts.values().stream().mapToInt(Integer::intValue).min().orElse(0);
+        return String.format("average %.1f, max %d (%.2fx), min %d (%.2fx)", average, max, max / average, min, min / average);
+    }
+
+    private static int moved(Map<String, String> before, Map<String, String> after) {
+        int moved = 0;
+        for (Map.Entry<String, String> entry : before.entrySet()) {
+            if (!entry.getValue().equals(after.get(entry.getKey()))) {
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private static int count(Map<String, String> placed, String runnerId) {
+        int count = 0;
+        for (String runner : placed.values()) {
+            if (runner.equals(runnerId)) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,354 @@
+package scaffolding;
+
+import com.danielflower.apprunner.router.lib.mgmt.Runner;
+import io.muserver.*;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory imitation of the parts of the AppRunner REST API that the router uses, for tests that need
+ * runners but do not want to start real AppRunner processes.
+ */
+public class StubRunner implements AutoCloseable {
+
+    public final String id;
+    private final Map<String, JSONObject> apps = new ConcurrentSkipListMap<>();
+    private final Map<String, byte[]> samples = new ConcurrentSkipListMap<>();
+    private final List<String> publicKeys = new CopyOnWriteArrayList<>();
+    private final AtomicInteger systemRequests = new AtomicInteger();
+    private final AtomicInteger appsRequests = new AtomicInteger();
+    private final AtomicInteger creationsInProgress = new AtomicInteger();
+    private final AtomicInteger maxConcurrentCreations = new AtomicInteger();
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+    private final AtomicInteger sampleRequests = new AtomicInteger();
+    private final AtomicInteger appRequests = new AtomicInteger();
+    private final AtomicInteger webRequests = new AtomicInteger();
+    private final MuServer server;
+    private volatile long delayMillis;
+    private volatile boolean healthy = true;
+    private volatile String version = "1.0.0";
+    private volatile boolean eventsEnabled;
+    private volatile boolean failDeployments;
+    private final List<SsePublisher> eventSubscribers = new CopyOnWriteArrayList<>();
+    private final AtomicLong lastEventID = new AtomicLong();
+
+    private StubRunner(String id) {
+        this.id = id;
+        this.server = MuServerBuilder.httpServer()
+            .addHandler(Method.GET, "/api/v1/apps", (request, response, pathParams) -> {
+                appsRequests.incrementAndGet();
+                JSONArray all = new JSONArray();
+                apps.values().forEach(all::put);
+                JSONObject body = new JSONObject().put("apps", all);
+                String etag = "\"" + Integer.toHexString(body.toString().hashCode()) + "\"";
+                if (etag.equals(request.headers().get(HeaderNames.IF_NONE_MATCH))) {
+                    notModifiedResponses.incrementAndGet();
+                    response.status(304);
+                    return;
+                }
+                response.headers().set(HeaderNames.ETAG, etag);
+                respond(request, response, 200, body);
+            })
+            .addHandler(Method.POST, "/api/v1/apps", (request, response, pathParams) -> {
+                String name = request.form().get("appName");
+                addApp(name);
+                apps.get(name)
+                    .put("gitUrl", request.form().get("gitUrl", ""))
+                    .put("available", false);
+                maxConcurrentCreations.accumulateAndGet(creationsInProgress.incrementAndGet(), Math::max);
+                respond(request, response, 201, apps.get(name), creationsInProgress::decrementAndGet);
+            })
+            .addHandler(Method.POST, "/api/v1/apps/{name}/deploy", (request, response, pathParams) -> {
+                JSONObject app = apps.get(pathParams.get("name"));
+                if (app == null) {
+                    response.status(404);
+                } else if (failDeployments) {
+                    response.status(500);
+                    response.write("Build failed");
+                } else {
+                    app.put("available", true);
+                    respond(request, response, 200, app);
+                }
+            })
+            .addHandler(Method.PUT, "/api/v1/apps/{name}/stop", (request, response, pathParams) -> {
+                JSONObject app = apps.get(pathParams.get("name"));
+                if (app == null) {
+                    response.status(404);
+                } else {
+                    app.put("available", false);
+                    respond(request, response, 200, app);
+                }
+            })
+            .addHandler(Method.DELETE, "/api/v1/apps/{name}", (request, response, pathParams) -> {
+                JSONObject app = apps.get(pathParams.get("name"));
+                if (app == null) {
+                    response.status(404);
+                } else {
+                    removeApp(pathParams.get("name"));
+                    respond(request, response, 200, app);
+                }
+            })
+            .addHandler(Method.GET, "/api/v1/apps/events", (request, response, pathParams) -> {
+                if (!eventsEnabled) {
+                    response.status(404);
+                    return;
+                }
+                SsePublisher publisher = SsePublisher.start(request, response);
+                publisher.sendComment("connected");
+                eventSubscribers.add(publisher);
+            })
+            .addHandler(Method.GET, "/api/v1/apps/{name}", (request, response, pathParams) -> {
+                appRequests.incrementAndGet();
+                JSONObject app = apps.get(pathParams.get("name"));
+                if (app == null) {
+                    response.status(404);
+                } else {
+                    respond(request, response, 200, app);
+                }
+            })
+            .addHandler(Method.GET, "/api/v1/system", (request, response, pathParams) -> {
+                systemRequests.incrementAndGet();
+                JSONArray sampleJson = new JSONArray();
+                for (String sampleId : samples.keySet()) {
+                    sampleJson.put(new JSONObject()
+                        .put("id", sampleId)
+                        .put("name", sampleId)
+                        .put("url", url().resolve("/api/v1/system/samples/" + sampleId + ".zip").toString()));
+                }
+                respond(request, response, 200, new JSONObject()
+                    .put("appRunnerStarted", true)
+                    .put("appRunnerVersion", version)
+                    .put("publicKeys", new JSONArray(publicKeys))
+                    .put("samples", sampleJson));
+            })
+            .addHandler(Method.GET, "/api/v1/system/samples/{name}", (request, response, pathParams) -> {
+                sampleRequests.incrementAndGet();
+                byte[] zip = samples.get(pathParams.get("name").replace(".zip", ""));
+                if (zip == null) {
+                    response.status(404);
+                } else {
+                    response.contentType("application/zip");
+                    response.outputStream().write(zip);
+                }
+            })
+            .addHandler((request, response) -> {
+                String path = request.uri().getPath();
+                String appName = path.substring(1).split("/", 2)[0];
+                JSONObject app = apps.get(appName);
+                if (app == null) {
+                    return false;
+                }
+                if (!app.getBoolean("available")) {
+                    response.status(503);
+                    response.write(appName + " is not running");
+                    return true;
+                }
+                webRequests.incrementAndGet();
+                respond(request, response, 200, new JSONObject().put("app", appName).put("runner", id).put("path", path));
+                return true;
+            })
+            .start();
+    }
+
+    public static StubRunner start(String id) {
+        return new StubRunner(id);
+    }
+
+    private void respond(MuRequest request, MuResponse response, int status, JSONObject body) {
+        respond(request, response, status, body, () -> {});
+    }
+
+    private void respond(MuRequest request, MuResponse response, int status, JSONObject body, Runnable onResponded) {
+        if (!healthy) {
+            onResponded.run();
+            response.status(503);
+            response.write("Unhealthy");
+            return;
+        }
+        AsyncHandle asyncHandle = request.handleAsync();
+        CompletableFuture.delayedExecutor(delayMillis, TimeUnit.MILLISECONDS).execute(() -> {
+            onResponded.run();
+            response.status(status);
+            response.contentType(ContentTypes.APPLICATION_JSON);
+            asyncHandle.write(Mutils.toByteBuffer(body.toString()), error -> asyncHandle.complete());
+        });
+    }
+
+    public void addApp(String name) {
+        putApp(name);
+        publishEvent("app-created", name);
+    }
+
+    private void putApp(String name) {
+        apps.put(name, new JSONObject()
+            .put("name", name)
+            .put("url", url().resolve("/" + name + "/").toString())
+            .put("gitUrl", "https://example.org/" + name + ".git")
+            .put("available", true));
+    }
+
+    /**
+     * @return True if the app exists and is running, i.e. it has been deployed and not stopped since
+     */
+    public boolean isAvailable(String name) {
+        JSONObject app = apps.get(name);
+        return app != null && app.getBoolean("available");
+    }
+
+    public boolean hasApp(String name) {
+        return apps.containsKey(name);
+    }
+
+    public void removeApp(String name) {
+        apps.remove(name);
+        publishEvent("app-deleted", name);
+    }
+
+    /**
+     * Enables the app events stream. When disabled (the default) requests for it get a 404.
+     */
+    public void setEventsEnabled(boolean eventsEnabled) {
+        this.eventsEnabled = eventsEnabled;
+    }
+
+    /**
+     * Adds an app but uses up its event ID without sending the event, as if it was lost, so that subscribers see
+     * a gap in the IDs and can only find the app by reloading the app list.
+     */
+    public void addAppWithLostEvent(String name) {
+        putApp(name);
+        lastEventID.incrementAndGet();
+    }
+
+    /**
+     * @return The number of connected event stream subscribers
+     */
+    public int eventSubscribers() {
+        return eventSubscribers.size();
+    }
+
+    public void closeEventStreams() {
+        for (SsePublisher publisher : eventSubscribers) {
+            publisher.close();
+        }
+        eventSubscribers.clear();
+    }
+
+    private void publishEvent(String type, String name) {
+        String id = String.valueOf(lastEventID.incrementAndGet());
+        String data = new JSONObject().put("name", name).toString();
+        for (SsePublisher publisher : eventSubscribers) {
+            try {
+                publisher.send(data, type, id);
+            } catch (Exception e) {
+                eventSubscribers.remove(publisher);
+            }
+        }
+    }
+
+    public void addSample(String sampleId, byte[] zip) {
+        samples.put(sampleId, zip);
+    }
+
+    public void addPublicKey(String publicKey) {
+        publicKeys.add(publicKey);
+    }
+
+    /**
+     * @return The number of times the system API has been called on this runner
+     */
+    public int systemRequests() {
+        return systemRequests.get();
+    }
+
+    /**
+     * @return The number of times the apps API has been called on this runner
+     */
+    public int appsRequests() {
+        return appsRequests.get();
+    }
+
+    /**
+     * @return The most app creations that this runner has been handling at the same time
+     */
+    public int maxConcurrentCreations() {
+        return maxConcurrentCreations.get();
+    }
+
+    /**
+     * @return The number of times a single app has been requested from the apps API on this runner
+     */
+    public int appRequests() {
+        return appRequests.get();
+    }
+
+    /**
+     * @return The number of requests to the web pages of apps on this runner
+     */
+    public int webRequests() {
+        return webRequests.get();
+    }
+
+    /**
+     * @return The number of times the apps API returned a 304 because the caller's ETag was current
+     */
+    public int notModifiedResponses() {
+        return notModifiedResponses.get();
+    }
+
+    /**
+     * @return The number of times a sample zip has been downloaded from this runner
+     */
+    public int sampleRequests() {
+        return sampleRequests.get();
+    }
+
+    public void setVersion(String version) {
+        this.version = version;
+    }
+
+    /**
+     * When set to false, API calls return 503 errors.
+     */
+    public void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * When set to true, deploying an app returns a 500 error.
+     */
+    public void setFailDeployments(boolean failDeployments) {
+        this.failDeployments = failDeployments;
+    }
+
+    /**
+     * Makes every API response from this runner wait for the given time before being sent.
+     */
+    public void setDelay(long delayMillis) {
+        this.delayMillis = delayMillis;
+    }
+
+    public URI url() {
+        return server.uri();
+    }
+
+    public Runner toRunner(int maxApps) {
+        return new Runner(id, url(), maxApps);
+    }
+
+    @Override
+    public void close() {
+        closeEventStreams();
+        server.stop();
+    }
+}
@@ -24,6 +24,10 @@ public class Config {
     public static final String REQUEST_MAX_SIZE_BYTES = "apprunner.request.max.size.bytes";
     public static final String UDP_LISTENER_HOST = "apprunner.udp.listener.host";
     public static final String UDP_LISTENER_PORT = "apprunner.udp.listener.port";
+    public static final String USE_VIRTUAL_THREADS = "apprunner.virtual.threads";
+    public static final String PLACEMENT = "apprunner.placement";
+    public static final String PLACEMENT_TRAFFIC_AWARE = "apprunner.placement.traffic.aware";
+    public static final String HIBERNATE_IDLE_MINUTES = "apprunner.hibernate.idle.minutes";
 
     public static Config load(Map<String, String> systemEnv, String[] commandLineArgs) throws IOException {
         Map<String, String> env = new HashMap<>(systemEnv);
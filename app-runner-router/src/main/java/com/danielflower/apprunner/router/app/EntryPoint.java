@@ -68,6 +68,10 @@ public class EntryPoint {
                 .withDefaultAppName(defaultAppName)
                 .withAllowUntrustedInstances(allowUntrustedInstances)
                 .withProxyTimeoutMillis(config.getInt(Config.PROXY_TOTAL_TIMEOUT, 20 * 60000))
+                .withVirtualThreads(config.getBoolean(Config.USE_VIRTUAL_THREADS, false))
+                .withPlacement(config.get(Config.PLACEMENT, AppRunnerRouterSettings.PLACEMENT_LEAST_APPS))
+                .withTrafficAwarePlacement(config.getBoolean(Config.PLACEMENT_TRAFFIC_AWARE, false))
+                .withHibernateAfterMillis(TimeUnit.MINUTES.toMillis(config.getInt(Config.HIBERNATE_IDLE_MINUTES, 0)))
                 .build();
             App app = new App(settings);
             app.start();